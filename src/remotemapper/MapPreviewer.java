@@ -23,12 +23,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.File;
-import javafx.application.Platform;
-import javafx.embed.swing.JFXPanel;
-import javafx.scene.Group;
-import javafx.scene.Scene;
-import javafx.scene.web.WebView;
-import javax.swing.SwingWorker;
 import remotemapper.classes.mapping.CharMap;
 
 /**
@@ -38,9 +32,7 @@ import remotemapper.classes.mapping.CharMap;
 public class MapPreviewer extends javax.swing.JFrame {
     private File mapFile;
     private CharMap map;
-    private WebView mapView;
-    
-    private final String MAP_NODE = "<div class=\"node\"></div>";
+    private MapViewer mapView;
     
     {
         WindowListener exitListener = new WindowAdapter()
@@ -48,6 +40,10 @@ public class MapPreviewer extends javax.swing.JFrame {
             @Override
             public void windowClosing(WindowEvent e)
             {
+                if (mapView != null)
+                {
+                    mapView.dispose();
+                }
                 MapPreviewer.this.dispose();
             }
         };
@@ -83,39 +79,22 @@ public class MapPreviewer extends javax.swing.JFrame {
         
         initComponents();
         
-        final JFXPanel fxPanel1 = new JFXPanel();
+        mapView = new MapViewer(map);
         
-        fxPanel1.setBounds(0, 0, mapPanel.getWidth(), mapPanel.getHeight());
-        mapPanel.add(fxPanel1, Color.WHITE);
-        
-        Platform.runLater(() -> {
-            initFX(fxPanel1);
-        });
+        mapView.setBounds(0, 0, mapPanel.getWidth(), mapPanel.getHeight());
+        mapPanel.add(mapView, Color.WHITE);
         
         mapPanel.addComponentListener(new ComponentAdapter()
         {
             @Override
             public void componentResized(ComponentEvent e) {
-                fxPanel1.setBounds(0, 0, mapPanel.getWidth(), mapPanel.getHeight());
+                mapView.setBounds(0, 0, mapPanel.getWidth(), mapPanel.getHeight());
             }
         });
         
         super.setVisible(true);
     }
     
-    private void initFX(JFXPanel fxPanel)
-    {
-        mapView = new WebView();
-        
-        final Scene mapScene = new Scene(new Group());
-        mapScene.setRoot(mapView);
-        
-        fxPanel.setScene(mapScene);
-        
-        MapUpdater mu = new MapUpdater();
-        mu.execute();
-    }
-
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -206,60 +185,4 @@ public class MapPreviewer extends javax.swing.JFrame {
     public boolean close() {
         return true;
     }
-    
-    class MapUpdater extends SwingWorker<Void, Void>
-    {
-        
-        @Override
-        protected Void doInBackground() throws Exception {
-            
-            Platform.runLater(() -> {
-                mapView.getEngine().loadContent(getHTML(map.getMap(), 4, map.getObsticalMark(), map.getEmptySpaceMark()));
-            });
-               
-            return null;
-        }
-        
-        private String getHTML(char[][] data, int nodeSize, char obsticalMark, char emptyMark)
-        {
-            StringBuilder sb = new StringBuilder("<html>" + 
-                "<style> .node {" +
-                "height: "+ nodeSize +"px;" +
-                "width: "+ nodeSize +"px;" +
-                "background-color: green;" + 
-                "line-height: " + nodeSize + "px;" +
-                "display: table-cell;" +
-                "}" +
-                "</style>"
-            );
-            
-            for (int y = 0; y < data.length; y++)
-            {
-                for (int x = 0; x < data[0].length; x++)
-                {
-                    if (data[y][x] == obsticalMark)
-                    {
-                        sb.append("<div class=\"node\" style=\"background-color: red;\"></div>");
-                    }
-                    else if (data[y][x] != emptyMark)
-                    {
-                        sb.append("<div class=\"node\" style=\"background-color: yellow;\"></div>");
-                    }
-                    else
-                    {
-                        sb.append(MAP_NODE);
-                    }
-                }
-                
-                if (y != data.length - 1)
-                {
-                    sb.append("<div class=\"node\" style=\"display: inline;\"></div>");
-                }
-            }
-            
-            sb.append("</font></html>");
-            
-            return sb.toString();
-        }
-    }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper;
+
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import javax.swing.JPanel;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapRenderer;
+import remotemapper.classes.mapping.MapTileCache;
+
+import static remotemapper.classes.mapping.MapTileCache.TILE_SIZE;
+
+/**
+ * A panel showing a map that can be zoomed with the mouse wheel and panned
+ * by dragging.
+ *
+ * Only the tiles of a MapTileCache that are in view are copied into the
+ * frame. Tiles that are not drawn yet are filled in from a coarser zoom
+ * level while they are, and the panel paints again once they are ready or
+ * the map changes.
+ *
+ * @author Robert Hutter
+ */
+class MapViewer extends JPanel
+{
+    private final MapRenderer renderer = new MapRenderer();
+    private final MapTileCache tiles;
+
+    private int zoom;
+    private boolean fitted = false;
+
+    /**
+     * Pixel of the map's image at the top left corner of the panel.
+     */
+    private int originX = 0, originY = 0;
+
+    private BufferedImage frame;
+    private int[] framePixels;
+    private int[] scratch;
+
+    /**
+     * Create a viewer.
+     *
+     * @param map the map to show
+     */
+    MapViewer (CharMap map)
+    {
+        tiles = new MapTileCache(map, renderer, this::repaint);
+
+        MouseAdapter mouse = new MouseAdapter()
+        {
+            private int lastX, lastY;
+
+            @Override
+            public void mousePressed (MouseEvent e)
+            {
+                lastX = e.getX();
+                lastY = e.getY();
+            }
+
+            @Override
+            public void mouseDragged (MouseEvent e)
+            {
+                originX -= e.getX() - lastX;
+                originY -= e.getY() - lastY;
+                lastX = e.getX();
+                lastY = e.getY();
+                repaint();
+            }
+
+            @Override
+            public void mouseWheelMoved (MouseWheelEvent e)
+            {
+                zoomAt(zoom - e.getWheelRotation(), e.getX(), e.getY());
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    void dispose ()
+    {
+        tiles.dispose();
+    }
+
+    /**
+     * Change the zoom level, keeping the point under a pixel of the panel
+     * in place.
+     *
+     * @param level the new zoom level, clamped to the levels of
+     *        MapTileCache
+     * @param x the pixel's x coordinate on the panel
+     * @param y the pixel's y coordinate on the panel
+     */
+    void zoomAt (int level, int x, int y)
+    {
+        level = Math.max(MapTileCache.MIN_ZOOM, Math.min(MapTileCache.MAX_ZOOM, level));
+        final int steps = level - zoom;
+
+        if (steps > 0)
+        {
+            originX = ((originX + x) << steps) - x;
+            originY = ((originY + y) << steps) - y;
+        }
+        else if (steps < 0)
+        {
+            originX = ((originX + x) >> -steps) - x;
+            originY = ((originY + y) >> -steps) - y;
+        }
+        zoom = level;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent (Graphics g)
+    {
+        final int w = getWidth();
+        final int h = getHeight();
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        final CharMap map = tiles.getMap();
+        if (!fitted)
+        {
+            // Start with the whole map in view
+            zoom = MapTileCache.MAX_ZOOM;
+            while (zoom > MapTileCache.MIN_ZOOM
+                && (MapTileCache.getImageSize(zoom, map.getWidth() - 1) > w
+                    || MapTileCache.getImageSize(zoom, map.getLength()) > h))
+            {
+                zoom--;
+            }
+            fitted = true;
+        }
+
+        if (frame == null || frame.getWidth() != w || frame.getHeight() != h)
+        {
+            frame = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            framePixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+            scratch = new int[TILE_SIZE * TILE_SIZE];
+        }
+
+        final int imageW = MapTileCache.getImageSize(zoom, map.getWidth() - 1);
+        final int imageH = MapTileCache.getImageSize(zoom, map.getLength());
+        final int outside = renderer.getColor(MapRenderer.OUTSIDE);
+
+        tiles.beginFrame();
+        for (int ty = Math.floorDiv(originY, TILE_SIZE); ty * TILE_SIZE < originY + h; ty++)
+        {
+            for (int tx = Math.floorDiv(originX, TILE_SIZE); tx * TILE_SIZE < originX + w; tx++)
+            {
+                int[] pixels = null;
+                if (tx >= 0 && ty >= 0 && tx * TILE_SIZE < imageW && ty * TILE_SIZE < imageH)
+                {
+                    pixels = tiles.getTile(zoom, tx, ty);
+                    if (pixels == null)
+                    {
+                        pixels = coarser(tx, ty);
+                    }
+                }
+                if (pixels == null)
+                {
+                    Arrays.fill(scratch, outside);
+                    pixels = scratch;
+                }
+
+                // Part of the tile inside the panel
+                final int x0 = Math.max(0, tx * TILE_SIZE - originX);
+                final int y0 = Math.max(0, ty * TILE_SIZE - originY);
+                final int x1 = Math.min(w, (tx + 1) * TILE_SIZE - originX);
+                final int y1 = Math.min(h, (ty + 1) * TILE_SIZE - originY);
+                final int offset = (y0 + originY - ty * TILE_SIZE) * TILE_SIZE + x0 + originX - tx * TILE_SIZE;
+
+                for (int y = y0; y < y1; y++)
+                {
+                    System.arraycopy(pixels, offset + (y - y0) * TILE_SIZE, framePixels, y * w + x0, x1 - x0);
+                }
+            }
+        }
+
+        g.drawImage(frame, 0, 0, null);
+    }
+
+    /**
+     * Make a stand-in for a tile that is not drawn yet by enlarging the
+     * part of the tile of the next coarser level that covers it, if that
+     * one is ready.
+     *
+     * @return the stand-in in scratch, or null
+     */
+    private int[] coarser (int tx, int ty)
+    {
+        if (zoom <= MapTileCache.MIN_ZOOM)
+        {
+            return null;
+        }
+
+        final int[] parent = tiles.getTile(zoom - 1, tx >> 1, ty >> 1);
+        if (parent == null)
+        {
+            return null;
+        }
+
+        final int left = (tx & 1) * TILE_SIZE / 2;
+        final int top = (ty & 1) * TILE_SIZE / 2;
+        for (int y = 0; y < TILE_SIZE; y++)
+        {
+            for (int x = 0; x < TILE_SIZE; x++)
+            {
+                scratch[y * TILE_SIZE + x] = parent[(top + y / 2) * TILE_SIZE + left + x / 2];
+            }
+        }
+        return scratch;
+    }
+}
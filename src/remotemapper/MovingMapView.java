@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper;
+
+import javafx.scene.Group;
+import javafx.scene.Parent;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapChangeListener;
+import remotemapper.classes.mapping.MapRenderer;
+
+/**
+ * Shows the part of a map around the rover, drawn straight into the pixels
+ * of an image with a square of pixels for every point.
+ *
+ * The last frame is kept. When the rover moves, the pixels still in view
+ * are scrolled and only the strips coming into view are drawn. Points the
+ * map reports as changed are gathered into one dirty rectangle, which is
+ * drawn again with the next frame. Only when the map is replaced, or the
+ * view shows another map, is the whole frame drawn again.
+ *
+ * Must only be used on the JavaFX application thread, apart from the
+ * change notifications, which may come from any thread.
+ *
+ * @author Robert Hutter
+ */
+final class MovingMapView implements MapChangeListener
+{
+    private final int width, height;
+    private final int nodeSize;
+
+    private final MapRenderer renderer = new MapRenderer();
+    private final int[] pixels;
+    private final WritableImage image;
+    private final Group root;
+
+    /**
+     * The map and centre of the last frame, null before the first one.
+     */
+    private CharMap shown;
+    private int shownX, shownY;
+
+    /**
+     * Points changed since the last frame, in points of the map. Empty when
+     * minX > maxX.
+     */
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    private boolean replaced;
+
+    /**
+     * Create a view.
+     *
+     * @param width number of points shown in a row
+     * @param height number of rows shown
+     * @param nodeSize length of a point's side in pixels
+     */
+    MovingMapView (int width, int height, int nodeSize)
+    {
+        this.width = width;
+        this.height = height;
+        this.nodeSize = nodeSize;
+
+        pixels = new int[width * nodeSize * height * nodeSize];
+        image = new WritableImage(width * nodeSize, height * nodeSize);
+
+        final ImageView view = new ImageView(image);
+        view.setSmooth(false);
+        root = new Group(view);
+    }
+
+    /**
+     *
+     * @return the node to show the view with
+     */
+    Parent getRoot ()
+    {
+        return root;
+    }
+
+    /**
+     * Draw the part of a map centred on a point.
+     *
+     * @param map the map
+     * @param posX the centre's x coordinate
+     * @param posY the centre's y coordinate
+     */
+    void update (CharMap map, int posX, int posY)
+    {
+        final int w = width * nodeSize;
+        final int h = height * nodeSize;
+        final int dx = posX - shownX;
+        final int dy = posY - shownY;
+
+        // Take the changes so far, later ones are drawn with the next frame
+        final int x0, y0, x1, y1;
+        final boolean all;
+        synchronized (this)
+        {
+            x0 = minX;
+            y0 = minY;
+            x1 = maxX;
+            y1 = maxY;
+            all = replaced || map != shown || Math.abs(dx) >= width || Math.abs(dy) >= height;
+
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+            replaced = false;
+        }
+
+        if (map != shown)
+        {
+            if (shown != null)
+            {
+                shown.removeMapChangeListener(this);
+            }
+            map.addMapChangeListener(this);
+            shown = map;
+        }
+        shownX = posX;
+        shownY = posY;
+
+        // Point (1, 1) of the map is at pixel (-left, -top) of the frame
+        final int left = (posX - 1 - width / 2) * nodeSize;
+        final int top = (posY - 1 - height / 2) * nodeSize;
+
+        if (all)
+        {
+            draw(map, left, top, 0, 0, w, h);
+            write(0, 0, w, h);
+            return;
+        }
+
+        if (dx != 0 || dy != 0)
+        {
+            scroll(dx * nodeSize, dy * nodeSize);
+
+            // Columns and rows coming into view
+            final int sx = Math.abs(dx) * nodeSize;
+            final int sy = Math.abs(dy) * nodeSize;
+            draw(map, left, top, dx > 0 ? w - sx : 0, 0, sx, h);
+            draw(map, left, top, 0, dy > 0 ? h - sy : 0, w, sy);
+        }
+
+        // Changed points that are in view
+        final int cx0 = Math.max(0, (x0 - 1) * nodeSize - left);
+        final int cy0 = Math.max(0, (y0 - 1) * nodeSize - top);
+        final int cx1 = Math.min(w, x1 * nodeSize - left);
+        final int cy1 = Math.min(h, y1 * nodeSize - top);
+        final boolean changed = x0 <= x1 && cx0 < cx1 && cy0 < cy1;
+
+        if (changed)
+        {
+            draw(map, left, top, cx0, cy0, cx1 - cx0, cy1 - cy0);
+        }
+
+        if (dx != 0 || dy != 0)
+        {
+            write(0, 0, w, h);
+        }
+        else if (changed)
+        {
+            write(cx0, cy0, cx1 - cx0, cy1 - cy0);
+        }
+    }
+
+    @Override
+    public synchronized void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+    }
+
+    @Override
+    public synchronized void mapReplaced (CharMap map)
+    {
+        replaced = true;
+    }
+
+    /**
+     * Draw a rectangle of the frame.
+     *
+     * @param left position of the frame in the map's image
+     * @param top position of the frame in the map's image
+     */
+    private void draw (CharMap map, int left, int top, int x, int y, int w, int h)
+    {
+        renderer.render(map, left + x, top + y, w, h, nodeSize, pixels, y * width * nodeSize + x, width * nodeSize);
+    }
+
+    /**
+     * Move the frame's pixels by a number of pixels to the left and up,
+     * leaving what was there at the opposite edges.
+     */
+    private void scroll (int sx, int sy)
+    {
+        final int w = width * nodeSize;
+        final int h = height * nodeSize;
+        final int n = w - Math.abs(sx);
+        final int from = Math.max(0, sx);
+        final int to = Math.max(0, -sx);
+
+        if (sy >= 0)
+        {
+            for (int y = 0; y + sy < h; y++)
+            {
+                System.arraycopy(pixels, (y + sy) * w + from, pixels, y * w + to, n);
+            }
+        }
+        else
+        {
+            for (int y = h - 1; y + sy >= 0; y--)
+            {
+                System.arraycopy(pixels, (y + sy) * w + from, pixels, y * w + to, n);
+            }
+        }
+    }
+
+    /**
+     * Copy a rectangle of the frame to the image.
+     */
+    private void write (int x, int y, int w, int h)
+    {
+        image.getPixelWriter().setPixels(x, y, w, h, PixelFormat.getIntArgbPreInstance(),
+            pixels, y * width * nodeSize + x, width * nodeSize);
+    }
+}
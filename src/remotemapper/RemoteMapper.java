@@ -26,8 +26,6 @@ import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -40,7 +38,6 @@ import javafx.application.Platform;
 import javafx.embed.swing.JFXPanel;
 import javafx.scene.Group;
 import javafx.scene.Scene;
-import javafx.scene.web.WebView;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
@@ -53,11 +50,22 @@ import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.PlainDocument;
 import javax.swing.tree.DefaultMutableTreeNode;
 import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.DistanceField;
+import remotemapper.classes.mapping.MapFiles;
+import remotemapper.classes.mapping.MapJournal;
+import remotemapper.classes.mapping.MapLoader;
+import remotemapper.classes.mapping.MapPyramid;
+import remotemapper.classes.mapping.SimplifiedMapCache;
 import remotemapper.classes.CommandPreset;
 import remotemapper.classes.Coord;
 import remotemapper.classes.mapping.Node;
 import remotemapper.classes.Rover;
 import remotemapper.classes.mapping.Point;
+import remotemapper.classes.mapping.pathfinding.BidirectionalAstar;
+import remotemapper.classes.mapping.pathfinding.ClearancePlanner;
+import remotemapper.classes.mapping.pathfinding.CoarseToFinePlanner;
+import remotemapper.classes.mapping.pathfinding.DStarLite;
+import remotemapper.classes.mapping.pathfinding.HierarchicalPathfinder;
 import remotemapper.data.RoverCommands;
 import remotemapper.exceptions.InternalException;
 import remotemapper.exceptions.LoadWorkspaceException;
@@ -65,6 +73,7 @@ import remotemapper.utility.AngleFilter;
 import remotemapper.utility.CoordinateFilter;
 import remotemapper.utility.LengthFilter;
 import remotemapper.utility.PositiveIntFilter;
+import remotemapper.utility.RenderScheduler;
 import remotemapper.utility.WhitespaceLengthFilter;
 
 /**
@@ -79,13 +88,14 @@ public class RemoteMapper extends javax.swing.JFrame {
     static final int MOVING_MAP_HEIGHT = 245;
     static final int MOVING_MAP_SWIDTH = 41;
     static final int MOVING_MAP_SHEIGHT = 41;
-    static final String MOVING_MAP_NODE = "<div class=\"node\"></div>";
-    static final float MOVING_MAP_NODE_SIZE = 1.0f; // Size in px. Used in font size.
-    static final float MOVING_MAP_SNODE_SIZE = 6f;
+    static final int MOVING_MAP_NODE_SIZE = 1; // Size in px.
+    static final int MOVING_MAP_SNODE_SIZE = 6;
+    static final int MOVING_MAP_FPS = 30;
     
     private SerialHandler port;
     private CharMap map;
     private CharMap simpleMap;
+    private SimplifiedMapCache simplified;
     private Route route;
     private Rover rover;
     private File workspace, mapFile, presetFile;
@@ -93,6 +103,11 @@ public class RemoteMapper extends javax.swing.JFrame {
     MapPreviewer mp;
     SerialMonitor sm;
     private Pathfinder pf;
+    private HierarchicalPathfinder hpa;
+    private DStarLite dstar;
+    private MapPyramid pyramid;
+    private DistanceField clearance;
+    private MapJournal journal;
     
     boolean savingWorkspace = false;
     boolean closing = false;
@@ -181,7 +196,11 @@ public class RemoteMapper extends javax.swing.JFrame {
                 {   
                     try
                     {
-                        CharMap.exportToFile(map, mapFile);
+                        if (journal != null && journal.isJournalOf(mapFile))
+                            journal.compact(null);
+                        else
+                            MapFiles.save(map, mapFile, null);
+                        MapFiles.writeChecksum(map, mapFile);
                         
                         for (CommandPreset cp : presets)
                         {
@@ -2902,7 +2921,7 @@ public class RemoteMapper extends javax.swing.JFrame {
 
         jLabel68.setText("Algorithm:");
 
-        pathfindAlgorithmSelector.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "A*" }));
+        pathfindAlgorithmSelector.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "A*", "A* (8-way)", "A* (bidirectional)", "Theta*", "JPS", "HPA*", "D* Lite", "A* (coarse-to-fine)", "A* (clearance)" }));
 
         jLabel69.setText("From:");
 
@@ -4175,7 +4194,7 @@ public class RemoteMapper extends javax.swing.JFrame {
         else
         {
             int x = Integer.parseInt(roverPropertiesX.getText());
-            if ((x > map.getWidth()) || (x <= 0))
+            if (x <= 0) // The map grows to include the rover
             {
                 roverPropertiesErrorLabel.setText("Given rover x value invalid.");
                 roverPropertiesXLabel.setForeground(Color.red);
@@ -4194,7 +4213,7 @@ public class RemoteMapper extends javax.swing.JFrame {
         else
         {
             int y = Integer.parseInt(roverPropertiesY.getText());
-            if ((y > map.getWidth()) || (y <= 0))
+            if (y <= 0) // The map grows to include the rover
             {
                 roverPropertiesErrorLabel.setText("Given rover x value invalid.");
                 roverPropertiesYLabel.setForeground(Color.red);
@@ -4557,9 +4576,7 @@ public class RemoteMapper extends javax.swing.JFrame {
         // Validate data entered
         boolean ok = true;
         
-        /* TEMP UNTIL AUTO MAP AND SIMPLE MAP UPDATE IS IMPLEMENTED! */
-        simpleMap = CharMap.simplfyMap(map, ((int) rover.getFlatDiagonal() + 1) / CONVERSION_CM_MM);
-        
+        simpleMap = simplified.get(getSimplificationCoefficient());
         
         pathfindErrorLabel.setText("");
         pathfindErrorLabel.setForeground(Color.red);
@@ -4658,7 +4675,7 @@ public class RemoteMapper extends javax.swing.JFrame {
                         Integer.parseInt(pathfindStartYField.getText())),
                 new Coord(Integer.parseInt(pathfindGoalXField.getText()),
                         Integer.parseInt(pathfindGoalYField.getText())),
-                simpleMap, pathfindErrorLabel,
+                getSimplificationCoefficient(), pathfindErrorLabel,
                 (String) pathfindAlgorithmSelector.getSelectedItem());
         
         pf.execute();  
@@ -4671,8 +4688,8 @@ public class RemoteMapper extends javax.swing.JFrame {
             pathfindStartYField.setEnabled(false);
             
             // Convert position to simplified map
-            int x = (int) Math.ceil(rover.getX() / Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM));
-            int y = (int) Math.ceil(rover.getY() / Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM));
+            int x = (int) Math.ceil(rover.getX() / (double) getSimplificationCoefficient());
+            int y = (int) Math.ceil(rover.getY() / (double) getSimplificationCoefficient());
             
             pathfindStartXField.setText(Integer.toString(x));
             pathfindStartYField.setText(Integer.toString(y));
@@ -5281,19 +5298,26 @@ public class RemoteMapper extends javax.swing.JFrame {
         loadingScreen.dispose();
     }
     
-    private WebView fullMapView;
-    private WebView simpleMapView;
+    private MovingMapView fullMapView;
+    private MovingMapView simpleMapView;
+    private volatile RenderScheduler movingMapRenderer;
+    
+    /* State of the next frame of the moving maps, set by prepareMovingMaps() */
+    private int frameX, frameY, frameSimpleX, frameSimpleY;
+    private CharMap frameMap, frameSimpleMap;
+    private final Object frameLock = new Object();
     
     private void initFX(JFXPanel fxPanel, JFXPanel fxPanel2) {
         // This method is invoked on the JavaFX thread
-        fullMapView = new WebView();
-        simpleMapView = new WebView();
+        fullMapView = new MovingMapView(MOVING_MAP_WIDTH, MOVING_MAP_HEIGHT, MOVING_MAP_NODE_SIZE);
+        simpleMapView = new MovingMapView(MOVING_MAP_SWIDTH, MOVING_MAP_SHEIGHT, MOVING_MAP_SNODE_SIZE);
+        movingMapRenderer = new RenderScheduler(MOVING_MAP_FPS, this::prepareMovingMaps, this::drawMovingMaps, Platform::runLater);
         
         final Scene fullMapScene = new Scene(new Group());
         final Scene simpleMapScene = new Scene(new Group());
         
-        fullMapScene.setRoot(fullMapView);
-        simpleMapScene.setRoot(simpleMapView);
+        fullMapScene.setRoot(fullMapView.getRoot());
+        simpleMapScene.setRoot(simpleMapView.getRoot());
         
         fxPanel.setScene(fullMapScene);
         fxPanel2.setScene(simpleMapScene);
@@ -5307,6 +5331,53 @@ public class RemoteMapper extends javax.swing.JFrame {
         urs.execute();
     }
     
+    /**
+     * Ask for the moving maps to be drawn again. Bursts of requests are
+     * merged into at most one frame every 1 / MOVING_MAP_FPS seconds.
+     */
+    private void requestMovingMapRender ()
+    {
+        RenderScheduler renderer = movingMapRenderer;
+        if (renderer != null)
+        {
+            renderer.requestRender();
+        }
+    }
+    
+    /**
+     * Bring the simplified map up to date and take the rover's position for
+     * the next frame. Runs on the render scheduler's thread.
+     */
+    private void prepareMovingMaps ()
+    {
+        int x = rover.getX();
+        int y = rover.getY();
+        
+        simpleMap = simplified.get(getSimplificationCoefficient());
+        
+        synchronized (frameLock)
+        {
+            frameX = x;
+            frameY = y;
+            frameSimpleX = (int) Math.ceil(x / (double) getSimplificationCoefficient());
+            frameSimpleY = (int) Math.ceil(y / (double) getSimplificationCoefficient());
+            frameMap = map;
+            frameSimpleMap = simpleMap;
+        }
+    }
+    
+    /**
+     * Draw the frame prepared last. Runs on the JavaFX thread.
+     */
+    private void drawMovingMaps ()
+    {
+        synchronized (frameLock)
+        {
+            fullMapView.update(frameMap, frameX, frameY);
+            simpleMapView.update(frameSimpleMap, frameSimpleX, frameSimpleY);
+        }
+    }
+    
     /**
      * Load the main window.
      */
@@ -5332,7 +5403,8 @@ public class RemoteMapper extends javax.swing.JFrame {
         TimeKeeper tk = new TimeKeeper (clock);
         tk.execute();
         
-        AutoSaver as = new AutoSaver (map, mapFile, presetFile);
+        journal = new MapJournal (map, mapFile);
+        AutoSaver as = new AutoSaver (journal);
         as.execute();
         
         // Setup formatted textfields / documentListeners
@@ -5407,7 +5479,8 @@ public class RemoteMapper extends javax.swing.JFrame {
         propertiesPage.setAlwaysOnTop(true);
         squareBoundsPanel.setVisible(false);
         
-        simpleMap = CharMap.simplfyMap(map, (int) Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM));
+        simplified = new SimplifiedMapCache(map);
+        simpleMap = simplified.get(getSimplificationCoefficient());
         updateMapInformation();
         
         // Set preset button texts
@@ -5477,21 +5550,126 @@ public class RemoteMapper extends javax.swing.JFrame {
      * @param path 
      */
     public void displayFoundRoute (Node[] path)
+    {
+        displayFoundRoute(path, simpleMap, getSimplificationCoefficient());
+    }
+    
+    /**
+     * Display a route found on a specified map.
+     * 
+     * @param path
+     * @param on the map the path was found on
+     * @param scale points of the full map a point of that map spans, 1 for
+     *        the full map itself
+     */
+    public void displayFoundRoute (Node[] path, CharMap on, int scale)
     {
         resetPathfinder();
         previewRouteButton.setEnabled(true);
         
-        route = new Route(simpleMap, path, routeMarkField.getText().charAt(0));
+        route = new Route(on, path, routeMarkField.getText().charAt(0));
         
-        String rd = Long.toString(Math.round(route.getDistance() * (rover.getFlatDiagonal() / CONVERSION_CM_MM)));
+        String rd = Long.toString(Math.round(route.getDistance() * scale));
         routeDistanceLabel.setText(rd);
         routeDistanceLabel.setToolTipText(rd);
         
-        String rd2 = Long.toString(Math.round(route.getDisplacement() * (rover.getFlatDiagonal() / CONVERSION_CM_MM)));
+        String rd2 = Long.toString(Math.round(route.getDisplacement() * scale));
         routeDisplacementLabel.setText(rd2);
         routeDisplacementLabel.setToolTipText(rd2);
     }
     
+    /**
+     * Get the HPA* pathfinder of a map. Its abstraction is kept between
+     * searches and follows edits of the map, so it is only rebuilt when
+     * searching on a different map. The simplified map stays the same map
+     * while the simplification coefficient does, and passes the blocks that
+     * changed on to it, so edits only rebuild the clusters around them.
+     * 
+     * @param map
+     * @return 
+     */
+    private synchronized HierarchicalPathfinder getHierarchicalPathfinder (CharMap map)
+    {
+        if (hpa == null || hpa.getMap() != map)
+        {
+            if (hpa != null)
+            {
+                hpa.dispose();
+            }
+            hpa = new HierarchicalPathfinder(map);
+        }
+        
+        return hpa;
+    }
+    
+    /**
+     * Get the pyramid of the full map for coarse-to-fine planning. It
+     * follows edits of the map, so it is only built again when the map is
+     * replaced.
+     * 
+     * @return 
+     */
+    private synchronized MapPyramid getMapPyramid ()
+    {
+        if (pyramid == null || pyramid.getMap() != map)
+        {
+            if (pyramid != null)
+            {
+                pyramid.dispose();
+            }
+            pyramid = new MapPyramid(map);
+        }
+        
+        return pyramid;
+    }
+    
+    /**
+     * Get the distance field of the full map, reaching far enough to tell
+     * where the rover fits. It follows edits of the map, so it is only
+     * computed again when the map is replaced or the rover grows.
+     * 
+     * @param radius the rover's radius in map points
+     * @return 
+     */
+    private synchronized DistanceField getDistanceField (double radius)
+    {
+        if (clearance == null || clearance.getMap() != map || clearance.getMaxDistance() < radius)
+        {
+            if (clearance != null)
+            {
+                clearance.dispose();
+            }
+            clearance = new DistanceField(map, 2 * radius);
+        }
+        
+        return clearance;
+    }
+    
+    /**
+     * Get the D* Lite planner, moved to the specified map. The simplified
+     * map stays the same map while the simplification coefficient does and
+     * reports the blocks that changed to the planner, so as long as the goal
+     * stays the same the next search only replans around them. A different
+     * map, after the coefficient changed, is compared with the planner's
+     * snapshot instead.
+     * 
+     * @param map
+     * @return 
+     */
+    private synchronized DStarLite getDStarLite (CharMap map)
+    {
+        if (dstar == null)
+        {
+            dstar = new DStarLite(map);
+        }
+        else
+        {
+            dstar.setMap(map);
+        }
+        
+        return dstar;
+    }
+    
     /**
      * Reset the pathfinding GUI after looking for a path.
      */
@@ -5500,24 +5678,41 @@ public class RemoteMapper extends javax.swing.JFrame {
         findPathButton.setEnabled(true);
     }
     
+    /**
+     * Get the length of a block of the map that becomes one point of the
+     * simplified map: the rover's diagonal in map points, rounded up.
+     * 
+     * @return 
+     */
+    private int getSimplificationCoefficient ()
+    {
+        return (int) Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM);
+    }
+    
+    /**
+     * 
+     * @return radius of the disc the rover fits in, in points of the full
+     *         map
+     */
+    private double getRoverRadius ()
+    {
+        return rover.getFlatDiagonal() / CONVERSION_CM_MM / 2;
+    }
+    
     private void updateMapInformation()
     {
         // Update full-scale map details
         fullMapDetailsWidth.setText(Integer.toString(map.getWidth()));
         fullMapDetailsHeight.setText(Integer.toString(map.getLength()));
-        fullMapDetailsByteSize.setText(Integer.toString(
-            ((map.getWidth() * map.getLength() + 2) * Character.BYTES) / 1024)
-        );
+        fullMapDetailsByteSize.setText(Long.toString(map.getMemoryUsage() / 1024));
 
         // Update simple map details
         simpleMapDetailsSimplificationCoefficient.setText(Integer.toString(
-                ((int) (rover.getFlatDiagonal() / CONVERSION_CM_MM)) + 1)
+                getSimplificationCoefficient())
         );
         simpleMapDetailsWidth.setText(Integer.toString(simpleMap.getWidth()));
         simpleMapDetailsHeight.setText(Integer.toString(simpleMap.getLength()));
-        simpleMapDetailsByteSize.setText(Integer.toString(
-            ((simpleMap.getWidth() * simpleMap.getLength() + 2) * Character.BYTES)
-        ));
+        simpleMapDetailsByteSize.setText(Long.toString(simpleMap.getMemoryUsage()));
     }
 
     //<editor-fold>
@@ -5958,26 +6153,24 @@ public class RemoteMapper extends javax.swing.JFrame {
     */
     class AutoSaver extends SwingWorker<Void, Void>
     {
-        File mapFile, presetsFile;
-        CharMap map;
-        SaveWorkspace sm;
+        MapJournal journal;
         static final int AUTOSAVE_INTERVAL = 20000;
         
-        public AutoSaver (CharMap map, File mapFile, File presetsFile)
+        /**
+         * Flushes the changes of the map to its journal. Presets are saved
+         * whenever they are changed, so they are not autosaved.
+         * 
+         * @param journal
+         */
+        public AutoSaver (MapJournal journal)
         {
-            this.mapFile = mapFile;
-            this.presetsFile = presetsFile;
-            this.map = map; 
+            this.journal = journal;
         }
 
         @Override
         @SuppressWarnings("SleepWhileInLoop")
         protected Void doInBackground()
         {
-            
-            sm = new SaveWorkspace (this.map, this.mapFile, presets, this.presetsFile);
-            sm.execute();
-            
             for (; ;)
             {
                 try 
@@ -5989,10 +6182,16 @@ public class RemoteMapper extends javax.swing.JFrame {
                     Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
                 }
                 
-                if (autoSaveCheckBox.isSelected() && !propertiesPage.isVisible() && sm.isDone() && mp == null)
+                if (autoSaveCheckBox.isSelected() && !propertiesPage.isVisible() && mp == null)
                 {
-                    sm = new SaveWorkspace (this.map, this.mapFile, presets, this.presetsFile);
-                    sm.execute();
+                    try
+                    {
+                        journal.flush();
+                    }
+                    catch (IOException ex)
+                    {
+                        Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
             }
         }   
@@ -6024,7 +6223,6 @@ public class RemoteMapper extends javax.swing.JFrame {
         @SuppressWarnings("null")
         public CharMap doInBackground() throws LoadWorkspaceException
         {
-            FileReader in = null;
             try 
             {
                 // Load command presets
@@ -6037,52 +6235,22 @@ public class RemoteMapper extends javax.swing.JFrame {
                     this.presets[e] = cps.get(e); // Load them in the correct order
                 }
                 
-                // Load map
-                in = new FileReader(this.mapFile);
-                int c, y = 0;
-                
-                // Buffer map
-                ArrayList<ArrayList<Character>> b = new ArrayList();
-                b.add(new ArrayList<>());
-                
-                char obM = (char) in.read();
-                in.skip(1);
-                char esM = (char) in.read();
-                in.skip(1);
-                
-                int i = 4;
+                // A save the last session could not put in place
+                MapFiles.applyPending(this.mapFile);
                 
-                while ((c = in.read()) != -1)
+                // Map files with rows of equal length are not read at all
+                if (!MapFiles.isBinary(this.mapFile))
                 {
-                    if (c == '\n')
+                    CharMap mapped = CharMap.openMapped(this.mapFile);
+                    if (mapped != null)
                     {
-                        y++;
-                        b.add(new ArrayList<>());
+                        publish ((int) this.mapFile.length());
+                        return replayJournal(mapped);
                     }
-                    else
-                    {
-                        b.get(y).add((char) c);
-                    }
-                    
-                    if (++i % 100 == 0)
-                        publish (i);
-                }   
-                in.close();
-                
-                int capX = b.get(0).size() + 1;
-                int capY = b.size() -1;
-                char[][] m = new char[capY][capX];
-                
-                for (y = 0; y < capY; y++)
-                {
-                    for (int x = 0; x < capX - 1; x++)
-                    {
-                        m[y][x] = b.get(y).get(x);
-                    }
-                    m[y][capX - 1] = 10;
-                }   
+                }
                 
-                return new CharMap (m, obM, esM);
+                // Load map
+                return replayJournal(MapLoader.load(this.mapFile, bytes -> publish(bytes)));
             }
             catch (FileNotFoundException ex)
             {
@@ -6092,21 +6260,19 @@ public class RemoteMapper extends javax.swing.JFrame {
             {
                 Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
             }
-            finally
-            {
-                try 
-                {
-                    in.close();
-                }
-                catch (IOException ex)
-                {
-                    Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
             
             throw new LoadWorkspaceException();
         }
         
+        /**
+         * Apply the changes autosaved since the map file was last saved.
+         */
+        private CharMap replayJournal (CharMap m) throws IOException
+        {
+            MapJournal.replay(m, this.mapFile);
+            return m;
+        }
+        
         @Override
         public void done ()
         {
@@ -6166,8 +6332,6 @@ public class RemoteMapper extends javax.swing.JFrame {
             
             savingWorkspace = true;
             
-            FileWriter mapFileWriter = null;
-            
             try
             {
                 // Save commandPresets:
@@ -6180,29 +6344,17 @@ public class RemoteMapper extends javax.swing.JFrame {
                 }
                 
                 // Save map
-                final char[][] d = RemoteMapper.this.map.getMap();
+                final CharMap m = RemoteMapper.this.map;
                 
                 // Set jProgressBar max value
                 if (jpb != null)
-                    jpb.setMaximum(d.length * d[0].length);
+                    jpb.setMaximum(m.getLength());
                 
-                mapFileWriter = new FileWriter(this.mapFile.getCanonicalPath(), false);
-                
-                // Write markers
-                mapFileWriter.write (String.valueOf(RemoteMapper.this.map.getObsticalMark()) + "\n");
-                mapFileWriter.write (String.valueOf(RemoteMapper.this.map.getEmptySpaceMark()) + "\n");
-                
-                int i = 0;
-                // Write map raw data
-                for (char[] d1 : d) {
-                    for (int x = 0; x < d1.length; x++) {
-                        mapFileWriter.write(d1[x]);
-                        publish (++i);
-                    }
-                }
-                
-                mapFileWriter.flush();
-                mapFileWriter.close();
+                // A full save makes the journal unnecessary
+                if (journal != null && journal.isJournalOf(this.mapFile))
+                    journal.compact(rows -> publish(rows));
+                else
+                    MapFiles.save(m, this.mapFile, rows -> publish(rows));
                 
                 // Configure window components
                 if (log != null)
@@ -6218,17 +6370,6 @@ public class RemoteMapper extends javax.swing.JFrame {
             { 
                 Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
             }
-            finally
-            {
-                try 
-                {
-                    mapFileWriter.close();
-                }
-                catch (IOException ex)
-                {
-                    Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
             return null;
         }
         
@@ -6260,6 +6401,14 @@ public class RemoteMapper extends javax.swing.JFrame {
             
             if (closing)
             {
+                try
+                {
+                    MapFiles.writeChecksum(RemoteMapper.this.map, this.mapFile);
+                }
+                catch (IOException ex)
+                {
+                    Logger.getLogger(RemoteMapper.class.getName()).log(Level.SEVERE, null, ex);
+                }
                 System.exit(0);
             }
         }
@@ -6273,14 +6422,21 @@ public class RemoteMapper extends javax.swing.JFrame {
     {
         private final Coord start, goal;
         private JLabel display;
-        private final CharMap map;
+        private final int coefficient;
         private final String algorithm;
         
-        public Pathfinder (Coord start, Coord goal, CharMap map, String algorithm)
+        /**
+         * The map the path was found on and the points of the full map one
+         * of its points spans. Set by doInBackground, read in done.
+         */
+        private CharMap routeMap;
+        private int scale;
+        
+        public Pathfinder (Coord start, Coord goal, int coefficient, String algorithm)
         {
             this.start = start;
             this.goal = goal;
-            this.map = map;
+            this.coefficient = coefficient;
             this.algorithm = algorithm;
         }
         
@@ -6288,15 +6444,16 @@ public class RemoteMapper extends javax.swing.JFrame {
          * 
          * @param start
          * @param goal
-         * @param map CharMap to search for route on
+         * @param coefficient simplification coefficient of the map to search
+         *        for route on
          * @param display 
          */
-        public Pathfinder (Coord start, Coord goal, CharMap map, JLabel display, String algorithm)
+        public Pathfinder (Coord start, Coord goal, int coefficient, JLabel display, String algorithm)
         {
             this.start = start;
             this.goal = goal;
             this.display = display;
-            this.map = map;
+            this.coefficient = coefficient;
             this.algorithm = algorithm;
         }
 
@@ -6305,11 +6462,60 @@ public class RemoteMapper extends javax.swing.JFrame {
             if (display != null)
                 display.setText("Pathfinding...");
             
+            switch (algorithm)
+            {
+                case "A* (coarse-to-fine)":
+                    // Searches the full map, kept as clear of obstacles as the clearance search, so the route is on the full map
+                    final MapPyramid levels = getMapPyramid();
+                    routeMap = levels.getMap();
+                    scale = 1;
+                    return CoarseToFinePlanner.search(levels, getDistanceField(getRoverRadius()).clearOf(getRoverRadius()), coefficient, new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
+                case "A* (clearance)":
+                    // Searches the full map and keeps to the gaps it finds there, so the route is on the full map
+                    final DistanceField field = getDistanceField(getRoverRadius());
+                    routeMap = field.getMap();
+                    scale = 1;
+                    return ClearancePlanner.search(field, getRoverRadius(), coefficient, new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
+                default:
+                    // The simplified map is not updated while it is searched
+                    return simplified.read(coefficient, this::search);
+            }
+        }
+        
+        /**
+         * Look for the path on the simplified map.
+         */
+        private Node[] search (CharMap map)
+        {
+            // A copy, the route is made from it after the map may have been updated again
+            routeMap = new CharMap(map);
+            scale = coefficient;
+            
             switch (algorithm)
             {
                 case "A*":
                     return map.Astar(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
                     
+                case "A* (8-way)":
+                    return map.Astar(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()), true);
+                    
+                case "A* (bidirectional)":
+                    return BidirectionalAstar.search(map, new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
+                case "Theta*":
+                    return map.ThetaStar(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
+                case "JPS":
+                    return map.JPS(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
+                case "HPA*":
+                    return getHierarchicalPathfinder(map).search(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
+                case "D* Lite":
+                    return getDStarLite(map).search(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
+                    
                 default:
                     return map.Astar(new Node(start.getX(), start.getY()), new Node(goal.getX(), goal.getY()));
             }
@@ -6333,7 +6539,7 @@ public class RemoteMapper extends javax.swing.JFrame {
                 if (path != null)
                 {
                     display.setText("Route found!");
-                    displayFoundRoute(path);
+                    displayFoundRoute(path, routeMap, scale);
                 }
                     else
                 {
@@ -6400,124 +6606,34 @@ public class RemoteMapper extends javax.swing.JFrame {
         
         @Override
         protected Void doInBackground() {
-            /* Update rover status and maps */
+            /* Update rover status */
             rover.setX(x);
             rover.setY(y);
             rover.setDirection((float) angle);
             
-            /* Update rover position labels */
-            statusPosX.setText(Integer.toString(x));
-            statusPosY.setText(Integer.toString(y));
-            statusPosHeading.setText(Double.toString(angle));
-            
-            /* Update simpleMap */
-            simpleMap = CharMap.simplfyMap(map, (int) Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM));
-            
-            int simpleX = (int) Math.ceil(x / Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM));
-            int simpleY = (int) Math.ceil(y / Math.ceil(rover.getFlatDiagonal() / CONVERSION_CM_MM));
-            
-            Platform.runLater(() -> {
-                updateMovingMap(x, y, map, MOVING_MAP_WIDTH, MOVING_MAP_HEIGHT, fullMapView, MOVING_MAP_NODE_SIZE);
-                updateMovingMap(simpleX, simpleY, simpleMap, MOVING_MAP_SWIDTH, MOVING_MAP_SHEIGHT, simpleMapView, MOVING_MAP_SNODE_SIZE);
-            });
-            
             return null;
         }
         
-        @SuppressWarnings("LocalVariableHidesMemberVariable")
-        private void updateMovingMap(int posX, int posY, CharMap map, int movingMapWidth, int movingMapHeight, WebView view, float nodeSize)
-        {
-            int queryX = posX - (int) Math.floor(movingMapWidth / 2);
-            int queryY = posY - (int) Math.floor(movingMapHeight / 2);
-            
-            int queryLength = movingMapWidth;
-            int queryHeight = movingMapHeight;
-            
-            if (queryX < 1)
-            {
-                queryLength -= (1 - queryX);
-                queryX = 1;
-            }
-            
-            if (queryY < 1)
-            {
-                queryHeight -= (1 - queryY);
-                queryY = 1;
-            }
-            
-            if (queryX + queryLength > map.getWidth())
-            {
-                queryLength = map.getWidth() - queryX;
-            }
-            
-            if (queryY + queryHeight > map.getLength())
-            {
-                queryHeight = map.getLength() - queryY;
-            }
-            
-            char[][] fullMap = new char[movingMapHeight][movingMapWidth];
-            char[][] fullMSegment = map.getPointRectangle(queryX, queryY, queryLength, queryHeight);
-            
-            for (char[] fullMap1 : fullMap)
-            {
-                for (int x = 0; x < fullMap[0].length; x++)
-                {
-                    fullMap1[x] = '@';
-                }
-            }
-            
-            for (int y = 0; y < fullMSegment.length; y++)
-            {
-                for (int x = 0; x < fullMSegment[0].length; x++)
-                {
-                    fullMap[y + queryY - posY + ((int) movingMapHeight / 2)][x + queryX - posX + ((int) movingMapWidth / 2)] = fullMSegment[y][x];
-                }
-            }
+        @Override
+        protected void done() {
+            /* Grow the map on the event dispatch thread, which makes all
+               other edits too */
+            boolean grown = map.growToInclude(x, y);
             
-            view.getEngine().loadContent(getHTML(fullMap, map.getObsticalMark(), map.getEmptySpaceMark(), nodeSize));
-        }
-        
-        @SuppressWarnings("LocalVariableHidesMemberVariable")
-        private String getHTML(char[][] data, char obsticalMark, char emptyMark, float nodeSize)
-        {
-            StringBuilder sb = new StringBuilder("<html>" + 
-                "<style> .node {" +
-                "height: "+ nodeSize +"px;" +
-                "width: "+ nodeSize +"px;" +
-                "background-color: green;" + 
-                "line-height: " + nodeSize + "px;" +
-                "display: table-cell;" +
-                "}" +
-                "</style>"
-            );
+            /* Update rover position labels */
+            statusPosX.setText(Integer.toString(x));
+            statusPosY.setText(Integer.toString(y));
+            statusPosHeading.setText(Double.toString(angle));
             
-            for (int y = 0; y < data.length; y++)
+            if (grown)
             {
-                for (int x = 0; x < data[0].length; x++)
-                {
-                    if (data[y][x] == obsticalMark)
-                    {
-                        sb.append("<div class=\"node\" style=\"background-color: red;\"></div>");
-                    }
-                    else if (data[y][x] != emptyMark)
-                    {
-                        sb.append("<div class=\"node\" style=\"background-color: yellow;\"></div>");
-                    }
-                    else
-                    {
-                        sb.append(MOVING_MAP_NODE);
-                    }
-                }
-                
-                if (y != data.length - 1)
-                {
-                    sb.append("<div class=\"node\" style=\"display: inline;\"></div>");
-                }
+                /* The labels show the simplified map's size too */
+                simpleMap = simplified.get(getSimplificationCoefficient());
+                updateMapInformation();
             }
             
-            sb.append("</font></html>");
-            
-            return sb.toString();
+            /* Update simpleMap and the moving maps with the next frame */
+            requestMovingMapRender();
         }
         
     }
@@ -19,10 +19,26 @@ package remotemapper.classes.mapping;
 
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import remotemapper.classes.mapping.pathfinding.GridAstar;
+import remotemapper.classes.mapping.pathfinding.JumpPointSearch;
+import remotemapper.classes.mapping.pathfinding.ThetaStar;
+import remotemapper.classes.mapping.storage.BitStorage;
+import remotemapper.classes.mapping.storage.MapStorage;
+import remotemapper.classes.mapping.storage.MappedFileStorage;
+import remotemapper.classes.mapping.storage.TiledStorage;
 
 /**
  *  CharMap.java - Java file defining a map using characters as points.
@@ -36,9 +52,15 @@ public final class CharMap
 {
 
     /**
-     * The character array containing the maps data.
+     * The points of the map. Every row of the map ends with a line
+     * separator after its last point, which is not stored.
+     *
+     * The storage is replaced when it has to widen, grow or take a new
+     * content, while other threads may be reading the map. A new storage is
+     * filled before it is published here, and every method reads this field
+     * once, so readers see either the old storage or the new one, whole.
      */
-    private char[][] map;
+    private volatile MapStorage storage;
 
     /**
      * A character defining an obstical on the map
@@ -49,9 +71,48 @@ public final class CharMap
      * A character defining empty space on the map
      */
     private final char emptySpaceMark;
+    
+    /**
+     * Penalties are stored as one byte per point, in steps of
+     * 1 / PENALTY_SCALE.
+     */
+    public static final double PENALTY_SCALE = 16;
+    
+    /**
+     * Largest penalty a point can carry.
+     */
+    public static final double MAX_PENALTY = 255 / PENALTY_SCALE;
+    
+    /**
+     * Maps of fewer points are simplified on the calling thread alone.
+     */
+    private static final long SIMPLIFY_PARALLEL_POINTS = 1 << 18;
+    
+    /**
+     * Listeners notified when the map changes.
+     */
+    private final List<MapChangeListener> listeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Cost of driving onto a point, indexed by the point's character. Null
+     * while only empty space is passable, at cost 1.
+     */
+    private double[] markCosts;
+    
+    /**
+     * Quantized extra cost of every point, row by row. Null while no point
+     * has a penalty.
+     */
+    private byte[] penalties;
+    
+    /**
+     * Counts every change made to the map, see getVersion().
+     */
+    private final AtomicLong version = new AtomicLong();
 	
     /**
-     * Create a new empty map.
+     * Create a new empty map. Only the parts of the map that are changed
+     * take memory, see TiledStorage.
      * 
      * @param xDim xDim int width of map
      * @param yDim yDim int height of map
@@ -60,45 +121,113 @@ public final class CharMap
      */
     public CharMap (int xDim, int yDim, char obM, char esM)
     {
-        this.map = new char[yDim][xDim + 1];
+        this.storage = new TiledStorage(xDim, yDim, esM);
 
         this.obsticalMark = obM;
         this.emptySpaceMark = esM;
-
-        for (int y = 0; y < yDim; y++)
-        {
-            for (int x = 0; x < xDim; x++)
-            {
-                    map[y][x] = emptySpaceMark;
-            }
-            map[y][xDim] = 10;
-        }
     }
 
     /**
      * Create a map object out of another map object.
-     * Used for copying maps.
+     * Used for copying maps. The copy does not share data or listeners
+     * with the original.
      * 
      * @param preloaded
      */
     public CharMap (CharMap preloaded)
     {
-        this(preloaded.getMap(), preloaded.getObsticalMark(), preloaded.getEmptySpaceMark());
+        this.storage = preloaded.storage.copy();
+        this.obsticalMark = preloaded.getObsticalMark();
+        this.emptySpaceMark = preloaded.getEmptySpaceMark();
+        
+        if (preloaded.markCosts != null)
+        {
+            this.markCosts = preloaded.markCosts.clone();
+        }
+        if (preloaded.penalties != null)
+        {
+            this.penalties = preloaded.penalties.clone();
+        }
     }
 	
     /**
-     * Create a map object outof a file containing a map
+     * Create a map object outof a file containing a map, of either format.
+     * See MapLoader.
      *
      * @param mapfile
      * @throws IOException
      */
     public CharMap (File mapfile) throws IOException
     {
-        this(parseMapfile(mapfile));
+        this(MapLoader.load(mapfile, null));
     }
 
     /**
-     * Create a new Map out of raw data.
+     * Create a map around an already filled storage.
+     * 
+     * @param storage
+     * @param obM
+     * @param esM 
+     */
+    CharMap (MapStorage storage, char obM, char esM)
+    {
+        this.storage = storage;
+        this.obsticalMark = obM;
+        this.emptySpaceMark = esM;
+    }
+    
+    /**
+     * Open a map file without reading it into memory. The map's points are
+     * read from and written to the file through a memory mapping, see
+     * MappedFileStorage.
+     * 
+     * @param mapfile
+     * @return the map, null if the file can not be mapped and has to be
+     *         read with CharMap(File) instead
+     * @throws IOException if the file can not be read, or
+     *         CorruptMapFileException if it does not match its checksum file
+     */
+    public static CharMap openMapped (File mapfile) throws IOException
+    {
+        final byte[] header = new byte[4];
+        
+        try (RandomAccessFile in = new RandomAccessFile(mapfile, "r"))
+        {
+            if (in.length() < header.length)
+            {
+                return null;
+            }
+            in.readFully(header);
+        }
+        
+        // Both markers must be single byte characters
+        if (header[0] < 0 || header[1] != '\n' || header[2] < 0 || header[3] != '\n')
+        {
+            return null;
+        }
+        
+        final char obM = (char) header[0];
+        final char esM = (char) header[2];
+        final MappedFileStorage st = MappedFileStorage.open(mapfile, header.length, esM);
+        if (st == null)
+        {
+            return null;
+        }
+        
+        MapFiles.verifyChecksum(mapfile);
+        if (st.isWritable())
+        {
+            // Changed in place from now on, see MapFiles.writeChecksum()
+            Files.deleteIfExists(MapFiles.getChecksumFile(mapfile).toPath());
+        }
+        
+        return new CharMap(st, obM, esM);
+    }
+    
+    /**
+     * Create a new Map out of raw data. The last column of every row is
+     * the line separator. The points are copied into the most compact
+     * storage that can hold them.
      * 
      * @param raw
      * @param obM
@@ -106,7 +235,7 @@ public final class CharMap
      */
     public CharMap (char[][] raw, char obM, char esM)
     {
-        this.map = raw;
+        this.storage = MapStorage.of(raw, raw[0].length - 1, esM, obM);
         this.obsticalMark = obM;
         this.emptySpaceMark = esM;
     }
@@ -117,96 +246,260 @@ public final class CharMap
      * @param start
      * @param goal
      * @return
+     * @see GridAstar
      */
     public Node[] Astar (Node start, Node goal)
     {
-        List<Node> openList = new ArrayList<>();
-        List<Node> closedList = new ArrayList<>();
+        return GridAstar.search(this, start, goal);
+    }
+    
+    /**
+     * Pathfind using A*, optionally allowing diagonal steps. Diagonal steps
+     * never cut the corner of an obstical. Returns null if no path found.
+     * 
+     * @param start
+     * @param goal
+     * @param diagonal true for an 8-connected search
+     * @return
+     * @see GridAstar
+     */
+    public Node[] Astar (Node start, Node goal, boolean diagonal)
+    {
+        return GridAstar.search(this, start, goal, diagonal);
+    }
+    
+    /**
+     * Pathfind using Theta*. The path is made of straight segments at any
+     * angle, only their end points are returned. Returns null if no path
+     * found.
+     * 
+     * @param start
+     * @param goal
+     * @return
+     * @see ThetaStar
+     */
+    public Node[] ThetaStar (Node start, Node goal)
+    {
+        return ThetaStar.search(this, start, goal);
+    }
+    
+    /**
+     * Pathfind using Jump Point Search. Finds a path as short as the one
+     * found by A*, while expanding far fewer nodes on open maps. Returns null
+     * if no path found.
+     * 
+     * @param start
+     * @param goal
+     * @return
+     * @see JumpPointSearch
+     */
+    public Node[] JPS (Node start, Node goal)
+    {
+        return JumpPointSearch.search(this, start, goal);
+    }
+    
+    /**
+     * A method for simplifying a map with a given length. If the map has
+     * traversal costs, every point of the simplified map is as expensive as
+     * the most expensive passable point it covers.
+     * 
+     * Every row of the map is read once, 64 points at a time, and its
+     * obstacles ORed into the row of the simplified map it falls into. The
+     * rows of the simplified map are split across the ForkJoinPool this is
+     * called from, or the common pool.
+     * 
+     * @param in
+     * @param w
+     * @return
+     */
+    public static CharMap simplfyMap (CharMap in, int w)
+    {
+        final int width = in.getWidth() / w;
+        final int length = in.getLength() / w;
 
-        start.setG(0);
-        start.setF(start.getG() + start.heuristic(goal));
-        openList.add(start);
+        // Every row of the simplified map has words of its own, so rows can
+        // be written from different threads
+        final BitStorage out = new BitStorage(width, length, in.getEmptySpaceMark(), in.getObsticalMark());
+        final CharMap s = new CharMap(out, in.getObsticalMark(), in.getEmptySpaceMark());
+        final boolean weighted = !in.hasUniformCost();
 
-        while (!openList.isEmpty())
+        if (weighted)
         {
-            Node current = Node.getLowestF(openList.toArray(new Node[openList.size()]));
-            
-            if (current.equals(goal))
+            s.penalties = new byte[length * s.getWidth()];
+        }
+
+        if (length > 0 && width > 0)
+        {
+            // Small maps are not worth handing to other threads
+            final long points = (long) in.getWidth() * in.getLength();
+            final int rows = points < SIMPLIFY_PARALLEL_POINTS ? length
+                : Math.max(1, length / (4 * ForkJoinPool.getCommonPoolParallelism()));
+
+            new SimplifyRows(in, s, out, w, 0, length, rows).invoke();
+        }
+
+        if (weighted)
+        {
+            boolean any = false;
+            for (byte p : s.penalties)
             {
-                goal.setParent(current);
-                return Node.constructPath (goal);
+                any |= p != 0;
             }
+            if (!any)
+            {
+                s.penalties = null;
+            }
+        }
 
-            openList.remove(current);
-            closedList.add(current);
+        return s;
+    }
+
+    /**
+     * Simplifies rows lo (inclusive) to hi (exclusive) of a simplified map,
+     * splitting them in half until at most grain rows are left.
+     */
+    private static final class SimplifyRows extends RecursiveAction
+    {
+        private final CharMap in;
+        private final CharMap s;
+        private final BitStorage out;
+        private final int w;
+        private final int lo, hi, grain;
 
-            for (Node n : Node.neighbors(current, this, this.emptySpaceMark))
+        SimplifyRows (CharMap in, CharMap s, BitStorage out, int w, int lo, int hi, int grain)
+        {
+            this.in = in;
+            this.s = s;
+            this.out = out;
+            this.w = w;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            if (hi - lo > grain)
+            {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new SimplifyRows(in, s, out, w, lo, mid, grain),
+                    new SimplifyRows(in, s, out, w, mid, hi, grain));
+                return;
+            }
+
+            final MapStorage st = in.storage;
+            final char obM = in.obsticalMark;
+            final int words = st.getWordsPerRow();
+            final long[] acc = new long[words];
+
+            for (int y = lo; y < hi; y++)
             {
-                if (!Node.containsNode (closedList.toArray(new Node[closedList.size()]), n))
+                Arrays.fill(acc, 0);
+
+                // Once every block of the row holds an obstacle the rest of
+                // its rows can not change it, which on crowded maps happens
+                // after a row or two
+                int check = 1;
+                for (int r = 1; r <= w; r++)
                 {
-                    n.setF(n.getG() + n.heuristic(goal));
+                    st.orMatchRow(y * w + r - 1, obM, acc);
 
-                    if (!Node.containsNode(openList.toArray(new Node[openList.size()]), n))
+                    if (r == check || r == w)
                     {
-                        openList.add(n);
+                        if (markBlocks(acc, y) == out.getWidth())
+                        {
+                            break;
+                        }
+                        check <<= 1;
                     }
-                    else
+                }
+
+                if (s.penalties != null)
+                {
+                    for (int x = 0; x < out.getWidth(); x++)
                     {
-                        Node openNeighbor;
-                        openNeighbor = openList.get(Node.containsNodeIndex(
-                                openList.toArray(new Node[openList.size()]), n));
-                        if (n.getG() < openNeighbor.getG())
+                        if (!out.isSet(x, y))
                         {
-                            openNeighbor.setG(n.getG());
-                            openNeighbor.setParent(n.getParent());
+                            penalizeBlock(in, s, x, y, w);
                         }
                     }
                 }
             }
         }
 
-        return null;
+        /**
+         * Mark the blocks of a row of the simplified map holding an obstacle
+         * in acc. The last block of a row may cover the line separators,
+         * which never hold an obstacle.
+         *
+         * @return number of blocks of the row holding an obstacle
+         */
+        private int markBlocks (long[] acc, int y)
+        {
+            for (int i = 0; i < acc.length; i++)
+            {
+                long word = acc[i];
+                while (word != 0)
+                {
+                    final int x = (i << 6) + Long.numberOfTrailingZeros(word);
+                    if (x / w >= out.getWidth())
+                    {
+                        break;
+                    }
+                    out.set(x / w, y, in.obsticalMark);
+
+                    // Skip the rest of the block
+                    final int next = (x / w + 1) * w;
+                    if (next >= (i + 1) << 6)
+                    {
+                        break;
+                    }
+                    word &= -1L << next;
+                }
+            }
+
+            int marked = 0;
+            for (int i = 0; i < out.getWordsPerRow(); i++)
+            {
+                marked += Long.bitCount(out.getWord(y, i));
+            }
+            return marked;
+        }
     }
     
     /**
-     * A method for simplifying a map with a given length.
+     * Set the penalty of a point of a simplified map to the cost of the most
+     * expensive passable point of the block it covers, less 1.
      * 
-     * @param in
-     * @param w
-     * @return
+     * @param in the map
+     * @param s map simplified from in
+     * @param x x coordinate of the block, starting at 0
+     * @param y y coordinate of the block, starting at 0
+     * @param w simplification coefficient
      */
-    public static CharMap simplfyMap (CharMap in, int w)
+    static void penalizeBlock (CharMap in, CharMap s, int x, int y, int w)
     {
-        CharMap s = new CharMap((int) in.getWidth() / w, (int) in.getLength() / w, in.getObsticalMark(), in.getEmptySpaceMark());
-
-        int rY = in.getLength() % w;
-        int rX = in.getWidth() % w;
-
-        for (int y = 0; y < in.getLength() - rY; y += w)
+        double max = 1;
+        for (int y2 = 0; y2 < w; y2++)
         {
-            for (int x = 0; x < (int) in.getWidth() - rX; x += w)
+            for (int x2 = 0; x2 < w; x2++)
             {
-                char[] b = new char[w*w];
-                for (int y2 = 0; y2 < w; y2++)
+                double c = in.getCost(x * w + x2 + 1, y * w + y2 + 1);
+                if (c != Double.POSITIVE_INFINITY && c > max)
                 {
-                    for (int x2 = 0; x2 < w; x2++)
-                    {
-                        b[x2 + w * y2] = in.getMap()[y2 + y][x2 + x];
-                    }
-                }
-
-                if (new String (b).contains(Character.toString(in.obsticalMark)))
-                {
-                     s.setPoint(x / w + 1, y / w + 1, in.obsticalMark);
+                    max = c;
                 }
             }
         }
 
-        return s;
+        s.setPenalty(x + 1, y + 1, max - 1);
     }
     
     /**
-     * Save the contents of a map to a specified destination.
+     * Save the contents of a map to a specified destination in the text
+     * format. The file is replaced in one step once completely written. A
+     * map opened with openMapped() is only flushed if saved to its own file.
      * 
      * @param map
      * @param dest
@@ -214,35 +507,64 @@ public final class CharMap
      */
     public static void exportToFile(CharMap map, File dest) throws IOException
     {
-        final char[][] d = map.getMap();
+        exportToFile(map, dest, null);
+    }
+    
+    /**
+     * Save the contents of a map to a specified destination in the text
+     * format, reporting the progress.
+     * 
+     * @param map
+     * @param dest
+     * @param progress receives the number of rows written so far, may be
+     *        null
+     * @throws IOException
+     */
+    public static void exportToFile(CharMap map, File dest, IntConsumer progress) throws IOException
+    {
+        final MapStorage st = map.storage;
+        if (st instanceof MappedFileStorage
+            && ((MappedFileStorage) st).isBackedBy(dest))
+        {
+            // The file already holds the map, it only has to be flushed
+            ((MappedFileStorage) st).force();
+            return;
+        }
+        
+        final char[] row = new char[map.getWidth()];
         
-        try (FileWriter out = new FileWriter(dest, false)) 
+        MapFiles.writeText(dest, stream ->
         {
+            Writer out = new OutputStreamWriter(stream);
+            
             /* Write markers */
             out.write (String.valueOf(map.obsticalMark) + '\n');
             out.write (String.valueOf(map.emptySpaceMark) + '\n');
             
             /* Write map raw data */
-            for (char[] d1 : d) 
+            for (int y = 1; y <= map.getLength(); y++) 
             {
-                for (int x = 0; x < d1.length; x++) 
+                out.write(map.getRow(y, row));
+                
+                if (progress != null)
                 {
-                    out.write(d1[x]);
+                    progress.accept(y);
                 }
             }
             
             out.flush();
-        }
+        });
     }
-
+    
     /**
-     * A method for extracting a map out of a file.
+     * A method for extracting a map out of a text file one character at a
+     * time. Used for files MapLoader can not split into rows.
      * 
      * @param mapFile
      * @return
      * @throws IOException
      */
-    private static CharMap parseMapfile(File mapFile) throws IOException
+    static CharMap parseMapfile(File mapFile) throws IOException
     {
         int y;
         List<List<Character>> b;
@@ -381,7 +703,30 @@ public final class CharMap
      */
     public void setPoint (int x, int y, char val)
     {
-        map[y-1][x-1] = val;
+        MapStorage st = storage;
+        if (x == st.getWidth() + 1)
+        {
+            return; // Line separator
+        }
+        checkBounds(st, x, y);
+        
+        char old = st.get(x-1, y-1);
+        
+        if (old != val)
+        {
+            if (!st.set(x-1, y-1, val))
+            {
+                st = MapStorage.widen(st);
+                st.set(x-1, y-1, val);
+                storage = st;
+            }
+            version.incrementAndGet();
+            
+            for (MapChangeListener l : listeners)
+            {
+                l.pointChanged(this, x, y, old, val);
+            }
+        }
     }
 	
     /**
@@ -393,23 +738,363 @@ public final class CharMap
      */
     public char getPoint (int x, int y)
     {
-        return map[y-1][x-1];
+        final MapStorage st = storage;
+        if (x == st.getWidth() + 1)
+        {
+            return '\n';
+        }
+        checkBounds(st, x, y);
+        
+        return st.get(x-1, y-1);
+    }
+    
+    /**
+     * Throws the ArrayIndexOutOfBoundsException the map's char[][] threw
+     * before it was backed by a MapStorage, which callers still catch.
+     */
+    private static void checkBounds (MapStorage st, int x, int y)
+    {
+        if (x < 1 || y < 1 || x > st.getWidth() || y > st.getHeight())
+        {
+            throw new ArrayIndexOutOfBoundsException("Point " + x + ", " + y + " is outside of the map");
+        }
+    }
+    
+    /**
+     * Copy a row of the map, including the line separator at its end.
+     * 
+     * @param y the row's y coordinate
+     * @param dest array of at least getWidth() characters
+     * @return dest
+     */
+    public char[] getRow (int y, char[] dest)
+    {
+        final MapStorage st = storage;
+        st.getRow(y-1, dest);
+        dest[st.getWidth()] = '\n';
+        return dest;
     }
 	
     /**
+     * Check to see if the rover can drive through a point of the map.
+     * Points outside of the map are never passable.
+     * 
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return
+     */
+    public boolean isPassable (int x, int y)
+    {
+        final MapStorage st = storage;
+        return x > 0 && y > 0 && y <= st.getHeight() && x <= st.getWidth()
+                && getMarkCost(st.get(x-1, y-1)) != Double.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * Get the cost of driving onto a point of the map: the cost of the
+     * point's character plus the point's penalty. Never less than 1, so the
+     * Manhattan distance stays an admissible heuristic.
+     * 
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return the cost, infinity if the point is not passable
+     */
+    public double getCost (int x, int y)
+    {
+        final MapStorage st = storage;
+        if (x < 1 || y < 1 || y > st.getHeight() || x > st.getWidth())
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        
+        double cost = getMarkCost(st.get(x-1, y-1));
+        final byte[] p = penalties;
+        
+        if (p != null && cost != Double.POSITIVE_INFINITY)
+        {
+            cost += (p[(y-1) * (st.getWidth() + 1) + x-1] & 0xFF) / PENALTY_SCALE;
+        }
+        
+        return cost;
+    }
+    
+    /**
+     * Get a number that changes whenever the map does: a point, the size,
+     * the content as a whole, a mark's cost or a penalty. It is counted up
+     * after the change was made, so anything computed from the map after
+     * reading the version is at least as recent as that version.
+     * 
+     * @return
+     */
+    public long getVersion ()
+    {
+        return version.get();
+    }
+    
+    /**
+     * Check to see if every passable point costs the same to drive onto.
+     * Searches that only count steps give the cheapest paths on such maps.
+     * 
+     * @return
+     */
+    public boolean hasUniformCost ()
+    {
+        return markCosts == null && penalties == null;
+    }
+    
+    /**
+     * 
+     * @return true if a mark was given a cost, false while empty space is
+     *         the only passable character
+     */
+    boolean hasMarkCosts ()
+    {
+        return markCosts != null;
+    }
+    
+    /**
+     * Get the cost of driving onto a point with a specific character.
+     * 
+     * @param mark
+     * @return the cost, infinity if such points are not passable
+     */
+    public double getMarkCost (char mark)
+    {
+        if (markCosts == null)
+        {
+            return mark == emptySpaceMark ? 1 : Double.POSITIVE_INFINITY;
+        }
+        
+        return mark < markCosts.length ? markCosts[mark] : Double.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * Set the cost of driving onto points with a specific character, making
+     * for example gravel or mud passable but more expensive than empty
+     * space. Characters without a cost are not passable.
+     * 
+     * @param mark the character
+     * @param cost at least 1, infinity to make the character impassable
+     * @throws IllegalArgumentException if the cost is below 1, or the
+     *         character is the obstical mark or the line separator
+     */
+    public void setMarkCost (char mark, double cost)
+    {
+        if (!(cost >= 1) || mark == obsticalMark || mark == '\n')
+        {
+            throw new IllegalArgumentException("Invalid cost " + cost + " for mark '" + mark + "'");
+        }
+        
+        if (markCosts == null)
+        {
+            markCosts = new double[Math.max(mark, emptySpaceMark) + 1];
+            Arrays.fill(markCosts, Double.POSITIVE_INFINITY);
+            markCosts[emptySpaceMark] = 1;
+        }
+        else if (mark >= markCosts.length)
+        {
+            int n = markCosts.length;
+            markCosts = Arrays.copyOf(markCosts, mark + 1);
+            Arrays.fill(markCosts, n, markCosts.length, Double.POSITIVE_INFINITY);
+        }
+        
+        markCosts[mark] = cost;
+        version.incrementAndGet();
+        
+        for (MapChangeListener l : listeners)
+        {
+            l.mapReplaced(this);
+        }
+    }
+    
+    /**
+     * Get the extra cost of driving onto a point of the map.
+     * 
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return
+     */
+    public double getPenalty (int x, int y)
+    {
+        return penalties == null ? 0 : (penalties[(y-1) * getWidth() + x-1] & 0xFF) / PENALTY_SCALE;
+    }
+    
+    /**
+     * Add an extra cost to driving onto a point of the map. The penalty is
+     * rounded to the nearest 1 / PENALTY_SCALE and limited to MAX_PENALTY.
+     * Storing penalties takes one byte per point.
+     * 
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @param penalty the extra cost, 0 for none
+     */
+    public void setPenalty (int x, int y, double penalty)
+    {
+        int q = (int) Math.round(Math.min(Math.max(penalty, 0), MAX_PENALTY) * PENALTY_SCALE);
+        
+        if (penalties == null)
+        {
+            if (q == 0)
+            {
+                return;
+            }
+            penalties = new byte[getLength() * getWidth()];
+        }
+        
+        final int i = (y-1) * getWidth() + x-1;
+        if (penalties[i] == (byte) q)
+        {
+            return;
+        }
+        
+        penalties[i] = (byte) q;
+        version.incrementAndGet();
+        
+        for (MapChangeListener l : listeners)
+        {
+            l.penaltyChanged(this, x, y);
+        }
+    }
+    
+    /**
+     * Remove the penalties of every point. Listeners are told the map was
+     * replaced, as when a mark's cost changes.
+     */
+    public void clearPenalties ()
+    {
+        if (penalties == null)
+        {
+            return;
+        }
+        
+        penalties = null;
+        version.incrementAndGet();
+        
+        for (MapChangeListener l : listeners)
+        {
+            l.mapReplaced(this);
+        }
+    }
+	
+    /**
+     * Get a copy of the map's data, every row ending with a line separator.
+     * Changing the copy does not change the map.
      *
      * @return
      */
     public char[][] getMap() {
-            return map;
+        char[][] raw = new char[getLength()][getWidth()];
+        for (int y = 0; y < raw.length; y++)
+        {
+            getRow(y + 1, raw[y]);
+        }
+        return raw;
     }
 	
     /**
+     * Replace the map's data. The last column of every row is the line
+     * separator.
      *
      * @param map
      */
     public void setMap(char[][] map) {
-        this.map = map;
+        if (penalties != null && (map.length != getLength() || map[0].length != getWidth()))
+        {
+            penalties = null;
+        }
+        this.storage = MapStorage.of(map, map[0].length - 1, emptySpaceMark, obsticalMark);
+        version.incrementAndGet();
+        
+        for (MapChangeListener l : listeners)
+        {
+            l.mapReplaced(this);
+        }
+    }
+    
+    /**
+     * Take over the points and penalties of another map with the same
+     * marks, such as a newly simplified one, and tell listeners the map was
+     * replaced. The other map must not be used afterwards.
+     * 
+     * @param other
+     */
+    void replaceWith (CharMap other)
+    {
+        // Penalties first: readers that see the new storage see them too
+        penalties = other.penalties;
+        storage = other.storage;
+        version.incrementAndGet();
+        
+        for (MapChangeListener l : listeners)
+        {
+            l.mapReplaced(this);
+        }
+    }
+    
+    /**
+     * Grow the map to the right and to the bottom so that it contains a
+     * point, for example when the rover drove past its edge. The new points
+     * are empty space. Does nothing if the point is already on the map.
+     * 
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return true if the map grew
+     */
+    public boolean growToInclude (int x, int y)
+    {
+        if (x < 1 || y < 1)
+        {
+            throw new IndexOutOfBoundsException("Maps can not grow to point " + x + ", " + y);
+        }
+        final MapStorage st = storage;
+        if (x <= st.getWidth() && y <= st.getHeight())
+        {
+            return false;
+        }
+        
+        final TiledStorage grown = (st instanceof TiledStorage ? (TiledStorage) st
+                : new TiledStorage(st, emptySpaceMark)).grow(x, y);
+        
+        // Penalties first: readers that see the new storage see them too
+        if (penalties != null)
+        {
+            final int oldWidth = st.getWidth() + 1;
+            final int width = grown.getWidth() + 1;
+            byte[] p = new byte[grown.getHeight() * width];
+            for (int y2 = 0; y2 < st.getHeight(); y2++)
+            {
+                System.arraycopy(penalties, y2 * oldWidth, p, y2 * width, oldWidth - 1);
+            }
+            penalties = p;
+        }
+        storage = grown;
+        version.incrementAndGet();
+        
+        for (MapChangeListener l : listeners)
+        {
+            l.mapReplaced(this);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Register a listener to be notified when the map changes.
+     * 
+     * @param l
+     */
+    public void addMapChangeListener (MapChangeListener l)
+    {
+        listeners.add(l);
+    }
+    
+    /**
+     * 
+     * @param l 
+     */
+    public void removeMapChangeListener (MapChangeListener l)
+    {
+        listeners.remove(l);
     }
 	
     /**
@@ -418,7 +1103,7 @@ public final class CharMap
      */
     public int getWidth ()
     {
-        return this.map[0].length;
+        return storage.getWidth() + 1;
     }
 	
     /**
@@ -427,7 +1112,28 @@ public final class CharMap
      */
     public int getLength ()
     {
-        return this.map.length;
+        return storage.getHeight();
+    }
+    
+    /**
+     * Get the storage holding the map's points, for reading it in bulk.
+     * Points should only be changed through the map.
+     * 
+     * @return
+     */
+    public MapStorage getStorage ()
+    {
+        return storage;
+    }
+    
+    /**
+     * 
+     * @return approximate number of bytes of heap the map's points and
+     *         penalties take
+     */
+    public long getMemoryUsage ()
+    {
+        return storage.getMemoryUsage() + (penalties == null ? 0 : penalties.length);
     }
 
     /**
@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.util.BitSet;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+import remotemapper.classes.mapping.storage.MapStorage;
+
+/**
+ * Euclidean distance from every point of a map to the nearest point the
+ * rover can not drive onto, so a search on the map at full resolution can
+ * keep the rover's body clear of obstacles: its centre may go wherever the
+ * distance is at least the rover's radius.
+ *
+ * The distances are computed with the linear time transform of Felzenszwalb
+ * and Huttenlocher, first along the rows and then along the columns. Both
+ * passes are split into bands of rows or columns on the ForkJoinPool the
+ * field is used from, or the common pool. The space outside of the map
+ * counts as free.
+ *
+ * Distances are capped at a maximum, which keeps edits local: a changed
+ * point can only change the distances of points no further than the
+ * maximum from it. Edits mark the tiles of TILE_SIZE x TILE_SIZE points
+ * within that reach dirty, and before the next question each dirty tile is
+ * computed again from the part of the map around it. The field takes about
+ * 4 bytes per point.
+ *
+ * The tiles are never written once they are published: a dirty tile is
+ * computed into a new array, and the field is replaced by one holding the
+ * new tiles. Filters from clearOf() keep reading the field they were made
+ * from, so a search never sees a tile half computed. Edits only take a lock
+ * of their own to mark tiles dirty and do not wait for a refresh.
+ *
+ * @author Robert Hutter
+ */
+public final class DistanceField implements MapChangeListener
+{
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * Squared distance of a point no obstacle is in line with.
+     */
+    private static final float FAR = 1e20f;
+
+    /**
+     * Rows or columns a task of the full transform handles at least.
+     */
+    private static final int BAND = 64;
+
+    private final CharMap map;
+    private final float maxDistance;
+
+    /**
+     * The distances as of the last refresh, null before the first one.
+     */
+    private volatile Field field;
+
+    /**
+     * Tiles changed since the last refresh, and the size of the map they
+     * are counted in. Guarded by dirty.
+     */
+    private final BitSet dirty = new BitSet();
+    private int width, height, tilesX;
+    private boolean replaced = true;
+
+    /**
+     * Start following a map. The distances are computed when first asked
+     * for.
+     *
+     * @param map the map
+     * @param maxDistance largest distance worth knowing, points further
+     *        from every obstacle report this
+     */
+    public DistanceField (CharMap map, double maxDistance)
+    {
+        this.map = map;
+        this.maxDistance = (float) maxDistance;
+        map.addMapChangeListener(this);
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public void dispose ()
+    {
+        map.removeMapChangeListener(this);
+    }
+
+    /**
+     *
+     * @return the map
+     */
+    public CharMap getMap ()
+    {
+        return map;
+    }
+
+    /**
+     *
+     * @return largest distance reported
+     */
+    public double getMaxDistance ()
+    {
+        return maxDistance;
+    }
+
+    /**
+     * Get the distance from a point to the nearest point that is not
+     * passable.
+     *
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return distance in points, 0 for points that are not passable
+     *         themselves, at most getMaxDistance()
+     */
+    public double getDistance (int x, int y)
+    {
+        final Field f = refresh();
+
+        if (x < 1 || y < 1 || x > f.width || y > f.height)
+        {
+            return 0;
+        }
+        return f.get(x - 1, y - 1);
+    }
+
+    /**
+     * Check to see if a disc around a point is free of obstacles.
+     *
+     * @param x the disc's centre x coordinate
+     * @param y the disc's centre y coordinate
+     * @param radius the disc's radius in points, at most getMaxDistance()
+     * @return
+     */
+    public boolean isClear (int x, int y, double radius)
+    {
+        return getDistance(x, y) >= radius;
+    }
+
+    /**
+     * Get a filter for GridAstar that accepts the points a disc of a radius
+     * fits on without touching an obstacle. The filter keeps reading the
+     * distances as they are now, even if the map changes during the search,
+     * so it only suits searches that start before the map changes size.
+     *
+     * @param radius the disc's radius in points, at most getMaxDistance()
+     * @return tests the packed index (y - 1) * width + (x - 1) of a point,
+     *         with the width of the map including the line separators
+     */
+    public IntPredicate clearOf (double radius)
+    {
+        final Field f = refresh();
+        final int stride = f.width + 1;
+        final float r = (float) radius;
+
+        return i ->
+        {
+            final int y = i / stride;
+            final int x = i - y * stride;
+            return x < f.width && f.get(x, y) >= r;
+        };
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        if ((map.getMarkCost(oldVal) == Double.POSITIVE_INFINITY)
+            == (map.getMarkCost(newVal) == Double.POSITIVE_INFINITY))
+        {
+            return;
+        }
+
+        // Every point within reach may have a new nearest obstacle
+        final int reach = (int) Math.ceil(maxDistance);
+        synchronized (dirty)
+        {
+            if (replaced || x > width || y > height)
+            {
+                return;
+            }
+
+            final int tx0 = Math.max(0, x - 1 - reach) / TILE_SIZE;
+            final int ty0 = Math.max(0, y - 1 - reach) / TILE_SIZE;
+            final int tx1 = Math.min(width - 1, x - 1 + reach) / TILE_SIZE;
+            final int ty1 = Math.min(height - 1, y - 1 + reach) / TILE_SIZE;
+
+            for (int ty = ty0; ty <= ty1; ty++)
+            {
+                dirty.set(ty * tilesX + tx0, ty * tilesX + tx1 + 1);
+            }
+        }
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (dirty)
+        {
+            replaced = true;
+        }
+    }
+
+    /**
+     * Compute the dirty tiles again and publish the result.
+     *
+     * @return the field as of now
+     */
+    private synchronized Field refresh ()
+    {
+        final BitSet todo;
+        final int w, h;
+        synchronized (dirty)
+        {
+            // Changes made from here on are computed by the next refresh
+            if (replaced)
+            {
+                final MapStorage st = map.getStorage();
+                width = st.getWidth();
+                height = st.getHeight();
+                tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+                todo = null;
+            }
+            else if (dirty.isEmpty())
+            {
+                return field;
+            }
+            else
+            {
+                todo = (BitSet) dirty.clone();
+            }
+            dirty.clear();
+            replaced = false;
+            w = width;
+            h = height;
+        }
+
+        final Field f;
+        if (todo == null)
+        {
+            f = new Field(w, h);
+            for (int t = 0; t < f.tiles.length; t++)
+            {
+                f.tiles[t] = new float[TILE_SIZE * TILE_SIZE];
+            }
+            transform(f, 0, 0, w, h, 0, 0, w, h, true);
+        }
+        else
+        {
+            f = new Field(field);
+            final int reach = (int) Math.ceil(maxDistance);
+            for (int t = todo.nextSetBit(0); t >= 0; t = todo.nextSetBit(t + 1))
+            {
+                final int x0 = (t % f.tilesX) * TILE_SIZE;
+                final int y0 = (t / f.tilesX) * TILE_SIZE;
+                final int x1 = Math.min(w, x0 + TILE_SIZE);
+                final int y1 = Math.min(h, y0 + TILE_SIZE);
+
+                // The obstacles that can be nearest to a point of the tile
+                f.tiles[t] = new float[TILE_SIZE * TILE_SIZE];
+                transform(f, Math.max(0, x0 - reach), Math.max(0, y0 - reach),
+                    Math.min(w, x1 + reach), Math.min(h, y1 + reach), x0, y0, x1, y1, false);
+            }
+        }
+
+        field = f;
+        return f;
+    }
+
+    /**
+     * Compute the distances of the points in a rectangle from the obstacles
+     * in a larger one into the tiles of a field that is not published yet.
+     * Rectangles are 0 based, the lower edges inclusive and the upper ones
+     * exclusive.
+     *
+     * @param parallel split the work across the pool
+     */
+    private void transform (Field target, int ix0, int iy0, int ix1, int iy1, int ox0, int oy0, int ox1, int oy1, boolean parallel)
+    {
+        final int w = ix1 - ix0;
+        final int h = iy1 - iy0;
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        final float[] f = new float[w * h];
+
+        run(h, parallel, (lo, hi) ->
+        {
+            final boolean[] blocked = new boolean[w];
+            for (int y = lo; y < hi; y++)
+            {
+                obstacles(iy0 + y, ix0, blocked);
+                rowPass(blocked, f, y * w, w);
+            }
+        });
+
+        run(ox1 - ox0, parallel, (lo, hi) ->
+        {
+            final float[] column = new float[h];
+            final float[] out = new float[h];
+            final int[] v = new int[h];
+            final float[] z = new float[h + 1];
+
+            for (int x = ox0 - ix0 + lo; x < ox0 - ix0 + hi; x++)
+            {
+                for (int y = 0; y < h; y++)
+                {
+                    column[y] = f[y * w + x];
+                }
+                columnPass(column, out, h, v, z);
+
+                for (int y = oy0; y < oy1; y++)
+                {
+                    target.set(ix0 + x, y, Math.min((float) Math.sqrt(out[y - iy0]), maxDistance));
+                }
+            }
+        });
+    }
+
+    /**
+     * Find the points of a row the rover can not drive onto.
+     */
+    private void obstacles (int y, int x0, boolean[] blocked)
+    {
+        final MapStorage st = map.getStorage();
+
+        if (map.hasMarkCosts())
+        {
+            for (int x = 0; x < blocked.length; x++)
+            {
+                blocked[x] = map.getMarkCost(st.get(x0 + x, y)) == Double.POSITIVE_INFINITY;
+            }
+            return;
+        }
+
+        // Only empty space is passable
+        final char esM = map.getEmptySpaceMark();
+        for (int i = x0 >>> 6; i <= (x0 + blocked.length - 1) >>> 6; i++)
+        {
+            final long free = st.getMatchWord(y, i, esM);
+            final int from = Math.max(x0, i << 6);
+            final int to = Math.min(x0 + blocked.length, (i + 1) << 6);
+
+            for (int x = from; x < to; x++)
+            {
+                blocked[x - x0] = (free & (1L << x)) == 0;
+            }
+        }
+    }
+
+    /**
+     * Squared distance to the nearest obstacle in the same row.
+     */
+    private static void rowPass (boolean[] blocked, float[] f, int off, int w)
+    {
+        int last = -1;
+        for (int x = 0; x < w; x++)
+        {
+            if (blocked[x])
+            {
+                last = x;
+            }
+            f[off + x] = last < 0 ? FAR : (float) (x - last) * (x - last);
+        }
+
+        last = -1;
+        for (int x = w - 1; x >= 0; x--)
+        {
+            if (blocked[x])
+            {
+                last = x;
+            }
+            if (last >= 0)
+            {
+                f[off + x] = Math.min(f[off + x], (float) (last - x) * (last - x));
+            }
+        }
+    }
+
+    /**
+     * One dimensional transform of a sampled function: the lower envelope
+     * of the parabolas rooted at every sample.
+     *
+     * @param f squared distances within the rows
+     * @param d receives the squared distances
+     * @param n number of samples
+     * @param v scratch, the parabolas of the envelope
+     * @param z scratch, where each parabola of the envelope starts
+     */
+    static void columnPass (float[] f, float[] d, int n, int[] v, float[] z)
+    {
+        int k = 0;
+        v[0] = 0;
+        z[0] = Float.NEGATIVE_INFINITY;
+        z[1] = Float.POSITIVE_INFINITY;
+
+        for (int q = 1; q < n; q++)
+        {
+            double s;
+            while (true)
+            {
+                final int p = v[k];
+                s = ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * (q - p));
+                if (s > z[k] || k == 0)
+                {
+                    break;
+                }
+                k--;
+            }
+
+            if (s <= z[k])
+            {
+                // Replaces the first parabola of the envelope
+                v[0] = q;
+                z[0] = Float.NEGATIVE_INFINITY;
+                z[1] = Float.POSITIVE_INFINITY;
+                k = 0;
+                continue;
+            }
+
+            k++;
+            v[k] = q;
+            z[k] = (float) s;
+            z[k + 1] = Float.POSITIVE_INFINITY;
+        }
+
+        k = 0;
+        for (int q = 0; q < n; q++)
+        {
+            while (z[k + 1] < q)
+            {
+                k++;
+            }
+            final int p = v[k];
+            d[q] = (float) ((double) (q - p) * (q - p) + f[p]);
+        }
+    }
+
+    /**
+     * Distances of the points of a map in tiles of TILE_SIZE x TILE_SIZE,
+     * by rows of tiles. Points are 0 based.
+     */
+    private static final class Field
+    {
+        final int width, height, tilesX;
+        final float[][] tiles;
+
+        Field (int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+            this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.tiles = new float[tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE)][];
+        }
+
+        /**
+         * Create a field sharing the tiles of another one, to replace some
+         * of them.
+         */
+        Field (Field other)
+        {
+            this.width = other.width;
+            this.height = other.height;
+            this.tilesX = other.tilesX;
+            this.tiles = other.tiles.clone();
+        }
+
+        float get (int x, int y)
+        {
+            return tiles[(y / TILE_SIZE) * tilesX + x / TILE_SIZE][(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+        }
+
+        void set (int x, int y, float d)
+        {
+            tiles[(y / TILE_SIZE) * tilesX + x / TILE_SIZE][(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE] = d;
+        }
+    }
+
+    private static void run (int n, boolean parallel, Band band)
+    {
+        if (!parallel || n <= BAND)
+        {
+            band.run(0, n);
+        }
+        else
+        {
+            new Bands(band, 0, n).invoke();
+        }
+    }
+
+    /**
+     * Works on rows or columns lo (inclusive) to hi (exclusive).
+     */
+    private interface Band
+    {
+        void run (int lo, int hi);
+    }
+
+    /**
+     * Splits a range of rows or columns in half down to BAND of them.
+     */
+    private static final class Bands extends RecursiveAction
+    {
+        private final Band band;
+        private final int lo, hi;
+
+        Bands (Band band, int lo, int hi)
+        {
+            this.band = band;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            if (hi - lo > BAND)
+            {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new Bands(band, lo, mid), new Bands(band, mid, hi));
+                return;
+            }
+            band.run(lo, hi);
+        }
+    }
+}
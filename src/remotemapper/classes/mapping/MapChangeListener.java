@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+/**
+ * Receives notifications about changes made to a CharMap.
+ *
+ * Listeners are called on the thread that changed the map, so they should
+ * only record what changed and leave the actual work for later.
+ *
+ * @author Robert Hutter
+ */
+public interface MapChangeListener
+{
+    /**
+     * Called after a point of the map changed value. Not called when a point
+     * is set to the value it already had.
+     *
+     * @param map the map that changed
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @param oldVal the point's previous value
+     * @param newVal the point's new value
+     */
+    void pointChanged (CharMap map, int x, int y, char oldVal, char newVal);
+
+    /**
+     * Called after the penalty of a point changed, see CharMap.setPenalty().
+     * The point's value stays the same. A penalty never makes a point
+     * impassable, so listeners that only follow obstacles can ignore it.
+     *
+     * @param map the map that changed
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     */
+    default void penaltyChanged (CharMap map, int x, int y)
+    {
+    }
+
+    /**
+     * Called after the whole content of the map was replaced, the map
+     * changed size, or the cost of a mark or all penalties changed.
+     *
+     * @param map the map that changed
+     */
+    void mapReplaced (CharMap map);
+}
@@ -0,0 +1,1025 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import remotemapper.classes.mapping.storage.MapStorage;
+import remotemapper.classes.mapping.storage.MappedFileStorage;
+import remotemapper.classes.mapping.storage.TiledStorage;
+import remotemapper.exceptions.CorruptMapFileException;
+
+/**
+ * Reads and writes map files. Two formats are supported:
+ *
+ * The legacy text format holds the obstical mark, the empty space mark and
+ * then every row of the map, each on its own line. See
+ * CharMap.exportToFile().
+ *
+ * The binary format, version 2, starts with MAGIC, followed by
+ *     version (short), flags (short), width (int), height (int),
+ *     obstical mark (char), empty space mark (char),
+ *     symbol count (int), symbols (char each),
+ *     the byte length of every row (varint each), the rows and, if
+ *     FLAG_CRC32 is set, the CRC32 of all the bytes in front of it (int).
+ * A point is stored as the index of its character in the symbol list.
+ * Each row starts with ROW_RLE, followed by (symbol, run length) varint
+ * pairs, or with ROW_PACKED, followed by the symbols packed into as few
+ * bits as the symbol count allows. The writer picks the shorter of the
+ * two for every row. The row lengths give the offset of every row, so
+ * rows can be read and decoded independently.
+ *
+ * Files are written to a temporary file first and moved over the old one
+ * when complete, so a crash while saving leaves the previous version. A
+ * map file that is memory mapped can not be replaced on every system, so
+ * while it is mapped the map is saved to its pending file instead, which
+ * replaces it the next time it is loaded. See getPendingFile().
+ *
+ * Text files have no room for a checksum, so it goes into a checksum file
+ * next to them, see getChecksumFile(). It starts with CHECKSUM_MAGIC,
+ * followed by
+ *     entry count (int), the length (long) and CRC32 (int) of every entry.
+ * The map file is intact if it matches one of the entries. A map file
+ * without a checksum file is not checked.
+ *
+ * @author Robert Hutter
+ */
+public final class MapFiles
+{
+    /**
+     * "RMAP", chosen so that it can not be the start of a text map file
+     * whose second character is a line separator.
+     */
+    public static final int MAGIC = 0x524D4150;
+    public static final short VERSION = 2;
+
+    /**
+     * Set in the flags if the rows are followed by the CRC32 of everything
+     * in front of it.
+     */
+    public static final int FLAG_CRC32 = 1;
+
+    /**
+     * "RMCS", the start of a checksum file.
+     */
+    public static final int CHECKSUM_MAGIC = 0x524D4353;
+
+    private static final int WRITE_BUFFER = 1 << 20;
+
+    static final int ROW_RLE = 0;
+    static final int ROW_PACKED = 1;
+
+    private MapFiles () {}
+
+    /**
+     * Check the first bytes of a file for MAGIC.
+     *
+     * @param file
+     * @return true if the file is a binary map file
+     * @throws IOException
+     */
+    public static boolean isBinary (File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            return file.length() >= 4 && in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Load a map file of either format. Text files are memory mapped if
+     * possible, see CharMap.openMapped(). A pending file left by the last
+     * save is applied first.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file can not be read or is not a valid
+     *         map file
+     */
+    public static CharMap load (File file) throws IOException
+    {
+        applyPending(file);
+
+        if (isBinary(file))
+        {
+            return read(file, null);
+        }
+
+        CharMap m = CharMap.openMapped(file);
+        return m != null ? m : new CharMap(file);
+    }
+
+    /**
+     * Save a map in the format its file already has. Text files stay text,
+     * so they can still be memory mapped and read by older builds; binary
+     * files and new files are written in the binary format. Use write() or
+     * CharMap.exportToFile() to switch formats. A map memory mapped from the
+     * same file already has its changes in it and is only flushed. If the
+     * file is still mapped but the map is not stored in it any more, the
+     * map is saved to the pending file instead.
+     *
+     * @param map the map to save
+     * @param file destination
+     * @param progress receives the number of rows written so far, may be
+     *        null
+     * @throws IOException
+     */
+    public static void save (CharMap map, File file, IntConsumer progress) throws IOException
+    {
+        final MapStorage st = map.getStorage();
+
+        if (st instanceof MappedFileStorage && ((MappedFileStorage) st).isBackedBy(file))
+        {
+            ((MappedFileStorage) st).force();
+            return;
+        }
+
+        if (MappedFileStorage.isMapped(file))
+        {
+            // The map moved to other storage, for example because it grew,
+            // but the old mapping is still there. Mapped files are text.
+            CharMap.exportToFile(map, getPendingFile(file), progress);
+            return;
+        }
+
+        if (file.length() > 0 && !isBinary(file))
+        {
+            CharMap.exportToFile(map, file, progress);
+            return;
+        }
+
+        write(map, file, progress);
+    }
+
+    /**
+     * Get the pending file of a map file, which is the map file's name with
+     * ".new" appended. It holds a save made while the map file was mapped
+     * and could not be replaced, see save() and load().
+     *
+     * @param mapFile
+     * @return
+     */
+    public static File getPendingFile (File mapFile)
+    {
+        return new File(mapFile.getPath() + ".new");
+    }
+
+    /**
+     *
+     * @param mapFile a map file
+     * @return the file holding the last save of the map, its pending file
+     *         if there is one
+     */
+    public static File getCurrentFile (File mapFile)
+    {
+        final File pending = getPendingFile(mapFile);
+        return pending.isFile() ? pending : mapFile;
+    }
+
+    /**
+     * Move the pending file of a map file, if there is one, over the map
+     * file together with its checksum file. Must be called before the map
+     * file is loaded; does nothing while this process has it mapped.
+     *
+     * @param mapFile
+     * @throws IOException
+     */
+    public static void applyPending (File mapFile) throws IOException
+    {
+        final File pending = getPendingFile(mapFile);
+        if (!pending.isFile() || MappedFileStorage.isMapped(mapFile))
+        {
+            return;
+        }
+
+        final File sumFile = getChecksumFile(pending);
+        Files.deleteIfExists(getChecksumFile(mapFile).toPath());
+        move(pending.toPath(), mapFile.getAbsoluteFile().toPath());
+        if (sumFile.isFile())
+        {
+            move(sumFile.toPath(), getChecksumFile(mapFile).getAbsoluteFile().toPath());
+        }
+    }
+
+    /**
+     * Get the checksum file of a text map file, which is the map file's
+     * name with ".crc" appended.
+     *
+     * @param mapFile
+     * @return
+     */
+    public static File getChecksumFile (File mapFile)
+    {
+        return new File(mapFile.getPath() + ".crc");
+    }
+
+    /**
+     * Check a text map file against its checksum file.
+     *
+     * @param file the map file
+     * @throws IOException if the file can not be read, or
+     *         CorruptMapFileException if it does not match its checksum file
+     */
+    public static void verifyChecksum (File file) throws IOException
+    {
+        final long[] sums = readChecksums(getChecksumFile(file));
+        if (sums == null)
+        {
+            return;
+        }
+
+        final long length = file.length();
+        Integer crc = null;
+        for (int i = 0; i < sums.length; i += 2)
+        {
+            if (sums[i] == length)
+            {
+                if (crc == null)
+                {
+                    crc = checksum(file);
+                }
+                if ((int) sums[i + 1] == crc)
+                {
+                    return;
+                }
+            }
+        }
+
+        throw new CorruptMapFileException("Checksum of " + file + " does not match, the file is damaged");
+    }
+
+    /**
+     * Write the checksum file of a map that is memory mapped from its file.
+     * Such a map is changed in place, so CharMap.openMapped() removes the
+     * checksum file and this puts it back once the map is no longer
+     * changed, when the program is closed. Does nothing for any other map,
+     * their saves write the checksum file themselves.
+     *
+     * @param map
+     * @param file the map's file
+     * @throws IOException
+     */
+    public static void writeChecksum (CharMap map, File file) throws IOException
+    {
+        final MapStorage st = map.getStorage();
+
+        if (st instanceof MappedFileStorage && ((MappedFileStorage) st).isBackedBy(file)
+            && ((MappedFileStorage) st).isWritable())
+        {
+            ((MappedFileStorage) st).force();
+            writeChecksums(getChecksumFile(file), new long[] {file.length(), checksum(file)});
+        }
+    }
+
+    /**
+     * Write a text map file and its checksum file. While the map file is
+     * moved into place the checksum file accepts both the old and the new
+     * file, so a crash at any point leaves a pair that matches.
+     */
+    static void writeText (File file, Content content) throws IOException
+    {
+        final File sumFile = getChecksumFile(file);
+        long[] old;
+        try
+        {
+            old = readChecksums(sumFile);
+        }
+        catch (CorruptMapFileException ex)
+        {
+            old = null;
+        }
+
+        final long[] previous = old;
+        final CRC32 crc = new CRC32();
+        final long[] sum = new long[2];
+
+        writeAtomically(file, stream -> content.write(new CheckedOutputStream(stream, crc)), tmp ->
+        {
+            sum[0] = Files.size(tmp);
+            sum[1] = (int) crc.getValue();
+
+            // Without a checksum file the old map file is not checked yet
+            if (previous != null)
+            {
+                final long[] both = Arrays.copyOf(previous, previous.length + 2);
+                both[previous.length] = sum[0];
+                both[previous.length + 1] = sum[1];
+                writeChecksums(sumFile, both);
+            }
+        });
+
+        writeChecksums(sumFile, sum);
+    }
+
+    /**
+     * Read a checksum file.
+     *
+     * @return (length, CRC32) pairs, or null if there is no checksum file
+     */
+    private static long[] readChecksums (File sumFile) throws IOException
+    {
+        if (!sumFile.isFile())
+        {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sumFile))))
+        {
+            final int n = in.readInt() == CHECKSUM_MAGIC ? in.readInt() : -1;
+            if (n < 0 || n > (sumFile.length() - 8) / 12)
+            {
+                throw new CorruptMapFileException(sumFile + " is not a checksum file");
+            }
+
+            final long[] sums = new long[2 * n];
+            for (int i = 0; i < sums.length; i += 2)
+            {
+                sums[i] = in.readLong();
+                sums[i + 1] = in.readInt();
+            }
+            return sums;
+        }
+        catch (EOFException ex)
+        {
+            throw new CorruptMapFileException(sumFile + " is truncated");
+        }
+    }
+
+    private static void writeChecksums (File sumFile, long[] sums) throws IOException
+    {
+        writeAtomically(sumFile, stream ->
+        {
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(CHECKSUM_MAGIC);
+            out.writeInt(sums.length / 2);
+            for (int i = 0; i < sums.length; i += 2)
+            {
+                out.writeLong(sums[i]);
+                out.writeInt((int) sums[i + 1]);
+            }
+            out.flush();
+        });
+    }
+
+    /**
+     * Compute the CRC32 of a whole file.
+     *
+     * @param f
+     * @return the CRC32, 0 if there is no such file
+     * @throws IOException
+     */
+    static int checksum (File f) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        if (!f.isFile())
+        {
+            return 0;
+        }
+
+        try (FileInputStream in = new FileInputStream(f))
+        {
+            final byte[] buf = new byte[1 << 16];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf))
+            {
+                crc.update(buf, 0, n);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write a map in the binary format.
+     *
+     * @param map the map to write
+     * @param file destination
+     * @param progress receives the number of rows written so far, may be
+     *        null
+     * @throws IOException
+     */
+    public static void write (CharMap map, File file, IntConsumer progress) throws IOException
+    {
+        final MapStorage st = map.getStorage();
+        final int width = st.getWidth();
+        final int height = st.getHeight();
+        final Dictionary dict = new Dictionary(st, map.getEmptySpaceMark());
+
+        // Rows are encoded first, the lengths go in front of them
+        final byte[][] rows = new byte[height][];
+        final char[] row = new char[width];
+        final int[] codes = new int[width];
+
+        for (int y = 0; y < height; y++)
+        {
+            st.getRow(y, row);
+            for (int x = 0; x < width; x++)
+            {
+                codes[x] = dict.code(row[x]);
+            }
+            rows[y] = encodeRow(codes, dict.bits);
+        }
+
+        writeAtomically(file, stream ->
+        {
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(stream, crc));
+
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(FLAG_CRC32);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeChar(map.getObsticalMark());
+            out.writeChar(map.getEmptySpaceMark());
+
+            out.writeInt(dict.size);
+            for (int i = 0; i < dict.size; i++)
+            {
+                out.writeChar(dict.symbols[i]);
+            }
+
+            for (byte[] r : rows)
+            {
+                writeVarint(out, r.length);
+            }
+
+            for (int y = 0; y < height; y++)
+            {
+                out.write(rows[y]);
+                rows[y] = null;
+
+                if (progress != null)
+                {
+                    progress.accept(y + 1);
+                }
+            }
+
+            out.flush();
+            new DataOutputStream(stream).writeInt((int) crc.getValue());
+        });
+
+        // Binary files carry their own checksum
+        Files.deleteIfExists(getChecksumFile(file).toPath());
+    }
+
+    /**
+     * Write a file so that a crash can never leave it half written. The
+     * content goes to a temporary file in the same directory, which is
+     * forced to disk and then moved over the destination in one step.
+     *
+     * @param file destination
+     * @param content writes the file's content to the stream it is given
+     * @throws IOException
+     */
+    static void writeAtomically (File file, Content content) throws IOException
+    {
+        writeAtomically(file, content, null);
+    }
+
+    /**
+     * Write a file like writeAtomically(File, Content), running a step
+     * after the temporary file is complete and before it is moved over the
+     * destination.
+     *
+     * @param file destination
+     * @param content writes the file's content to the stream it is given
+     * @param beforeMove receives the temporary file, may be null
+     * @throws IOException
+     */
+    static void writeAtomically (File file, Content content, Step beforeMove) throws IOException
+    {
+        final Path target = file.getAbsoluteFile().toPath();
+        final Path dir = target.getParent();
+        final Path tmp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+
+        try
+        {
+            if (Files.exists(target))
+            {
+                try
+                {
+                    Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+                }
+                catch (UnsupportedOperationException ex)
+                {
+                    // Not a POSIX file system, nothing to keep
+                }
+            }
+
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE))
+            {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), WRITE_BUFFER);
+                content.write(out);
+                out.flush();
+                ch.force(true);
+            }
+
+            if (beforeMove != null)
+            {
+                beforeMove.run(tmp);
+            }
+
+            move(tmp, target);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Move a file over another in one step where the file system allows it.
+     */
+    private static void move (Path from, Path to) throws IOException
+    {
+        try
+        {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Make the rename itself durable, not possible on every system
+        try (FileChannel d = FileChannel.open(to.getParent(), StandardOpenOption.READ))
+        {
+            d.force(true);
+        }
+        catch (IOException ex)
+        {
+            // Ignored, the file itself is safe
+        }
+    }
+
+    /**
+     * Content of a file written by writeAtomically().
+     */
+    interface Content
+    {
+        void write (OutputStream out) throws IOException;
+    }
+
+    /**
+     * Run by writeAtomically() before the complete file is moved into place.
+     */
+    interface Step
+    {
+        void run (Path tmp) throws IOException;
+    }
+
+    /**
+     * Read a map in the binary format.
+     *
+     * @param file
+     * @param progress receives the number of bytes of the file read so far,
+     *        may be null
+     * @return
+     * @throws IOException if the file is not a valid binary map file
+     */
+    public static CharMap read (File file, IntConsumer progress) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), crc)))
+        {
+            final Header h = Header.read(in, file.length());
+            final TiledStorage st = new TiledStorage(h.width, h.height, h.emptySpaceMark);
+
+            long read = file.length() - h.dataLength() - h.trailerLength();
+            byte[] buf = new byte[0];
+            for (int y = 0; y < h.height; y++)
+            {
+                int n = h.rowLengths[y];
+                if (buf.length < n)
+                {
+                    buf = new byte[n];
+                }
+                in.readFully(buf, 0, n);
+                decodeRow(buf, 0, n, h, st, y);
+
+                read += n;
+                if (progress != null)
+                {
+                    progress.accept((int) Math.min(read, Integer.MAX_VALUE));
+                }
+            }
+
+            if ((h.flags & FLAG_CRC32) != 0)
+            {
+                final int expected = (int) crc.getValue();
+                if (in.readInt() != expected)
+                {
+                    throw new CorruptMapFileException("Checksum of " + file + " does not match, the file is damaged");
+                }
+            }
+
+            return new CharMap(st, h.obsticalMark, h.emptySpaceMark);
+        }
+        catch (EOFException ex)
+        {
+            throw new CorruptMapFileException(file + " is truncated");
+        }
+    }
+
+    /**
+     * Encode a row with whichever of the two row encodings is shorter.
+     */
+    static byte[] encodeRow (int[] codes, int bits)
+    {
+        final int width = codes.length;
+        final ByteArrayOutputStream rle = new ByteArrayOutputStream();
+        rle.write(ROW_RLE);
+
+        final int packedLength = 1 + (int) (((long) width * bits + 7) >>> 3);
+
+        for (int x = 0; x < width && rle.size() <= packedLength; )
+        {
+            int end = x + 1;
+            while (end < width && codes[end] == codes[x])
+            {
+                end++;
+            }
+            writeVarint(rle, codes[x]);
+            writeVarint(rle, end - x);
+            x = end;
+        }
+
+        if (rle.size() <= packedLength)
+        {
+            return rle.toByteArray();
+        }
+
+        final byte[] packed = new byte[packedLength];
+        packed[0] = ROW_PACKED;
+
+        // Lowest bits first
+        long acc = 0;
+        int n = 0;
+        int pos = 1;
+        for (int x = 0; x < width; x++)
+        {
+            acc |= (long) codes[x] << n;
+            n += bits;
+            while (n >= 8)
+            {
+                packed[pos++] = (byte) acc;
+                acc >>>= 8;
+                n -= 8;
+            }
+        }
+        if (n > 0)
+        {
+            packed[pos] = (byte) acc;
+        }
+        return packed;
+    }
+
+    /**
+     * Decode a row into a storage. Points of the storage's fill character
+     * are not written.
+     */
+    static void decodeRow (byte[] buf, int off, int length, Header h, TiledStorage st, int y) throws IOException
+    {
+        final char fill = st.getFill();
+        final int end = off + length;
+
+        if (length == 0)
+        {
+            throw new IOException("Row " + y + " is empty");
+        }
+
+        if (buf[off] == ROW_RLE)
+        {
+            final int[] pos = {off + 1};
+            int x = 0;
+
+            while (pos[0] < end)
+            {
+                final int code = readVarint(buf, pos, end);
+                final int run = readVarint(buf, pos, end);
+
+                if (code >= h.symbols.length || run > h.width - x)
+                {
+                    throw new IOException("Invalid run in row " + y);
+                }
+
+                final char c = h.symbols[code];
+                if (c != fill)
+                {
+                    for (int i = x; i < x + run; i++)
+                    {
+                        st.set(i, y, c);
+                    }
+                }
+                x += run;
+            }
+
+            if (x != h.width)
+            {
+                throw new IOException("Row " + y + " has " + x + " points instead of " + h.width);
+            }
+        }
+        else if (buf[off] == ROW_PACKED)
+        {
+            if (length != 1 + (int) (((long) h.width * h.bits + 7) >>> 3))
+            {
+                throw new IOException("Packed row " + y + " has the wrong length");
+            }
+
+            final int mask = (1 << h.bits) - 1;
+            long acc = 0;
+            int n = 0;
+            int pos = off + 1;
+            for (int x = 0; x < h.width; x++)
+            {
+                while (n < h.bits)
+                {
+                    acc |= (buf[pos++] & 0xFFL) << n;
+                    n += 8;
+                }
+                final int code = (int) (acc & mask);
+                acc >>>= h.bits;
+                n -= h.bits;
+
+                if (code >= h.symbols.length)
+                {
+                    throw new IOException("Invalid symbol in row " + y);
+                }
+                if (h.symbols[code] != fill)
+                {
+                    st.set(x, y, h.symbols[code]);
+                }
+            }
+        }
+        else
+        {
+            throw new IOException("Unknown encoding of row " + y);
+        }
+    }
+
+    static void writeVarint (DataOutputStream out, int v) throws IOException
+    {
+        while ((v & ~0x7F) != 0)
+        {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static void writeVarint (ByteArrayOutputStream out, int v)
+    {
+        while ((v & ~0x7F) != 0)
+        {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarint (InputStream in) throws IOException
+    {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            int b = in.read();
+            if (b == -1)
+            {
+                throw new EOFException();
+            }
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return v;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    static int readVarint (byte[] buf, int[] pos, int end) throws IOException
+    {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            if (pos[0] >= end)
+            {
+                throw new EOFException();
+            }
+            int b = buf[pos[0]++];
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return v;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Everything in front of the rows of a binary map file.
+     */
+    static final class Header
+    {
+        int flags;
+        int width;
+        int height;
+        char obsticalMark;
+        char emptySpaceMark;
+        char[] symbols;
+        int bits;
+        int[] rowLengths;
+
+        /**
+         * Read the header of a binary map file. Every count is checked
+         * against the length of the file before anything is allocated for
+         * it, so a damaged header can not ask for more memory than the
+         * file could fill.
+         *
+         * @param in the file, at its start
+         * @param fileLength length of the file in bytes
+         * @return
+         * @throws IOException if the header is not valid
+         */
+        static Header read (DataInputStream in, long fileLength) throws IOException
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException("Not a binary map file");
+            }
+
+            final short version = in.readShort();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported map file version " + version);
+            }
+
+            Header h = new Header();
+            h.flags = in.readUnsignedShort();
+            h.width = in.readInt();
+            h.height = in.readInt();
+            h.obsticalMark = in.readChar();
+            h.emptySpaceMark = in.readChar();
+
+            if (h.width < 0 || h.height < 0)
+            {
+                throw new IOException("Invalid map dimensions " + h.width + "x" + h.height);
+            }
+
+            // Every row takes at least a byte for its length and one for
+            // its encoding
+            if (h.height > fileLength / 2)
+            {
+                throw new CorruptMapFileException("Map file is too short for " + h.height + " rows");
+            }
+
+            final int symbols = in.readInt();
+            if (symbols < 1 || symbols > Character.MAX_VALUE + 1 || symbols > fileLength / 2)
+            {
+                throw new IOException("Invalid symbol count " + symbols);
+            }
+
+            h.symbols = new char[symbols];
+            for (int i = 0; i < h.symbols.length; i++)
+            {
+                h.symbols[i] = in.readChar();
+            }
+            h.bits = bits(h.symbols.length);
+
+            h.rowLengths = new int[h.height];
+            for (int y = 0; y < h.height; y++)
+            {
+                h.rowLengths[y] = readVarint(in);
+                if (h.rowLengths[y] < 0)
+                {
+                    throw new IOException("Invalid length of row " + y);
+                }
+            }
+
+            if (h.dataLength() > fileLength)
+            {
+                throw new CorruptMapFileException("Map file is too short for its rows");
+            }
+
+            return h;
+        }
+
+        /**
+         * @return number of bytes after the rows
+         */
+        int trailerLength ()
+        {
+            return (flags & FLAG_CRC32) != 0 ? 4 : 0;
+        }
+
+        /**
+         * @return number of bytes the rows take
+         */
+        long dataLength ()
+        {
+            long n = 0;
+            for (int l : rowLengths)
+            {
+                n += l;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Symbols used by a map, the empty space mark first so that empty runs
+     * have the smallest code.
+     */
+    private static final class Dictionary
+    {
+        final char[] symbols;
+        final int size;
+        final int bits;
+        private final int[] codes = new int[Character.MAX_VALUE + 1];
+
+        Dictionary (MapStorage st, char first)
+        {
+            final boolean[] seen = new boolean[Character.MAX_VALUE + 1];
+            final char[] row = new char[st.getWidth()];
+
+            seen[first] = true;
+            int n = 1;
+
+            for (int y = 0; y < st.getHeight(); y++)
+            {
+                st.getRow(y, row);
+                for (char c : row)
+                {
+                    if (!seen[c])
+                    {
+                        seen[c] = true;
+                        n++;
+                    }
+                }
+            }
+
+            symbols = new char[n];
+            symbols[0] = first;
+            int i = 1;
+            for (int c = 0; c <= Character.MAX_VALUE; c++)
+            {
+                if (seen[c] && c != first)
+                {
+                    codes[c] = i;
+                    symbols[i++] = (char) c;
+                }
+            }
+
+            size = n;
+            bits = bits(n);
+        }
+
+        int code (char c)
+        {
+            return codes[c];
+        }
+    }
+
+    /**
+     * @return number of bits needed to tell apart a number of symbols
+     */
+    static int bits (int symbols)
+    {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(symbols - 1));
+    }
+}
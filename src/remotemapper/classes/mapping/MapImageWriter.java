@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes images of maps as PNG files without needing a display, for
+ * snapshots taken by scripts.
+ *
+ * Images use a palette with one colour for each kind of point of
+ * MapRenderer, one byte per pixel. They are written a band of
+ * ROWS_PER_BAND rows at a time: the bands are drawn and compressed in
+ * parallel on a ForkJoinPool, each into a run of deflate blocks ending on a
+ * byte boundary, and written out in order, so the whole image is never in
+ * memory at once. The runs together form the single zlib stream PNG asks
+ * for, whose checksum is put together from those of the bands.
+ *
+ * Zoom levels are those of MapTileCache: at zoom z a point is 2^z pixels
+ * wide, at negative levels a pixel covers 2^-z points.
+ *
+ * Run on its own it turns a map file into a PNG file or a directory of
+ * tiles, see main().
+ *
+ * @author Robert Hutter
+ */
+public final class MapImageWriter
+{
+    public static final int ROWS_PER_BAND = 64;
+    public static final int TILE_SIZE = MapTileCache.TILE_SIZE;
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int ADLER_BASE = 65521;
+
+    private final int[] palette;
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a writer using MapRenderer.DEFAULT_PALETTE on the common pool.
+     */
+    public MapImageWriter ()
+    {
+        this(MapRenderer.DEFAULT_PALETTE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a writer.
+     *
+     * @param palette ARGB colours of the kinds of points of MapRenderer,
+     *        the alpha is ignored
+     * @param pool pool to draw and compress the bands on
+     */
+    public MapImageWriter (int[] palette, ForkJoinPool pool)
+    {
+        this.palette = palette.clone();
+        this.pool = pool;
+    }
+
+    /**
+     * Write a map file as an image without starting the user interface.
+     *
+     * Usage: MapImageWriter map-file (image.png [zoom] | -tiles dir
+     * [extraZoom])
+     *
+     * @param args
+     * @throws IOException if the map can not be read or the image written
+     */
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length < 2 || (args[1].equals("-tiles") && args.length < 3))
+        {
+            System.err.println("Usage: MapImageWriter map-file (image.png [zoom] | -tiles dir [extraZoom])");
+            System.exit(1);
+        }
+
+        final CharMap map = MapLoader.load(new File(args[0]), null);
+        final MapImageWriter writer = new MapImageWriter();
+
+        if (args[1].equals("-tiles"))
+        {
+            final int n = writer.writeTiles(map, new File(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 0);
+            System.out.println(n + " tiles written");
+        }
+        else
+        {
+            writer.writePng(map, args.length > 2 ? Integer.parseInt(args[2]) : 0, new File(args[1]));
+        }
+    }
+
+    /**
+     * Write the image of a whole map.
+     *
+     * @param map the map
+     * @param zoom the zoom level
+     * @param out stream to write the PNG file to, not closed
+     * @throws IOException if the stream can not be written to
+     */
+    public void writePng (CharMap map, int zoom, OutputStream out) throws IOException
+    {
+        write(map, new MapRenderer(kinds()), zoom, 0, 0, imageSize(zoom, map.getWidth() - 1),
+            imageSize(zoom, map.getLength()), out, true);
+    }
+
+    /**
+     * Write the image of a route on its map, with the route in the colour
+     * of MapRenderer.HIGHLIGHT.
+     *
+     * @param route the route
+     * @param zoom the zoom level
+     * @param out stream to write the PNG file to, not closed
+     * @throws IOException if the stream can not be written to
+     */
+    public void writePng (Route route, int zoom, OutputStream out) throws IOException
+    {
+        final CharMap map = route.getMap();
+        write(map, new MapRenderer(kinds(), route.getRouteMark()), zoom, 0, 0, imageSize(zoom, map.getWidth() - 1),
+            imageSize(zoom, map.getLength()), out, true);
+    }
+
+    /**
+     * Write the image of a whole map to a file.
+     *
+     * @param map the map
+     * @param zoom the zoom level
+     * @param file the PNG file
+     * @throws IOException if the file can not be written
+     */
+    public void writePng (CharMap map, int zoom, File file) throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            writePng(map, zoom, out);
+        }
+    }
+
+    /**
+     * Write a pyramid of square tiles of TILE_SIZE pixels, laid out like
+     * the tiles of slippy maps as dir/z/x/y.png. Level 0 is the one whose
+     * only tile holds the whole map, every level after it doubles the size
+     * of the image, down to the level with extraZoom pixels per point. The
+     * tiles are written in parallel.
+     *
+     * @param map the map
+     * @param dir directory to write the tiles to, created if needed
+     * @param extraZoom zoom level of the last level, 0 for one pixel per
+     *        point
+     * @return the number of tiles written
+     * @throws IOException if a tile can not be written
+     */
+    public int writeTiles (CharMap map, File dir, int extraZoom) throws IOException
+    {
+        final int size = Math.max(map.getWidth() - 1, map.getLength());
+        int top = 0;
+        while ((size + (1 << top) - 1) >> top > TILE_SIZE)
+        {
+            top++;
+        }
+
+        final MapRenderer kinds = new MapRenderer(kinds());
+        final List<RecursiveAction> tiles = new ArrayList<>();
+
+        for (int level = 0; level <= top + extraZoom; level++)
+        {
+            final int zoom = level - top;
+            final int w = imageSize(zoom, map.getWidth() - 1);
+            final int h = imageSize(zoom, map.getLength());
+
+            for (int tx = 0; tx * TILE_SIZE < w; tx++)
+            {
+                final File column = new File(dir, level + File.separator + tx);
+                if (!column.isDirectory() && !column.mkdirs())
+                {
+                    throw new IOException("Could not create " + column);
+                }
+
+                for (int ty = 0; ty * TILE_SIZE < h; ty++)
+                {
+                    final File file = new File(column, ty + ".png");
+                    final int px = tx * TILE_SIZE;
+                    final int py = ty * TILE_SIZE;
+
+                    tiles.add(new RecursiveAction()
+                    {
+                        @Override
+                        protected void compute ()
+                        {
+                            try (OutputStream out = new FileOutputStream(file))
+                            {
+                                write(map, kinds, zoom, px, py, TILE_SIZE, TILE_SIZE, out, false);
+                            }
+                            catch (IOException ex)
+                            {
+                                throw new UncheckedIOException(ex);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        try
+        {
+            pool.invoke(new RecursiveAction()
+            {
+                @Override
+                protected void compute ()
+                {
+                    invokeAll(tiles);
+                }
+            });
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+        return tiles.size();
+    }
+
+    /**
+     * Get the size of a map's image at a zoom level.
+     *
+     * @param zoom
+     * @param points the width or length of the map in points
+     * @return the image's width or height in pixels
+     */
+    public static int imageSize (int zoom, int points)
+    {
+        return MapTileCache.getImageSize(zoom, points);
+    }
+
+    /**
+     * A palette for MapRenderer that draws every point as its kind.
+     */
+    private static int[] kinds ()
+    {
+        return new int[] { MapRenderer.EMPTY, MapRenderer.OBSTACLE, MapRenderer.MARK,
+                           MapRenderer.OUTSIDE, MapRenderer.HIGHLIGHT };
+    }
+
+    /**
+     * Write a rectangle of a map's image as a PNG file.
+     *
+     * @param kinds renders the kinds of points
+     * @param parallel compress the bands on the pool, else on this thread
+     */
+    private void write (CharMap map, MapRenderer kinds, int zoom, int px, int py, int w, int h,
+                        OutputStream os, boolean parallel) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.write(SIGNATURE);
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream d = new DataOutputStream(header);
+        d.writeInt(w);
+        d.writeInt(h);
+        d.writeByte(8);        // Bits per index
+        d.writeByte(3);        // Indexed colour
+        d.writeByte(0);        // Deflate
+        d.writeByte(0);        // Adaptive filtering
+        d.writeByte(0);        // Not interlaced
+        chunk(out, "IHDR", header.toByteArray(), 0, header.size());
+
+        final byte[] plte = new byte[3 * palette.length];
+        for (int i = 0; i < palette.length; i++)
+        {
+            plte[3 * i] = (byte) (palette[i] >> 16);
+            plte[3 * i + 1] = (byte) (palette[i] >> 8);
+            plte[3 * i + 2] = (byte) palette[i];
+        }
+        chunk(out, "PLTE", plte, 0, plte.length);
+
+        // Start of the zlib stream: deflate with a 32K window, fastest level
+        chunk(out, "IDAT", new byte[] { 0x78, (byte) 0x01 }, 0, 2);
+
+        final int bands = (h + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        final int ahead = parallel ? 2 * pool.getParallelism() : 1;
+        final ArrayDeque<ForkJoinTask<Band>> queue = new ArrayDeque<>();
+
+        long adler = 1;
+        int next = 0;
+        while (next < bands || !queue.isEmpty())
+        {
+            // Keep a few bands ahead being compressed while writing
+            while (next < bands && queue.size() < ahead)
+            {
+                final int y0 = next * ROWS_PER_BAND;
+                final int rows = Math.min(ROWS_PER_BAND, h - y0);
+                final boolean last = next == bands - 1;
+                final ForkJoinTask<Band> task = ForkJoinTask.adapt(() ->
+                    band(map, kinds, zoom, px, py + y0, w, rows, last));
+
+                queue.add(parallel ? pool.submit(task) : task);
+                next++;
+            }
+
+            final ForkJoinTask<Band> head = queue.poll();
+            final Band band = parallel ? head.join() : head.invoke();
+
+            adler = combineAdler(adler, band.adler, band.length);
+            chunk(out, "IDAT", band.data, 0, band.size);
+        }
+
+        final byte[] trailer = { (byte) (adler >> 24), (byte) (adler >> 16), (byte) (adler >> 8), (byte) adler };
+        chunk(out, "IDAT", trailer, 0, 4);
+        chunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    /**
+     * Draw a band of rows and compress it.
+     *
+     * @param last whether the band ends the image
+     */
+    private static Band band (CharMap map, MapRenderer kinds, int zoom, int px, int py, int w, int rows, boolean last)
+    {
+        final int[] pixels = new int[w * rows];
+        if (zoom >= 0)
+        {
+            kinds.render(map, px, py, w, rows, 1 << zoom, pixels, 0, w);
+        }
+        else
+        {
+            kinds.renderReduced(map, px, py, w, rows, 1 << -zoom, pixels, 0, w);
+        }
+
+        // Every row starts with its filter type, 0 for none
+        final byte[] raw = new byte[(w + 1) * rows];
+        for (int y = 0; y < rows; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                raw[y * (w + 1) + 1 + x] = (byte) pixels[y * w + x];
+            }
+        }
+
+        final Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(raw);
+        if (last)
+        {
+            deflater.finish();
+        }
+
+        byte[] data = new byte[Math.max(64, raw.length / 8)];
+        int size = 0;
+        while (true)
+        {
+            size += deflater.deflate(data, size, data.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            if (size < data.length && (last ? deflater.finished() : deflater.needsInput()))
+            {
+                break;
+            }
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+        }
+        deflater.end();
+
+        return new Band(data, size, adler.getValue(), raw.length);
+    }
+
+    /**
+     * Get the Adler-32 checksum of two runs of bytes one after the other
+     * from the checksums of both.
+     *
+     * @param a checksum of the first run
+     * @param b checksum of the second run
+     * @param length length of the second run
+     */
+    static long combineAdler (long a, long b, long length)
+    {
+        final long rem = length % ADLER_BASE;
+        long sum1 = a & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+
+        sum1 += (b & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += (a >>> 16) + (b >>> 16) + ADLER_BASE - rem;
+
+        sum1 %= ADLER_BASE;
+        sum2 %= ADLER_BASE;
+        return (sum2 << 16) | sum1;
+    }
+
+    private static void chunk (DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException
+    {
+        final byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, offset, length);
+
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * A compressed band of rows.
+     */
+    private static final class Band
+    {
+        final byte[] data;
+        final int size;
+        final long adler;
+        final long length;
+
+        Band (byte[] data, int size, long adler, long length)
+        {
+            this.data = data;
+            this.size = size;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import remotemapper.classes.mapping.storage.MappedFileStorage;
+import remotemapper.classes.mapping.storage.TiledStorage;
+
+/**
+ * Write-ahead journal of the changes made to a map since it was last saved
+ * in full.
+ *
+ * The journal follows the map's changes and remembers which tiles of
+ * TILE_SIZE x TILE_SIZE points changed. flush() appends the current content
+ * of those tiles to a journal file next to the map file, so saving takes
+ * time in proportion to what changed rather than to the size of the map.
+ * Once the journal grows larger than the map file itself (or COMPACT_SIZE)
+ * the map is saved in full and the journal deleted.
+ *
+ * The journal file starts with JOURNAL_MAGIC, a version and the length
+ * (long) and CRC32 (int) of the map file it was started on, or of its
+ * pending file if it has one (see MapFiles.getPendingFile()), followed by
+ * records of
+ *     payload length (int), payload, CRC32 of the payload (int)
+ * where the payload is a tile's position and size followed by its points
+ * as (character, run length) varint pairs. A record that was only partly
+ * written, for example because the program was killed, fails its check
+ * and ends the replay. Records hold whole tiles, so replaying them again
+ * on a map that already contains them changes nothing. A journal whose map
+ * file has changed since, for example because it was saved by another
+ * program or the journal could not be deleted after a full save, is not
+ * replayed, and the next flush saves the map in full instead of appending
+ * to it.
+ *
+ * @author Robert Hutter
+ */
+public final class MapJournal implements MapChangeListener
+{
+    public static final int JOURNAL_MAGIC = 0x524D4A4C;
+    public static final short JOURNAL_VERSION = 1;
+
+    /**
+     * Journals smaller than this are never compacted.
+     */
+    public static final long COMPACT_SIZE = 1 << 20;
+
+    private static final int TILE_SIZE = TiledStorage.TILE_SIZE;
+
+    private final CharMap map;
+    private final File mapFile;
+    private final File journalFile;
+
+    private final BitSet dirty = new BitSet();
+    private int tilesX;
+    private boolean replaced = false;
+
+    /**
+     * The journal file was checked to belong to the map file.
+     */
+    private boolean verified = false;
+
+    /**
+     * Start following the changes of a map.
+     *
+     * @param map the map
+     * @param mapFile the file the map was loaded from and is saved to
+     */
+    public MapJournal (CharMap map, File mapFile)
+    {
+        this.map = map;
+        this.mapFile = mapFile;
+        this.journalFile = getJournalFile(mapFile);
+        this.tilesX = tiles(map.getWidth() - 1);
+        map.addMapChangeListener(this);
+    }
+
+    /**
+     *
+     * @param mapFile a map file
+     * @return the journal belonging to the map file
+     */
+    public static File getJournalFile (File mapFile)
+    {
+        return new File(mapFile.getPath() + ".journal");
+    }
+
+    /**
+     *
+     * @param f a map file
+     * @return true if this is the journal of that file
+     * @throws IOException
+     */
+    public boolean isJournalOf (File f) throws IOException
+    {
+        return f.getCanonicalFile().equals(mapFile.getCanonicalFile());
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public void dispose ()
+    {
+        map.removeMapChangeListener(this);
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        synchronized (dirty)
+        {
+            dirty.set(((y - 1) / TILE_SIZE) * tilesX + (x - 1) / TILE_SIZE);
+        }
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (dirty)
+        {
+            replaced = true;
+        }
+    }
+
+    /**
+     * Append the tiles changed since the last flush to the journal and
+     * force them to disk. Compacts the journal instead if the whole map was
+     * replaced or the journal grew too large.
+     *
+     * @return number of bytes appended to the journal
+     * @throws IOException
+     */
+    public synchronized long flush () throws IOException
+    {
+        if (map.getStorage() instanceof MappedFileStorage
+            && ((MappedFileStorage) map.getStorage()).isBackedBy(mapFile))
+        {
+            // The changes are already in the map file
+            compact(null);
+            return 0;
+        }
+
+        // Saves go to the pending file while the map file is mapped
+        final File saved = MapFiles.getCurrentFile(mapFile);
+
+        if (!verified && journalFile.length() > 0 && !isBasedOn(journalFile, saved))
+        {
+            // Left over from another version of the map file
+            compact(null);
+            return 0;
+        }
+        verified = true;
+
+        BitSet todo;
+        int todoTilesX;
+        synchronized (dirty)
+        {
+            if (replaced)
+            {
+                todo = null;
+            }
+            else
+            {
+                todo = (BitSet) dirty.clone();
+                dirty.clear();
+            }
+            todoTilesX = tilesX;
+        }
+
+        if (todo == null)
+        {
+            compact(null);
+            return 0;
+        }
+        if (todo.isEmpty())
+        {
+            return 0;
+        }
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try
+        {
+            for (int t = todo.nextSetBit(0); t >= 0; t = todo.nextSetBit(t + 1))
+            {
+                writeTile(records, (t % todoTilesX) * TILE_SIZE, (t / todoTilesX) * TILE_SIZE);
+            }
+
+            final boolean fresh = journalFile.length() == 0;
+            try (FileOutputStream out = new FileOutputStream(journalFile, true))
+            {
+                if (fresh)
+                {
+                    DataOutputStream header = new DataOutputStream(out);
+                    header.writeInt(JOURNAL_MAGIC);
+                    header.writeShort(JOURNAL_VERSION);
+                    header.writeLong(saved.length());
+                    header.writeInt(MapFiles.checksum(saved));
+                }
+                records.writeTo(out);
+                out.getChannel().force(false);
+            }
+        }
+        catch (IOException ex)
+        {
+            synchronized (dirty)
+            {
+                dirty.or(todo);
+            }
+            throw ex;
+        }
+
+        if (journalFile.length() > Math.max(COMPACT_SIZE, saved.length()))
+        {
+            compact(null);
+        }
+
+        return records.size();
+    }
+
+    /**
+     * Save the whole map to its file and delete the journal.
+     *
+     * @param progress receives the number of rows written so far, may be
+     *        null
+     * @throws IOException
+     */
+    public synchronized void compact (IntConsumer progress) throws IOException
+    {
+        BitSet todo;
+        boolean all;
+        synchronized (dirty)
+        {
+            // Changes made while saving are journaled by the next flush
+            todo = (BitSet) dirty.clone();
+            all = replaced;
+            dirty.clear();
+            replaced = false;
+            tilesX = tiles(map.getWidth() - 1);
+        }
+
+        try
+        {
+            MapFiles.save(map, mapFile, progress);
+            Files.deleteIfExists(journalFile.toPath());
+        }
+        catch (IOException ex)
+        {
+            synchronized (dirty)
+            {
+                dirty.or(todo);
+                replaced |= all;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Apply the journal of a map file to the map loaded from it.
+     *
+     * @param map the map loaded from mapFile
+     * @param mapFile the map file
+     * @return number of tiles replayed, 0 if the journal was started on
+     *         another version of the map file
+     * @throws IOException if the journal can not be read or belongs to
+     *         another program
+     */
+    public static int replay (CharMap map, File mapFile) throws IOException
+    {
+        final File journal = getJournalFile(mapFile);
+        if (!journal.isFile() || journal.length() == 0)
+        {
+            return 0;
+        }
+
+        int tiles = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal))))
+        {
+            if (in.readInt() != JOURNAL_MAGIC)
+            {
+                throw new IOException("Not a map journal: " + journal);
+            }
+            final short version = in.readShort();
+            if (version != JOURNAL_VERSION)
+            {
+                throw new IOException("Unsupported map journal version " + version);
+            }
+            if (in.readLong() != mapFile.length() || in.readInt() != MapFiles.checksum(mapFile))
+            {
+                return 0;
+            }
+
+            final CRC32 crc = new CRC32();
+            byte[] buf = new byte[0];
+
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                    if (length < 12 || length > journal.length())
+                    {
+                        break;
+                    }
+                    if (buf.length < length)
+                    {
+                        buf = new byte[length];
+                    }
+                    in.readFully(buf, 0, length);
+
+                    crc.reset();
+                    crc.update(buf, 0, length);
+                    if (in.readInt() != (int) crc.getValue())
+                    {
+                        break;
+                    }
+                }
+                catch (EOFException ex)
+                {
+                    break; // Last record not completely written
+                }
+
+                readTile(map, buf, length);
+                tiles++;
+            }
+        }
+
+        return tiles;
+    }
+
+    /**
+     *
+     * @param journal a journal file
+     * @param mapFile a map file
+     * @return true if the journal was started on the map file as it is now
+     * @throws IOException
+     */
+    private static boolean isBasedOn (File journal, File mapFile) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(journal)))
+        {
+            return in.readInt() == JOURNAL_MAGIC && in.readShort() == JOURNAL_VERSION
+                && in.readLong() == mapFile.length() && in.readInt() == MapFiles.checksum(mapFile);
+        }
+        catch (EOFException ex)
+        {
+            return false;
+        }
+    }
+
+    private void writeTile (ByteArrayOutputStream out, int x0, int y0) throws IOException
+    {
+        final int w = Math.min(TILE_SIZE, map.getWidth() - 1 - x0);
+        final int h = Math.min(TILE_SIZE, map.getLength() - y0);
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream p = new DataOutputStream(payload);
+        p.writeInt(x0);
+        p.writeInt(y0);
+        p.writeShort(w);
+        p.writeShort(h);
+
+        char run = map.getPoint(x0 + 1, y0 + 1);
+        int length = 0;
+        for (int y = y0; y < y0 + h; y++)
+        {
+            for (int x = x0; x < x0 + w; x++)
+            {
+                char c = map.getPoint(x + 1, y + 1);
+                if (c != run)
+                {
+                    MapFiles.writeVarint(payload, run);
+                    MapFiles.writeVarint(payload, length);
+                    run = c;
+                    length = 0;
+                }
+                length++;
+            }
+        }
+        MapFiles.writeVarint(payload, run);
+        MapFiles.writeVarint(payload, length);
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        final DataOutputStream o = new DataOutputStream(out);
+        o.writeInt(payload.size());
+        payload.writeTo(o);
+        o.writeInt((int) crc.getValue());
+    }
+
+    private static void readTile (CharMap map, byte[] buf, int length) throws IOException
+    {
+        final int x0 = readInt(buf, 0);
+        final int y0 = readInt(buf, 4);
+        final int w = ((buf[8] & 0xFF) << 8) | (buf[9] & 0xFF);
+        final int h = ((buf[10] & 0xFF) << 8) | (buf[11] & 0xFF);
+
+        if (x0 < 0 || y0 < 0 || w > TILE_SIZE || h > TILE_SIZE)
+        {
+            throw new IOException("Invalid journal record");
+        }
+
+        map.growToInclude(x0 + w, y0 + h);
+
+        final int[] pos = {12};
+        int i = 0;
+        while (i < w * h)
+        {
+            final char c = (char) MapFiles.readVarint(buf, pos, length);
+            final int run = MapFiles.readVarint(buf, pos, length);
+
+            for (int end = Math.min(i + run, w * h); i < end; i++)
+            {
+                map.setPoint(x0 + i % w + 1, y0 + i / w + 1, c);
+            }
+        }
+    }
+
+    private static int readInt (byte[] b, int i)
+    {
+        return ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+
+    private static int tiles (int points)
+    {
+        return (points + TILE_SIZE - 1) / TILE_SIZE;
+    }
+}
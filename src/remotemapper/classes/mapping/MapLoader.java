@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import remotemapper.classes.mapping.storage.TiledStorage;
+import remotemapper.exceptions.CorruptMapFileException;
+
+/**
+ * Loads map files of both formats into memory on a ForkJoinPool.
+ *
+ * The rows of a map are split into chunks of whole tile rows, which are
+ * decoded in parallel straight into the map's TiledStorage. As every tile
+ * is only written by one chunk, the chunks need no locking.
+ *
+ * Text files are read by every chunk on its own, from the offset its
+ * first row starts at. This needs rows of equal length holding nothing
+ * but 7-bit characters, other text files are parsed one character at a
+ * time as before. Binary files are read in one go, checked against their
+ * checksum and then decoded in parallel, using their row lengths to find
+ * every row.
+ *
+ * Progress is reported in bytes of the file, at most PROGRESS_RATE times a
+ * second, and once more when done.
+ *
+ * @author Robert Hutter
+ */
+public final class MapLoader
+{
+    /**
+     * Highest number of progress reports per second.
+     */
+    public static final int PROGRESS_RATE = 20;
+
+    /**
+     * Header of a text map file: the two marks, each on its own line.
+     */
+    private static final int TEXT_HEADER = 4;
+
+    private static final int ROWS_PER_CHUNK = TiledStorage.TILE_SIZE;
+
+    private final File file;
+    private final ForkJoinPool pool;
+    private final IntConsumer progress;
+
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+
+    private MapLoader (File file, ForkJoinPool pool, IntConsumer progress)
+    {
+        this.file = file;
+        this.pool = pool;
+        this.progress = progress;
+    }
+
+    /**
+     * Load a map file of either format on the common pool.
+     *
+     * @param file the map file
+     * @param progress receives the number of bytes of the file loaded so
+     *        far, may be null
+     * @return
+     * @throws IOException if the file can not be read or is not a valid
+     *         map file
+     */
+    public static CharMap load (File file, IntConsumer progress) throws IOException
+    {
+        return load(file, progress, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Load a map file of either format.
+     *
+     * @param file the map file
+     * @param progress receives the number of bytes of the file loaded so
+     *        far, may be null
+     * @param pool pool to decode the rows on
+     * @return
+     * @throws IOException if the file can not be read or is not a valid
+     *         map file
+     */
+    public static CharMap load (File file, IntConsumer progress, ForkJoinPool pool) throws IOException
+    {
+        MapLoader l = new MapLoader(file, pool, progress);
+        CharMap m = MapFiles.isBinary(file) ? l.loadBinary() : l.loadText();
+
+        if (progress != null)
+        {
+            progress.accept((int) Math.min(file.length(), Integer.MAX_VALUE));
+        }
+        return m;
+    }
+
+    private CharMap loadText () throws IOException
+    {
+        MapFiles.verifyChecksum(file);
+
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            final ByteBuffer header = ByteBuffer.allocate(TEXT_HEADER);
+            while (header.hasRemaining() && ch.read(header) != -1) {}
+
+            if (header.hasRemaining() || header.get(1) != '\n' || header.get(3) != '\n'
+                || header.get(0) < 0 || header.get(2) < 0)
+            {
+                return CharMap.parseMapfile(file);
+            }
+
+            final char obM = (char) header.get(0);
+            final char esM = (char) header.get(2);
+
+            final int width = rowLength(ch);
+            final long stride = width + 1L;
+            final long length = ch.size() - TEXT_HEADER;
+
+            if (width < 0 || length == 0 || length % stride != 0 || length / stride > Integer.MAX_VALUE
+                || stride * ROWS_PER_CHUNK > Integer.MAX_VALUE)
+            {
+                return CharMap.parseMapfile(file);
+            }
+
+            final int height = (int) (length / stride);
+            final TiledStorage st = new TiledStorage(width, height, esM);
+
+            try
+            {
+                run(height, (first, last) ->
+                {
+                    final int n = (int) ((last - first) * stride);
+                    final ByteBuffer buf = ByteBuffer.allocate(n);
+                    final long pos = TEXT_HEADER + first * stride;
+
+                    while (buf.hasRemaining())
+                    {
+                        if (ch.read(buf, pos + buf.position()) == -1)
+                        {
+                            throw new EOFException();
+                        }
+                    }
+
+                    final byte[] b = buf.array();
+                    for (int y = first; y < last; y++)
+                    {
+                        final int start = (int) ((y - first) * stride);
+
+                        if (b[start + width] != '\n')
+                        {
+                            throw new IrregularFileException();
+                        }
+
+                        for (int x = 0; x < width; x++)
+                        {
+                            final byte c = b[start + x];
+                            if (c < 0 || c == '\n')
+                            {
+                                throw new IrregularFileException();
+                            }
+                            if (c != esM)
+                            {
+                                st.set(x, y, (char) c);
+                            }
+                        }
+                    }
+
+                    report(n);
+                });
+            }
+            catch (IrregularFileException ex)
+            {
+                return CharMap.parseMapfile(file);
+            }
+
+            return new CharMap(st, obM, esM);
+        }
+    }
+
+    /**
+     * @return number of bytes in front of the first line separator after
+     *         the header, -1 if there is none
+     */
+    private static int rowLength (FileChannel ch) throws IOException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long pos = TEXT_HEADER;
+
+        while (pos < ch.size() && pos - TEXT_HEADER < Integer.MAX_VALUE)
+        {
+            buf.clear();
+            final int n = ch.read(buf, pos);
+            if (n <= 0)
+            {
+                break;
+            }
+            for (int i = 0; i < n; i++)
+            {
+                if (buf.get(i) == '\n')
+                {
+                    return (int) (pos + i - TEXT_HEADER);
+                }
+            }
+            pos += n;
+        }
+
+        return -1;
+    }
+
+    private CharMap loadBinary () throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        final MapFiles.Header h;
+        final byte[] data;
+        final long dataLength;
+
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), crc)))
+        {
+            h = MapFiles.Header.read(in, file.length());
+            dataLength = h.dataLength();
+
+            if (dataLength > Integer.MAX_VALUE - 8)
+            {
+                // Can not be held in one array, decode while reading
+                return MapFiles.read(file, progress);
+            }
+
+            data = new byte[(int) dataLength];
+            in.readFully(data);
+
+            if ((h.flags & MapFiles.FLAG_CRC32) != 0)
+            {
+                final int expected = (int) crc.getValue();
+                if (in.readInt() != expected)
+                {
+                    throw new CorruptMapFileException("Checksum of " + file + " does not match, the file is damaged");
+                }
+            }
+        }
+        catch (EOFException ex)
+        {
+            throw new CorruptMapFileException(file + " is truncated");
+        }
+
+        report(file.length() - dataLength);
+
+        final int[] offsets = new int[h.height + 1];
+        for (int y = 0; y < h.height; y++)
+        {
+            offsets[y + 1] = offsets[y] + h.rowLengths[y];
+        }
+
+        final TiledStorage st = new TiledStorage(h.width, h.height, h.emptySpaceMark);
+
+        run(h.height, (first, last) ->
+        {
+            for (int y = first; y < last; y++)
+            {
+                MapFiles.decodeRow(data, offsets[y], h.rowLengths[y], h, st, y);
+            }
+            report(offsets[last] - offsets[first]);
+        });
+
+        return new CharMap(st, h.obsticalMark, h.emptySpaceMark);
+    }
+
+    /**
+     * Run a task for every chunk of rows on the pool and wait for all of
+     * them.
+     */
+    private void run (int height, Chunk task) throws IOException
+    {
+        final int chunks = (height + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK;
+
+        try
+        {
+            pool.invoke(new Chunks(task, height, 0, chunks));
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    private void report (long bytes)
+    {
+        final long total = done.addAndGet(bytes);
+
+        if (progress == null)
+        {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long last = lastReport.get();
+
+        if (now - last >= 1000000000L / PROGRESS_RATE && lastReport.compareAndSet(last, now))
+        {
+            progress.accept((int) Math.min(total, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Decodes rows first (inclusive) to last (exclusive).
+     */
+    private interface Chunk
+    {
+        void decode (int first, int last) throws IOException;
+    }
+
+    /**
+     * Splits a range of chunks in half until only one is left.
+     */
+    private static final class Chunks extends RecursiveAction
+    {
+        private final Chunk task;
+        private final int height;
+        private final int lo, hi;
+
+        Chunks (Chunk task, int height, int lo, int hi)
+        {
+            this.task = task;
+            this.height = height;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            if (hi - lo > 1)
+            {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new Chunks(task, height, lo, mid), new Chunks(task, height, mid, hi));
+                return;
+            }
+
+            try
+            {
+                task.decode(lo * ROWS_PER_CHUNK, Math.min(height, (lo + 1) * ROWS_PER_CHUNK));
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * The rows of a text file differ in length or hold characters that take
+     * more than one byte.
+     */
+    private static final class IrregularFileException extends IOException
+    {
+    }
+}
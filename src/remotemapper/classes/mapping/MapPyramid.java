@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import remotemapper.classes.mapping.storage.BitStorage;
+import remotemapper.classes.mapping.storage.MapStorage;
+
+/**
+ * Views a map at every power of two resolution, like the mip-maps of a
+ * texture.
+ *
+ * Level 0 is the map itself, a cell of level l covers a square of 2^l x 2^l
+ * points of the map (less at the right and bottom edges), up to the level
+ * whose only cell covers the whole map. For every cell the pyramid knows
+ * how many of its points are obstacles, so whether any of them, all of them
+ * or which fraction is.
+ *
+ * The cells of the levels below STORED_LEVEL cover at most 64 points and
+ * are counted from the map when asked for, a few word operations each. The
+ * counts of the levels from STORED_LEVEL up are stored, taking about 5
+ * bytes for every 256 points of the map. An edit only marks its cell of
+ * STORED_LEVEL dirty, under a lock of its own so it never waits for a
+ * count, and the dirty cells and the cells above them are counted again
+ * before the next question is answered.
+ *
+ * Cells are addressed like the points of a CharMap, starting at 1.
+ *
+ * @author Robert Hutter
+ */
+public final class MapPyramid implements MapChangeListener
+{
+    /**
+     * Lowest level whose counts are stored.
+     */
+    public static final int STORED_LEVEL = 4;
+
+    /**
+     * Thresholds of toCharMap(): cells holding any obstacle, or nothing but
+     * obstacles.
+     */
+    public static final double ANY = Double.MIN_VALUE, ALL = 1;
+
+    private final CharMap map;
+
+    /**
+     * Size of the map in points, without the line separators. Written
+     * under dirty.
+     */
+    private int width, height;
+
+    /**
+     * Highest level, whose only cell covers the whole map. Written under
+     * dirty.
+     */
+    private int top;
+
+    /**
+     * Obstacles in every cell, row by row, for the levels from STORED_LEVEL
+     * up. Null for the levels below.
+     */
+    private int[][] counts;
+
+    /**
+     * Cells of STORED_LEVEL whose count is out of date. Guarded by itself.
+     */
+    private final BitSet dirty = new BitSet();
+    private boolean replaced = true;
+
+    /**
+     * Start following a map.
+     *
+     * @param map the map
+     */
+    public MapPyramid (CharMap map)
+    {
+        this.map = map;
+        map.addMapChangeListener(this);
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public void dispose ()
+    {
+        map.removeMapChangeListener(this);
+    }
+
+    /**
+     *
+     * @return the map of level 0
+     */
+    public CharMap getMap ()
+    {
+        return map;
+    }
+
+    /**
+     *
+     * @return number of levels, including level 0
+     */
+    public synchronized int getLevels ()
+    {
+        refresh();
+        return top + 1;
+    }
+
+    /**
+     * @param level
+     * @return number of cells in a row of a level
+     */
+    public synchronized int getWidth (int level)
+    {
+        refresh();
+        return cells(width, level);
+    }
+
+    /**
+     * @param level
+     * @return number of rows of a level
+     */
+    public synchronized int getLength (int level)
+    {
+        refresh();
+        return cells(height, level);
+    }
+
+    /**
+     * Choose the level to draw the map from when a pixel of the screen
+     * stands for a number of points of the map: the most detailed one that
+     * does not have more than a cell per pixel.
+     *
+     * @param pointsPerPixel length of a pixel's side in points of the map
+     * @return the level
+     */
+    public synchronized int getLevelFor (double pointsPerPixel)
+    {
+        refresh();
+
+        int level = 0;
+        while (level < top && (1 << (level + 1)) <= pointsPerPixel)
+        {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Count the obstacles in a cell.
+     *
+     * @param level
+     * @param x the cell's x coordinate
+     * @param y the cell's y coordinate
+     * @return
+     */
+    public synchronized int getObstacles (int level, int x, int y)
+    {
+        refresh();
+
+        if (level < STORED_LEVEL)
+        {
+            return count((x - 1) << level, (y - 1) << level, level);
+        }
+        return counts[level][(y - 1) * cells(width, level) + x - 1];
+    }
+
+    /**
+     * @param level
+     * @param x the cell's x coordinate
+     * @param y the cell's y coordinate
+     * @return number of points of the map in a cell
+     */
+    public synchronized int getArea (int level, int x, int y)
+    {
+        refresh();
+
+        final int size = 1 << level;
+        return Math.min(size, width - ((x - 1) << level)) * Math.min(size, height - ((y - 1) << level));
+    }
+
+    /**
+     * @param level
+     * @param x the cell's x coordinate
+     * @param y the cell's y coordinate
+     * @return true if a cell holds at least one obstacle
+     */
+    public boolean isAnyBlocked (int level, int x, int y)
+    {
+        return getObstacles(level, x, y) > 0;
+    }
+
+    /**
+     * @param level
+     * @param x the cell's x coordinate
+     * @param y the cell's y coordinate
+     * @return true if every point of a cell is an obstacle
+     */
+    public synchronized boolean isAllBlocked (int level, int x, int y)
+    {
+        return getObstacles(level, x, y) == getArea(level, x, y);
+    }
+
+    /**
+     * @param level
+     * @param x the cell's x coordinate
+     * @param y the cell's y coordinate
+     * @return fraction of a cell's points that are obstacles, 0 to 1
+     */
+    public synchronized double getOccupancy (int level, int x, int y)
+    {
+        return getObstacles(level, x, y) / (double) getArea(level, x, y);
+    }
+
+    /**
+     * Make a map of a level, with one point for every cell.
+     *
+     * @param level
+     * @param threshold fraction of obstacles from which on a cell is an
+     *        obstacle, above 0. ANY and ALL are the two extremes.
+     * @return
+     */
+    public synchronized CharMap toCharMap (int level, double threshold)
+    {
+        refresh();
+
+        final int w = cells(width, level);
+        final int h = cells(height, level);
+        final BitStorage st = new BitStorage(w, h, map.getEmptySpaceMark(), map.getObsticalMark());
+
+        for (int y = 1; y <= h; y++)
+        {
+            for (int x = 1; x <= w; x++)
+            {
+                if (getObstacles(level, x, y) >= threshold * getArea(level, x, y))
+                {
+                    st.set(x - 1, y - 1, map.getObsticalMark());
+                }
+            }
+        }
+
+        return new CharMap(st, map.getObsticalMark(), map.getEmptySpaceMark());
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        if (oldVal != map.getObsticalMark() && newVal != map.getObsticalMark())
+        {
+            return;
+        }
+
+        synchronized (dirty)
+        {
+            if (!replaced && top >= STORED_LEVEL && x <= width && y <= height)
+            {
+                dirty.set(((y - 1) >> STORED_LEVEL) * cells(width, STORED_LEVEL) + ((x - 1) >> STORED_LEVEL));
+            }
+        }
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (dirty)
+        {
+            replaced = true;
+        }
+    }
+
+    /**
+     * Bring the stored counts up to date.
+     */
+    private void refresh ()
+    {
+        BitSet todo;
+        final MapStorage st;
+        synchronized (dirty)
+        {
+            // Changes made from here on are counted by the next refresh
+            if (replaced)
+            {
+                st = map.getStorage();
+                width = st.getWidth();
+                height = st.getHeight();
+
+                top = 0;
+                while (cells(width, top) > 1 || cells(height, top) > 1)
+                {
+                    top++;
+                }
+                todo = null;
+            }
+            else if (dirty.isEmpty())
+            {
+                return;
+            }
+            else
+            {
+                st = null;
+                todo = (BitSet) dirty.clone();
+            }
+            dirty.clear();
+            replaced = false;
+        }
+
+        if (todo == null)
+        {
+            rebuild(st);
+            return;
+        }
+
+        int w = cells(width, STORED_LEVEL);
+        for (int i = todo.nextSetBit(0); i >= 0; i = todo.nextSetBit(i + 1))
+        {
+            counts[STORED_LEVEL][i] = count((i % w) << STORED_LEVEL, (i / w) << STORED_LEVEL, STORED_LEVEL);
+        }
+
+        // The cells above are the sums of the four below them
+        for (int level = STORED_LEVEL + 1; level <= top; level++)
+        {
+            final int below = w;
+            final BitSet next = new BitSet();
+            w = cells(width, level);
+
+            for (int i = todo.nextSetBit(0); i >= 0; i = todo.nextSetBit(i + 1))
+            {
+                next.set(((i / below) >> 1) * w + ((i % below) >> 1));
+            }
+            for (int i = next.nextSetBit(0); i >= 0; i = next.nextSetBit(i + 1))
+            {
+                counts[level][i] = sum(level, i % w, i / w);
+            }
+            todo = next;
+        }
+    }
+
+    /**
+     * Count every stored level again.
+     *
+     * @param st the storage of the map, of the size in width and height
+     */
+    private void rebuild (MapStorage st)
+    {
+        counts = new int[top + 1][];
+
+        if (top < STORED_LEVEL)
+        {
+            return;
+        }
+
+        // Count the cells of STORED_LEVEL a row of words at a time
+        final int w = cells(width, STORED_LEVEL);
+        final int perWord = 64 >> STORED_LEVEL;
+        final long mask = (1L << (1 << STORED_LEVEL)) - 1;
+        final long[] row = new long[st.getWordsPerRow()];
+        final int[] c = new int[w * cells(height, STORED_LEVEL)];
+
+        for (int y = 0; y < height; y++)
+        {
+            final int base = (y >> STORED_LEVEL) * w;
+
+            Arrays.fill(row, 0);
+            st.orMatchRow(y, map.getObsticalMark(), row);
+
+            for (int i = 0; i < row.length; i++)
+            {
+                if (row[i] == 0)
+                {
+                    continue;
+                }
+                for (int k = 0; k < perWord && i * perWord + k < w; k++)
+                {
+                    c[base + i * perWord + k] += Long.bitCount((row[i] >>> (k << STORED_LEVEL)) & mask);
+                }
+            }
+        }
+        counts[STORED_LEVEL] = c;
+
+        for (int level = STORED_LEVEL + 1; level <= top; level++)
+        {
+            final int lw = cells(width, level);
+            final int lh = cells(height, level);
+            counts[level] = new int[lw * lh];
+
+            for (int y = 0; y < lh; y++)
+            {
+                for (int x = 0; x < lw; x++)
+                {
+                    counts[level][y * lw + x] = sum(level, x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add up the four cells of the level below a cell, starting at 0.
+     */
+    private int sum (int level, int x, int y)
+    {
+        final int[] below = counts[level - 1];
+        final int w = cells(width, level - 1);
+        final int h = cells(height, level - 1);
+
+        int n = below[2 * y * w + 2 * x];
+        if (2 * x + 1 < w)
+        {
+            n += below[2 * y * w + 2 * x + 1];
+        }
+        if (2 * y + 1 < h)
+        {
+            n += below[(2 * y + 1) * w + 2 * x];
+            if (2 * x + 1 < w)
+            {
+                n += below[(2 * y + 1) * w + 2 * x + 1];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Count the obstacles of a cell straight from the map. The cell is at
+     * most 64 points wide and starts on a multiple of its width, so every
+     * row of it lies within one word.
+     *
+     * @param x0 left edge of the cell in points, starting at 0
+     * @param y0 top edge of the cell in points, starting at 0
+     */
+    private int count (int x0, int y0, int level)
+    {
+        final MapStorage st = map.getStorage();
+        final int size = 1 << level;
+        final long mask = size == 64 ? -1L : (1L << size) - 1;
+        final int end = Math.min(height, y0 + size);
+
+        int n = 0;
+        for (int y = y0; y < end; y++)
+        {
+            n += Long.bitCount((st.getMatchWord(y, x0 >>> 6, map.getObsticalMark()) >>> (x0 & 63)) & mask);
+        }
+        return n;
+    }
+
+    private static int cells (int points, int level)
+    {
+        return (points + (1 << level) - 1) >> level;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.util.Arrays;
+import remotemapper.classes.mapping.storage.MapStorage;
+
+/**
+ * Draws maps into buffers of ARGB pixels, one int per pixel, without
+ * needing a display.
+ *
+ * Every point falls into one of a few kinds, and each kind is drawn in the
+ * colour the palette holds for it. One mark can be highlighted, such as the
+ * one a Route marks its points with. The kinds are read from the map's
+ * storage 64 points at a time with getMatchWord(), so drawing costs about
+ * one pass over the pixels.
+ *
+ * The map is drawn as one large image: either enlarged, with a square of
+ * pixels for every point, or reduced, with a pixel for every square of
+ * points. Any rectangle of that image can be drawn on its own, including
+ * parts outside the map, which makes it suit moving windows and tiles.
+ *
+ * @author Robert Hutter
+ */
+public final class MapRenderer
+{
+    /**
+     * Kinds of points, the indexes of their colours in a palette.
+     */
+    public static final int EMPTY = 0, OBSTACLE = 1, MARK = 2, OUTSIDE = 3, HIGHLIGHT = 4;
+
+    /**
+     * Green empty space, red obstacles, yellow for other marks, grey
+     * outside the map and blue for the highlighted mark.
+     */
+    public static final int[] DEFAULT_PALETTE = { 0xFF008000, 0xFFFF0000, 0xFFFFFF00, 0xFF404040, 0xFF0000FF };
+
+    private final int[] palette;
+    private final char highlight;
+    private final boolean highlighting;
+
+    /**
+     * Create a renderer using DEFAULT_PALETTE.
+     */
+    public MapRenderer ()
+    {
+        this(DEFAULT_PALETTE);
+    }
+
+    /**
+     * Create a renderer that does not highlight any mark.
+     *
+     * @param palette ARGB colours of EMPTY, OBSTACLE, MARK, OUTSIDE and
+     *        optionally HIGHLIGHT
+     */
+    public MapRenderer (int[] palette)
+    {
+        this.palette = Arrays.copyOf(palette, 5);
+        this.highlight = 0;
+        this.highlighting = false;
+    }
+
+    /**
+     * Create a renderer that draws the points holding one mark in the
+     * colour of HIGHLIGHT.
+     *
+     * @param palette ARGB colours of EMPTY, OBSTACLE, MARK, OUTSIDE and
+     *        HIGHLIGHT
+     * @param highlight the mark to highlight
+     */
+    public MapRenderer (int[] palette, char highlight)
+    {
+        this.palette = Arrays.copyOf(palette, 5);
+        this.highlight = highlight;
+        this.highlighting = true;
+    }
+
+    /**
+     *
+     * @param kind
+     * @return ARGB colour of a kind of point
+     */
+    public int getColor (int kind)
+    {
+        return palette[kind];
+    }
+
+    /**
+     * Draw a rectangle of the map's image enlarged so every point is a
+     * square of pixels. Pixel (0, 0) of the image is the top left corner of
+     * point (1, 1).
+     *
+     * @param map the map
+     * @param px left edge of the rectangle in pixels of the image, may be
+     *        negative
+     * @param py top edge of the rectangle in pixels of the image, may be
+     *        negative
+     * @param w width of the rectangle in pixels
+     * @param h height of the rectangle in pixels
+     * @param pixelsPerPoint length of a point's side in pixels
+     * @param dest buffer to draw into
+     * @param offset index of the rectangle's top left pixel in dest
+     * @param stride distance between the rows of the rectangle in dest
+     */
+    public void render (CharMap map, int px, int py, int w, int h, int pixelsPerPoint,
+                        int[] dest, int offset, int stride)
+    {
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        final int mx0 = Math.floorDiv(px, pixelsPerPoint);
+        final int mx1 = Math.floorDiv(px + w - 1, pixelsPerPoint);
+        final int[] colors = new int[mx1 - mx0 + 1];
+
+        int last = Integer.MIN_VALUE;
+        for (int y = 0; y < h; y++)
+        {
+            final int row = offset + y * stride;
+            final int my = Math.floorDiv(py + y, pixelsPerPoint);
+
+            if (my == last)
+            {
+                // The same points as the row above
+                System.arraycopy(dest, row - stride, dest, row, w);
+                continue;
+            }
+            last = my;
+
+            colors(map, my, mx0, colors);
+
+            if (pixelsPerPoint == 1)
+            {
+                System.arraycopy(colors, 0, dest, row, w);
+                continue;
+            }
+            for (int x = 0; x < w; x++)
+            {
+                dest[row + x] = colors[Math.floorDiv(px + x, pixelsPerPoint) - mx0];
+            }
+        }
+    }
+
+    /**
+     * Draw a rectangle of the map's image reduced so every pixel stands for
+     * a square of points. A pixel takes the colour of an obstacle if any of
+     * its points is one, else that of the highlighted mark and then that of
+     * any other mark if any of them holds one, so thin walls and routes stay
+     * visible. Pixel (0, 0) of the image covers the square whose
+     * top left corner is point (1, 1).
+     *
+     * @param map the map
+     * @param px left edge of the rectangle in pixels of the image
+     * @param py top edge of the rectangle in pixels of the image
+     * @param w width of the rectangle in pixels
+     * @param h height of the rectangle in pixels
+     * @param pointsPerPixel length of a pixel's side in points
+     * @param dest buffer to draw into
+     * @param offset index of the rectangle's top left pixel in dest
+     * @param stride distance between the rows of the rectangle in dest
+     */
+    public void renderReduced (CharMap map, int px, int py, int w, int h, int pointsPerPixel,
+                               int[] dest, int offset, int stride)
+    {
+        if (pointsPerPixel <= 1)
+        {
+            render(map, px, py, w, h, 1, dest, offset, stride);
+            return;
+        }
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        final MapStorage st = map.getStorage();
+        final int n = pointsPerPixel;
+        final long[] obstacles = new long[st.getWordsPerRow()];
+        final long[] marks = new long[obstacles.length];
+        final long[] highlights = new long[obstacles.length];
+
+        // Only the words under the rectangle are read
+        final int first = Math.max(0, px * n) >>> 6;
+        final int last = Math.min(obstacles.length, (Math.min(st.getWidth(), (px + w) * n) + 63) >>> 6);
+
+        for (int y = 0; y < h; y++)
+        {
+            final int row = offset + y * stride;
+            final int y0 = (py + y) * n;
+            final int y1 = Math.min(st.getHeight(), y0 + n);
+
+            Arrays.fill(obstacles, 0);
+            Arrays.fill(marks, 0);
+            Arrays.fill(highlights, 0);
+            for (int my = Math.max(0, y0); my < y1; my++)
+            {
+                for (int i = first; i < last; i++)
+                {
+                    final long ob = st.getMatchWord(my, i, map.getObsticalMark());
+                    obstacles[i] |= ob;
+                    marks[i] |= ~(st.getMatchWord(my, i, map.getEmptySpaceMark()) | ob);
+                    if (highlighting)
+                    {
+                        highlights[i] |= st.getMatchWord(my, i, highlight);
+                    }
+                }
+            }
+
+            for (int x = 0; x < w; x++)
+            {
+                final int x0 = (px + x) * n;
+                final int x1 = Math.min(st.getWidth(), x0 + n);
+
+                if (x0 < 0 || x0 >= x1 || y0 < 0 || y0 >= y1)
+                {
+                    dest[row + x] = palette[OUTSIDE];
+                }
+                else if (any(obstacles, x0, x1))
+                {
+                    dest[row + x] = palette[OBSTACLE];
+                }
+                else if (highlighting && any(highlights, x0, x1))
+                {
+                    dest[row + x] = palette[HIGHLIGHT];
+                }
+                else if (any(marks, x0, x1))
+                {
+                    dest[row + x] = palette[MARK];
+                }
+                else
+                {
+                    dest[row + x] = palette[EMPTY];
+                }
+            }
+        }
+    }
+
+    /**
+     * Look up the colours of a run of points of a row.
+     *
+     * @param y the row, starting at 0, may be outside of the map
+     * @param x0 the first point, starting at 0, may be outside of the map
+     * @param colors receives a colour for each point
+     */
+    private void colors (CharMap map, int y, int x0, int[] colors)
+    {
+        final MapStorage st = map.getStorage();
+        if (y < 0 || y >= st.getHeight())
+        {
+            Arrays.fill(colors, palette[OUTSIDE]);
+            return;
+        }
+
+        final int from = Math.max(0, x0);
+        final int to = Math.min(st.getWidth(), x0 + colors.length);
+
+        Arrays.fill(colors, 0, Math.max(0, Math.min(colors.length, from - x0)), palette[OUTSIDE]);
+        Arrays.fill(colors, Math.max(0, Math.min(colors.length, to - x0)), colors.length, palette[OUTSIDE]);
+
+        for (int i = from >>> 6; from < to && i <= (to - 1) >>> 6; i++)
+        {
+            final long empty = st.getMatchWord(y, i, map.getEmptySpaceMark());
+            final long obstacle = st.getMatchWord(y, i, map.getObsticalMark());
+            final long highlighted = highlighting ? st.getMatchWord(y, i, highlight) : 0;
+            final int end = Math.min(to, (i + 1) << 6);
+
+            for (int x = Math.max(from, i << 6); x < end; x++)
+            {
+                final long bit = 1L << x;
+                colors[x - x0] = (empty & bit) != 0 ? palette[EMPTY]
+                               : (obstacle & bit) != 0 ? palette[OBSTACLE]
+                               : (highlighted & bit) != 0 ? palette[HIGHLIGHT] : palette[MARK];
+            }
+        }
+    }
+
+    /**
+     * Check to see if any bit from one index (inclusive) to another
+     * (exclusive) is set.
+     */
+    private static boolean any (long[] bits, int from, int to)
+    {
+        int i = from >>> 6;
+        final int last = (to - 1) >>> 6;
+        long word = bits[i] & (-1L << from);
+
+        while (i < last)
+        {
+            if (word != 0)
+            {
+                return true;
+            }
+            word = bits[++i];
+        }
+        return (word & (-1L >>> (63 - ((to - 1) & 63)))) != 0;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps square tiles of a map's image at every zoom level, drawn by a
+ * MapRenderer on a pool of background threads, for viewers that only show
+ * a small part of a large map at a time.
+ *
+ * At zoom level z a point of the map is 2^z pixels wide, at negative levels
+ * a pixel covers 2^-z points. Tile (0, 0) of every level starts at the top
+ * left corner of the map. Asking for a tile that is not ready yet returns
+ * null and has it drawn. Edits of the map mark the tiles covering the
+ * changed points out of date at every level. Out of date tiles are still
+ * returned, so viewers have something to show, and are drawn again as soon
+ * as they are asked for. Tiles that were asked for in neither of the last
+ * two frames are not drawn anymore once their turn comes, so panning
+ * quickly does not leave a queue of tiles nobody looks at.
+ *
+ * The least recently used tiles are dropped once the tiles take more than
+ * the capacity in bytes.
+ *
+ * @author Robert Hutter
+ */
+public final class MapTileCache implements MapChangeListener
+{
+    public static final int TILE_SIZE = 256;
+    public static final int MIN_ZOOM = -8, MAX_ZOOM = 4;
+
+    /**
+     * Default capacity in bytes, 256 tiles.
+     */
+    public static final long DEFAULT_CAPACITY = 64 << 20;
+
+    private static final long TILE_BYTES = 4L * TILE_SIZE * TILE_SIZE;
+
+    private final CharMap map;
+    private final MapRenderer renderer;
+    private final Runnable changed;
+    private final long capacity;
+    private final ExecutorService pool;
+
+    /**
+     * Least recently used first.
+     */
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Tiles being drawn, mapped to whether the map changed under them since.
+     */
+    private final Map<Long, Boolean> drawing = new HashMap<>();
+
+    /**
+     * Tiles asked for in this frame and the one before.
+     */
+    private Set<Long> wanted = new HashSet<>(), wantedBefore = new HashSet<>();
+
+    private long rendered = 0;
+
+    /**
+     * Create a cache of DEFAULT_CAPACITY bytes.
+     *
+     * @param map the map
+     * @param renderer draws the tiles
+     * @param changed called from any thread whenever a tile was drawn or
+     *        went out of date, so the viewer can paint again
+     */
+    public MapTileCache (CharMap map, MapRenderer renderer, Runnable changed)
+    {
+        this(map, renderer, changed, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param map the map
+     * @param renderer draws the tiles
+     * @param changed called from any thread whenever a tile was drawn or
+     *        went out of date, so the viewer can paint again
+     * @param capacity number of bytes the tiles may take
+     */
+    public MapTileCache (CharMap map, MapRenderer renderer, Runnable changed, long capacity)
+    {
+        this.map = map;
+        this.renderer = renderer;
+        this.changed = changed;
+        this.capacity = capacity;
+
+        this.pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r ->
+        {
+            Thread t = new Thread(r, "Map tile renderer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        map.addMapChangeListener(this);
+    }
+
+    /**
+     * Stop following changes of the map and drawing tiles.
+     */
+    public void dispose ()
+    {
+        map.removeMapChangeListener(this);
+        pool.shutdownNow();
+    }
+
+    /**
+     *
+     * @return the map
+     */
+    public CharMap getMap ()
+    {
+        return map;
+    }
+
+    /**
+     * Start a new frame. Tiles not asked for since the frame before are no
+     * longer drawn.
+     */
+    public synchronized void beginFrame ()
+    {
+        wantedBefore = wanted;
+        wanted = new HashSet<>();
+    }
+
+    /**
+     * Get a tile of the map's image, having it drawn if it is not ready or
+     * out of date.
+     *
+     * @param zoom the zoom level, MIN_ZOOM to MAX_ZOOM
+     * @param tx the tile's column, starting at 0
+     * @param ty the tile's row, starting at 0
+     * @return TILE_SIZE rows of TILE_SIZE ARGB pixels, or null if the tile
+     *         was never drawn. Not to be changed.
+     */
+    public synchronized int[] getTile (int zoom, int tx, int ty)
+    {
+        final long key = key(zoom, tx, ty);
+        final Tile tile = tiles.get(key);
+        wanted.add(key);
+
+        if ((tile == null || tile.stale) && !drawing.containsKey(key) && !pool.isShutdown())
+        {
+            drawing.put(key, false);
+            pool.execute(() -> draw(key, zoom, tx, ty));
+        }
+
+        return tile == null ? null : tile.pixels;
+    }
+
+    /**
+     * Get the size of the map's image at a zoom level.
+     *
+     * @param zoom
+     * @param points the width or length of the map in points
+     * @return the image's width or height in pixels
+     */
+    public static int getImageSize (int zoom, int points)
+    {
+        return zoom >= 0 ? points << zoom : (points + (1 << -zoom) - 1) >> -zoom;
+    }
+
+    /**
+     *
+     * @return number of bytes the tiles take
+     */
+    public synchronized long getMemoryUsage ()
+    {
+        return tiles.size() * TILE_BYTES;
+    }
+
+    /**
+     *
+     * @return number of tiles drawn so far
+     */
+    public synchronized long getRendered ()
+    {
+        return rendered;
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        synchronized (this)
+        {
+            for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++)
+            {
+                // Pixels the point covers, a point is at most 2^MAX_ZOOM wide
+                final int px0 = zoom >= 0 ? (x - 1) << zoom : (x - 1) >> -zoom;
+                final int py0 = zoom >= 0 ? (y - 1) << zoom : (y - 1) >> -zoom;
+                final int px1 = zoom >= 0 ? (x << zoom) - 1 : px0;
+                final int py1 = zoom >= 0 ? (y << zoom) - 1 : py0;
+
+                for (int ty = py0 / TILE_SIZE; ty <= py1 / TILE_SIZE; ty++)
+                {
+                    for (int tx = px0 / TILE_SIZE; tx <= px1 / TILE_SIZE; tx++)
+                    {
+                        invalidate(key(zoom, tx, ty));
+                    }
+                }
+            }
+        }
+        changed.run();
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (this)
+        {
+            for (Tile tile : tiles.values())
+            {
+                tile.stale = true;
+            }
+            drawing.replaceAll((k, v) -> true);
+        }
+        changed.run();
+    }
+
+    private void invalidate (long key)
+    {
+        final Tile tile = tiles.get(key);
+        if (tile != null)
+        {
+            tile.stale = true;
+        }
+        if (drawing.containsKey(key))
+        {
+            drawing.put(key, true);
+        }
+    }
+
+    private void draw (long key, int zoom, int tx, int ty)
+    {
+        synchronized (this)
+        {
+            if (!wanted.contains(key) && !wantedBefore.contains(key))
+            {
+                drawing.remove(key);
+                return;
+            }
+        }
+
+        final int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        if (zoom >= 0)
+        {
+            renderer.render(map, tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE, 1 << zoom, pixels, 0, TILE_SIZE);
+        }
+        else
+        {
+            renderer.renderReduced(map, tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE, 1 << -zoom, pixels, 0, TILE_SIZE);
+        }
+
+        synchronized (this)
+        {
+            final Tile tile = new Tile(pixels);
+            tile.stale = drawing.remove(key);
+            tiles.put(key, tile);
+            rendered++;
+
+            for (Iterator<Tile> it = tiles.values().iterator(); tiles.size() * TILE_BYTES > capacity && it.hasNext();)
+            {
+                it.next();
+                it.remove();
+            }
+        }
+        changed.run();
+    }
+
+    private static long key (int zoom, int tx, int ty)
+    {
+        return ((long) (zoom - MIN_ZOOM) << 56) | ((long) tx << 28) | ty;
+    }
+
+    private static final class Tile
+    {
+        final int[] pixels;
+        boolean stale = false;
+
+        Tile (int[] pixels)
+        {
+            this.pixels = pixels;
+        }
+    }
+}
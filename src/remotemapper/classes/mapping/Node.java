@@ -84,7 +84,7 @@ public class Node extends Point
      * Construct a path after using A*
      * 
      * @param goal The last node in a pathfind algorithm
-     * @return
+     * @return the nodes from goal to start, each one once
      */
     public static Node[] constructPath (Node goal)
     {
@@ -94,8 +94,8 @@ public class Node extends Point
 
         while (n.getParent() != null)
         {
-            path.add (n);
             n = n.getParent();
+            path.add (n);
         }
 
         return path.toArray(new Node[path.size()]);
@@ -135,6 +135,8 @@ public class Node extends Point
 
     /**
      *  Return Node array of neighbors,that have the value of a specific character on a map.
+     *  Every neighbor carries the map's cost of driving onto it, its G is the
+     *  center's G plus that cost.
      * 
     * @param center
     * @param map
@@ -149,55 +151,41 @@ public class Node extends Point
          * XXX
          * XOX
          */
-        if (map.getLength() > center.getY() + 1)
-        {
-            if (map.getPoint(center.getX(), center.getY() + 1) == ch)
-            {
-                neighbors.add(new Node(center.getX(), center.getY() + 1));
-            }
-        }
+        addNeighbor(neighbors, center, map, ch, center.getX(), center.getY() + 1);
 
         /* XXX
          * XXO
          * XXX
          */
-        if (map.getLength() > center.getX() + 1)
-        {
-            if (map.getPoint(center.getX() + 1, center.getY()) == ch)
-            {
-                neighbors.add(new Node(center.getX() + 1, center.getY()));
-            }
-        }
+        addNeighbor(neighbors, center, map, ch, center.getX() + 1, center.getY());
 
         /* XXX
          * OXX
          * XXX
          */
-        if (center.getX() - 1 > 0)
-        {
-            if (map.getPoint(center.getX() - 1, center.getX()) == ch)
-            {
-                neighbors.add(new Node (center.getX() - 1, center.getY()));
-            }
-        }
+        addNeighbor(neighbors, center, map, ch, center.getX() - 1, center.getY());
 
         /* XOX
          * XXX
          * XXX
          */
-        if (center.getY() - 1 > 0)
-        {
-            if (map.getPoint(center.getX(), center.getY() - 1) == ch)
-            {
-                neighbors.add(new Node (center.getX(), center.getY() - 1));
-            }
-        }
-
-        neighbors.forEach(node -> node.setParent(center));
+        addNeighbor(neighbors, center, map, ch, center.getX(), center.getY() - 1);
 
         return neighbors.toArray(new Node[neighbors.size()]);
     }
     
+    private static void addNeighbor (List<Node> neighbors, Node center, CharMap map, char ch, int x, int y)
+    {
+        if (x > 0 && y > 0 && x < map.getWidth() && y <= map.getLength()
+            && map.getPoint(x, y) == ch)
+        {
+            Node n = new Node(x, y, map.getCost(x, y));
+            n.setG(center.getG() + n.getCost());
+            n.setParent(center);
+            neighbors.add(n);
+        }
+    }
+    
     /**
      * Compare two nodes
      * 
@@ -280,7 +268,7 @@ public class Node extends Point
      *
      * @param cost
      */
-    public void setCost(int cost) {
+    public void setCost(double cost) {
             this.cost = cost;
     }
 }
\ No newline at end of file
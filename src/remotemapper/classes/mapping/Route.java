@@ -16,6 +16,8 @@
  */
 package remotemapper.classes.mapping;
 
+import java.util.ArrayList;
+import java.util.List;
 import remotemapper.classes.Vector;
 
 /**
@@ -28,9 +30,13 @@ public class Route
     private final CharMap map;
     private final Node[] nodes;
     private final Vector[] path;
+    private final char routeMark;
     
     /**
-     * Creates a new Route object.
+     * Creates a new Route object. The nodes may be further apart than one
+     * step, like the turning points found by Theta*, in which case the
+     * route runs straight between them. Steps in the same direction are
+     * merged, so every vector of the path is one straight drive.
      * 
      * @param map CharMap to display route on
      * @param path Path of nodes
@@ -40,18 +46,76 @@ public class Route
     {
         this.map = new CharMap (map);
         this.nodes = path;
+        this.routeMark = routeMark;
         
-        for (Node n : path)
+        for (int i = 0; i < path.length - 1; i++)
         {
-            this.map.setPoint(n.getX(), n.getY(), routeMark);
+            markLine(path[i], path[i+1], routeMark);
         }
+        this.map.setPoint(path[path.length-1].getX(), path[path.length-1].getY(), routeMark);
         
-        this.path = new Vector[path.length - 1];
+        List<Vector> segments = new ArrayList<>();
+        int dx = 0, dy = 0;
         
         for (int i = 0; i < path.length - 1; i++)
         {
-            this.path[i] = new Vector (path[i].getX() - path[i+1].getX(),
-                                      path[i].getY() - path[i+1].getY());
+            int sx = path[i].getX() - path[i+1].getX();
+            int sy = path[i].getY() - path[i+1].getY();
+            
+            if ((long) sx * dy == (long) sy * dx && Integer.signum(sx) == Integer.signum(dx)
+                && Integer.signum(sy) == Integer.signum(dy))
+            {
+                dx += sx;
+                dy += sy;
+            }
+            else
+            {
+                if (dx != 0 || dy != 0)
+                {
+                    segments.add(new Vector(dx, dy));
+                }
+                dx = sx;
+                dy = sy;
+            }
+        }
+        
+        if (dx != 0 || dy != 0)
+        {
+            segments.add(new Vector(dx, dy));
+        }
+        
+        this.path = segments.toArray(new Vector[segments.size()]);
+    }
+    
+    /**
+     * Mark every point a straight line between two nodes runs through,
+     * except the last one.
+     */
+    private void markLine (Node from, Node to, char routeMark)
+    {
+        final int nx = Math.abs(to.getX() - from.getX());
+        final int ny = Math.abs(to.getY() - from.getY());
+        final int sx = Integer.signum(to.getX() - from.getX());
+        final int sy = Integer.signum(to.getY() - from.getY());
+        
+        int x = from.getX();
+        int y = from.getY();
+        
+        for (int ix = 0, iy = 0; ix < nx || iy < ny; )
+        {
+            map.setPoint(x, y, routeMark);
+            
+            long next = (1 + 2L * ix) * ny - (1 + 2L * iy) * nx;
+            if (next <= 0)
+            {
+                x += sx;
+                ix++;
+            }
+            if (next >= 0)
+            {
+                y += sy;
+                iy++;
+            }
         }
     }
     
@@ -94,6 +158,14 @@ public class Route
         return nodes;
     }
 
+    /**
+     *
+     * @return the char the route is marked with on its map
+     */
+    public char getRouteMark() {
+        return routeMark;
+    }
+
     /**
      *
      * @return
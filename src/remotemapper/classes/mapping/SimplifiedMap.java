@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Function;
+import remotemapper.classes.mapping.storage.MapStorage;
+
+/**
+ * Keeps a map simplified with CharMap.simplfyMap() up to date while the map
+ * is being edited.
+ *
+ * The simplified map is a single CharMap for the whole life of this object,
+ * so planners and views can follow it with a MapChangeListener like any
+ * other map. Every block of the map keeps a count of its obstacles. An edit
+ * only moves the count of its own block, under a lock of its own so the
+ * thread making it never waits for the simplified map, and marks the block
+ * if its count went from or to 0 or if the map has traversal costs. The
+ * next getMap() sets the point of each marked block from its count, and
+ * its penalty, on the simplified map, which notifies its listeners of just
+ * the points that changed. An edit therefore costs time in proportion to
+ * the points it changed instead of to the size of the map.
+ *
+ * The map is simplified from scratch when it is replaced, when it changes
+ * size, or when the coefficient changes, and the simplified map then tells
+ * its listeners it was replaced. The obstacles are counted again first,
+ * under the lock. The first edit after that counts its block again instead
+ * of moving the count, as the count may already hold it. Edits are taken to
+ * come from one thread, as the map's all do from the event dispatch thread.
+ *
+ * Updates run on whichever thread asks for the map. Searches on another
+ * thread go through read(), which keeps them from running while the
+ * simplified map is being updated.
+ *
+ * @author Robert Hutter
+ */
+public final class SimplifiedMap implements MapChangeListener
+{
+    private final CharMap map;
+
+    /**
+     * The map handed out by getMap(), only changed by update().
+     */
+    private final CharMap simple;
+
+    /**
+     * Blocks changed since the last update, row by row. Guards the fields
+     * below it.
+     */
+    private final BitSet dirty = new BitSet();
+    private boolean replaced = true;
+    private int coefficient;
+
+    /**
+     * Blocks the simplified map has, as of the last time it was simplified
+     * from scratch.
+     */
+    private int width, length, size;
+
+    /**
+     * Obstacles in every block of the map, row by row.
+     */
+    private int[] counts;
+
+    /**
+     * True if the obstacles were counted since the last edit.
+     */
+    private boolean counted;
+
+    /**
+     * Start keeping a simplified version of a map.
+     *
+     * @param map the map
+     * @param coefficient length of a block of the map that becomes one point
+     *        of the simplified map
+     */
+    public SimplifiedMap (CharMap map, int coefficient)
+    {
+        this.map = map;
+        this.coefficient = Math.max(1, coefficient);
+        this.simple = new CharMap(0, 0, map.getObsticalMark(), map.getEmptySpaceMark());
+        map.addMapChangeListener(this);
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public void dispose ()
+    {
+        map.removeMapChangeListener(this);
+    }
+
+    /**
+     *
+     * @return length of a block of the map that becomes one point of the
+     *         simplified map
+     */
+    public int getCoefficient ()
+    {
+        synchronized (dirty)
+        {
+            return coefficient;
+        }
+    }
+
+    /**
+     * Change the simplification coefficient. The map is simplified again by
+     * the next getMap() if it differs from the current one.
+     *
+     * @param coefficient
+     */
+    public void setCoefficient (int coefficient)
+    {
+        coefficient = Math.max(1, coefficient);
+        synchronized (dirty)
+        {
+            if (coefficient != this.coefficient)
+            {
+                this.coefficient = coefficient;
+                replaced = true;
+            }
+        }
+    }
+
+    /**
+     * Bring the simplified map up to date and get it. Always the same map,
+     * which keeps following the edits of the map through later calls, so
+     * reading it while another thread calls this may see an update half
+     * done. Use read() for that.
+     *
+     * @return the map as CharMap.simplfyMap() would simplify it, not to be
+     *         changed
+     */
+    public synchronized CharMap getMap ()
+    {
+        update();
+        return simple;
+    }
+
+    /**
+     * Bring the simplified map up to date and read it, for example to search
+     * a path on it. The map is not updated again before the reader returns.
+     *
+     * @param <T>
+     * @param reader gets the map as CharMap.simplfyMap() would simplify it,
+     *        not to be changed
+     * @return what the reader returns
+     */
+    public synchronized <T> T read (Function<CharMap, T> reader)
+    {
+        update();
+        return reader.apply(simple);
+    }
+
+    /**
+     *
+     * @return approximate number of bytes of heap the simplified map takes
+     */
+    public long getMemoryUsage ()
+    {
+        return simple.getMemoryUsage();
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        final char obM = map.getObsticalMark();
+        final boolean obstacle = oldVal == obM || newVal == obM;
+        if (!obstacle && map.hasUniformCost())
+        {
+            return; // Changes neither obstacles nor costs
+        }
+
+        synchronized (dirty)
+        {
+            if (replaced)
+            {
+                return;
+            }
+
+            final int bx = (x - 1) / size;
+            final int by = (y - 1) / size;
+            if (bx >= width || by >= length)
+            {
+                return; // Part of the remainder the simplified map does not cover
+            }
+
+            final int i = by * width + bx;
+            if (counted)
+            {
+                // The count may or may not hold this edit already
+                counts[i] = count(bx, by);
+                counted = false;
+                dirty.set(i);
+            }
+            else if (obstacle)
+            {
+                final int before = counts[i];
+                counts[i] += newVal == obM ? 1 : -1;
+                if ((before == 0) != (counts[i] == 0) || !map.hasUniformCost())
+                {
+                    dirty.set(i);
+                }
+            }
+            else
+            {
+                dirty.set(i);
+            }
+        }
+    }
+
+    @Override
+    public void penaltyChanged (CharMap map, int x, int y)
+    {
+        mark(x, y);
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (dirty)
+        {
+            replaced = true;
+        }
+    }
+
+    private void mark (int x, int y)
+    {
+        synchronized (dirty)
+        {
+            if (replaced)
+            {
+                return;
+            }
+
+            final int bx = (x - 1) / size;
+            final int by = (y - 1) / size;
+            if (bx < width && by < length)
+            {
+                dirty.set(by * width + bx);
+            }
+            // Else part of the remainder the simplified map does not cover
+        }
+    }
+
+    /**
+     * Simplify the map from scratch if needed, then set the blocks changed
+     * since.
+     */
+    private void update ()
+    {
+        int c = 0;
+        synchronized (dirty)
+        {
+            if (replaced)
+            {
+                c = coefficient;
+                size = c;
+                width = map.getWidth() / c;
+                length = map.getLength() / c;
+                countAll();
+                dirty.clear();
+                replaced = false;
+            }
+        }
+
+        if (c != 0)
+        {
+            // Blocks edited from the count on are marked, and set below
+            simple.replaceWith(CharMap.simplfyMap(map, c));
+        }
+
+        final BitSet todo;
+        final BitSet blocked = new BitSet();
+        final int w, s;
+        synchronized (dirty)
+        {
+            if (replaced)
+            {
+                return; // Replaced again, the next update starts over
+            }
+            todo = (BitSet) dirty.clone();
+            dirty.clear();
+            w = width;
+            s = size;
+
+            for (int i = todo.nextSetBit(0); i >= 0; i = todo.nextSetBit(i + 1))
+            {
+                blocked.set(i, counts[i] > 0);
+            }
+        }
+
+        for (int i = todo.nextSetBit(0); i >= 0; i = todo.nextSetBit(i + 1))
+        {
+            refresh(i % w, i / w, s, blocked.get(i));
+        }
+    }
+
+    /**
+     * Count the obstacles of every block, reading the map a row of words at
+     * a time. Called under dirty.
+     */
+    private void countAll ()
+    {
+        final MapStorage st = map.getStorage();
+        final char obM = map.getObsticalMark();
+        final long[] row = new long[st.getWordsPerRow()];
+
+        counts = new int[width * length];
+        for (int y = 0; y < length * size; y++)
+        {
+            Arrays.fill(row, 0);
+            st.orMatchRow(y, obM, row);
+
+            final int base = (y / size) * width;
+            for (int i = 0; i < row.length; i++)
+            {
+                for (long word = row[i]; word != 0; word &= word - 1)
+                {
+                    // The last block of a row may cover the line separators
+                    final int bx = ((i << 6) + Long.numberOfTrailingZeros(word)) / size;
+                    if (bx < width)
+                    {
+                        counts[base + bx]++;
+                    }
+                }
+            }
+        }
+        counted = true;
+    }
+
+    /**
+     * Count the obstacles of one block. Called under dirty.
+     *
+     * @param bx the block's column, starting at 0
+     * @param by the block's row, starting at 0
+     */
+    private int count (int bx, int by)
+    {
+        final MapStorage st = map.getStorage();
+        final char obM = map.getObsticalMark();
+        final int x1 = Math.min((bx + 1) * size, st.getWidth());
+        final int y1 = Math.min((by + 1) * size, st.getHeight());
+
+        int n = 0;
+        for (int y = by * size; y < y1; y++)
+        {
+            for (int x = bx * size; x < x1; x++)
+            {
+                if (st.get(x, y) == obM)
+                {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Set the point and penalty of one block of the simplified map.
+     *
+     * @param bx the block's column, starting at 0
+     * @param by the block's row, starting at 0
+     * @param s length of a block
+     * @param blocked true if the block holds an obstacle
+     */
+    private void refresh (int bx, int by, int s, boolean blocked)
+    {
+        final MapStorage st = map.getStorage();
+        final int x0 = bx * s;
+        final int y0 = by * s;
+        if (x0 >= st.getWidth() || y0 + s > st.getHeight()
+            || bx >= simple.getWidth() - 1 || by >= simple.getLength())
+        {
+            return; // The map changed size, it is simplified again next
+        }
+
+        final char obM = map.getObsticalMark();
+        if (blocked)
+        {
+            simple.setPoint(bx + 1, by + 1, obM);
+            simple.setPenalty(bx + 1, by + 1, 0);
+        }
+        else
+        {
+            simple.setPoint(bx + 1, by + 1, map.getEmptySpaceMark());
+            if (map.hasUniformCost())
+            {
+                simple.setPenalty(bx + 1, by + 1, 0);
+            }
+            else
+            {
+                CharMap.penalizeBlock(map, simple, bx, by, s);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps the simplified versions of a map for the coefficients asked for
+ * recently, each in a SimplifiedMap following the edits of the map.
+ *
+ * Asking for the same coefficient again returns the same simplified map,
+ * brought up to date by redoing only the blocks that changed. Switching
+ * back to a coefficient used before, such as when the rover's size is set
+ * back, does not simplify the map from scratch either.
+ *
+ * The least recently used coefficients are dropped once their simplified
+ * maps take more than the capacity in bytes. A dropped map stops following
+ * the map, so callers holding on to one should ask again for the
+ * coefficient and compare.
+ *
+ * @author Robert Hutter
+ */
+public final class SimplifiedMapCache
+{
+    /**
+     * Default capacity in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 16 << 20;
+
+    private final CharMap map;
+    private final long capacity;
+
+    /**
+     * Least recently used first.
+     */
+    private final LinkedHashMap<Integer, SimplifiedMap> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a cache of DEFAULT_CAPACITY bytes.
+     *
+     * @param map the map to simplify
+     */
+    public SimplifiedMapCache (CharMap map)
+    {
+        this(map, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param map the map to simplify
+     * @param capacity number of bytes the simplified maps may take
+     */
+    public SimplifiedMapCache (CharMap map, long capacity)
+    {
+        this.map = map;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the map simplified with a coefficient, up to date. Asking for the
+     * same coefficient returns the same map for as long as it is cached.
+     *
+     * @param coefficient
+     * @return the map as CharMap.simplfyMap() would simplify it, not to be
+     *         changed
+     */
+    public CharMap get (int coefficient)
+    {
+        return entry(coefficient).getMap();
+    }
+
+    /**
+     * Get the map simplified with a coefficient, up to date, and read it
+     * without it being updated meanwhile. See SimplifiedMap.read().
+     *
+     * @param <T>
+     * @param coefficient
+     * @param reader gets the simplified map, not to be changed
+     * @return what the reader returns
+     */
+    public <T> T read (int coefficient, Function<CharMap, T> reader)
+    {
+        return entry(coefficient).read(reader);
+    }
+
+    /**
+     * Get the SimplifiedMap of a coefficient, simplifying the map if it is
+     * not cached. Cached maps are brought up to date and read outside of
+     * the cache's lock, so a search on one does not hold up the others.
+     */
+    private synchronized SimplifiedMap entry (int coefficient)
+    {
+        SimplifiedMap s = entries.get(coefficient);
+        if (s != null)
+        {
+            hits++;
+            return s;
+        }
+        misses++;
+
+        s = new SimplifiedMap(map, coefficient);
+        entries.put(coefficient, s);
+        s.getMap();
+
+        long bytes = getMemoryUsage();
+        for (Iterator<SimplifiedMap> it = entries.values().iterator(); bytes > capacity && it.hasNext();)
+        {
+            final SimplifiedMap e = it.next();
+            if (e != s)
+            {
+                bytes -= e.getMemoryUsage();
+                e.dispose();
+                it.remove();
+            }
+        }
+
+        return s;
+    }
+
+    /**
+     * Drop every cached map.
+     */
+    public synchronized void clear ()
+    {
+        for (SimplifiedMap s : entries.values())
+        {
+            s.dispose();
+        }
+        entries.clear();
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public void dispose ()
+    {
+        clear();
+    }
+
+    /**
+     *
+     * @return number of bytes the cached maps take
+     */
+    public synchronized long getMemoryUsage ()
+    {
+        long bytes = 0;
+        for (SimplifiedMap s : entries.values())
+        {
+            bytes += s.getMemoryUsage();
+        }
+        return bytes;
+    }
+
+    /**
+     *
+     * @return number of calls to get() answered by a map already cached
+     */
+    public synchronized long getHits ()
+    {
+        return hits;
+    }
+
+    /**
+     *
+     * @return number of calls to get() that had to simplify the map from
+     *         scratch
+     */
+    public synchronized long getMisses ()
+    {
+        return misses;
+    }
+}
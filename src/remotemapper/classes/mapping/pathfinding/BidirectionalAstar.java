@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Bidirectional A* with the forward and the backward search running on two
+ * threads at the same time (parallel NBA*).
+ *
+ * The forward search runs on the calling thread, the backward one on a
+ * background thread. Both publish their g scores, so whenever one of them
+ * reaches a cell the other has reached too, the length of the best known
+ * path (mu) is updated. A cell is expanded by at most one of the searches,
+ * and cells that provably can not lie on a path shorter than mu, judged by
+ * their own heuristic or the other search's frontier, are dropped. The
+ * search stops as soon as either side runs out of cells.
+ *
+ * Finds the same path cost as GridAstar, 4-connected with traversal costs.
+ *
+ * @author Robert Hutter
+ */
+public final class BidirectionalAstar
+{
+    private static final int[] DX = {0, 1, -1, 0};
+    private static final int[] DY = {1, 0, 0, -1};
+
+    private static final ExecutorService BACKWARD = Executors.newCachedThreadPool(r ->
+    {
+        Thread t = new Thread(r, "Backward search");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final ThreadLocal<Shared> POOL = ThreadLocal.withInitial(Shared::new);
+
+    /**
+     * The state shared by searches too large for the thread pools, null
+     * while lent out.
+     */
+    private static final AtomicReference<Shared> LARGE = new AtomicReference<>();
+
+    private final CharMap map;
+    private final Shared sh;
+    private final int w, h, s, t;
+
+    /**
+     * Length of the best path found so far, and the last cell of its
+     * forward and the first cell of its backward half. They are either the
+     * same cell or neighbours.
+     */
+    private volatile double mu = Double.POSITIVE_INFINITY;
+    private int meetForward = -1;
+    private int meetBackward = -1;
+
+    /**
+     * Lower bound of the f scores left in each search's open list.
+     */
+    private volatile double forwardMin, backwardMin;
+    private volatile boolean done = false;
+
+    private BidirectionalAstar (CharMap map, Shared sh, int s, int t)
+    {
+        this.map = map;
+        this.sh = sh;
+        this.w = map.getWidth();
+        this.h = map.getLength();
+        this.s = s;
+        this.t = t;
+    }
+
+    /**
+     * Find the cheapest 4-connected path between two points of a map.
+     *
+     * @param map map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (CharMap map, Node start, Node goal)
+    {
+        final int w = map.getWidth();
+        final int h = map.getLength();
+
+        if (start.getX() < 1 || start.getY() < 1 || start.getX() > w || start.getY() > h
+            || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return null;
+        }
+
+        final Shared sh = Shared.acquire(w * h);
+
+        final BidirectionalAstar search = new BidirectionalAstar(map, sh,
+                (start.getY() - 1) * w + start.getX() - 1, (goal.getY() - 1) * w + goal.getX() - 1);
+
+        return search.run();
+    }
+
+    private Node[] run ()
+    {
+        forwardMin = h(s, t);
+        backwardMin = forwardMin;
+
+        sh.forward.visit(s, 0, -1);
+        sh.forwardG.set(s, 0, sh.stamp);
+        sh.forward.open.push(s, h(s, t), 0);
+        sh.backward.visit(t, 0, -1);
+        sh.backwardG.set(t, 0, sh.stamp);
+        sh.backward.open.push(t, h(s, t), 0);
+
+        if (s == t)
+        {
+            offer(0, s, s);
+        }
+
+        Future<?> backward = BACKWARD.submit(() -> expand(false));
+        try
+        {
+            expand(true);
+        }
+        finally
+        {
+            done = true;
+        }
+
+        try
+        {
+            backward.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException ex)
+        {
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        // Only once the backward search is over, so no other search gets the state while it runs
+        sh.release();
+        return meetForward == -1 ? null : buildPath();
+    }
+
+    /**
+     * One side of the search. The backward side walks the edges in reverse:
+     * moving from x to y costs the cost of y in both directions.
+     *
+     * @param forward true for the search from the start
+     */
+    private void expand (boolean forward)
+    {
+        final SearchBuffers b = forward ? sh.forward : sh.backward;
+        final Scores mine = forward ? sh.forwardG : sh.backwardG;
+        final Scores other = forward ? sh.backwardG : sh.forwardG;
+        final int origin = forward ? s : t;
+        final int target = forward ? t : s;
+
+        while (!done)
+        {
+            if (b.open.isEmpty())
+            {
+                done = true;
+                break;
+            }
+
+            final double f = b.open.peekKey();
+            final int x = b.open.pop();
+
+            if (f >= mu)
+            {
+                // Every cell left would be rejected
+                done = true;
+                break;
+            }
+
+            if (forward)
+            {
+                forwardMin = f;
+            }
+            else
+            {
+                backwardMin = f;
+            }
+
+            if (!sh.claim(x))
+            {
+                continue; // Already expanded by the other side
+            }
+
+            final double gx = b.g[x];
+            final double otherMin = forward ? backwardMin : forwardMin;
+
+            if (gx + otherMin - h(x, origin) >= mu)
+            {
+                continue; // Can not be on a shorter path
+            }
+
+            final int cx = x % w;
+            final int cy = x / w;
+
+            for (int d = 0; d < DX.length; d++)
+            {
+                final int nx = cx + DX[d];
+                final int ny = cy + DY[d];
+
+                if (nx < 0 || ny < 0 || nx >= w || ny >= h)
+                {
+                    continue;
+                }
+
+                final int y = x + DY[d] * w + DX[d];
+
+                if (b.isClosed(y))
+                {
+                    continue;
+                }
+
+                double c;
+                if (forward)
+                {
+                    c = map.getCost(nx + 1, ny + 1);
+                }
+                else if (y == s || map.isPassable(nx + 1, ny + 1))
+                {
+                    c = map.getCost(cx + 1, cy + 1);
+                }
+                else
+                {
+                    continue;
+                }
+
+                final double ng = gx + c;
+
+                if (sh.isClaimed(y))
+                {
+                    // The other side will not look at this edge any more
+                    final double og = other.get(y, sh.stamp);
+                    if (ng + og < mu)
+                    {
+                        offer(ng + og, forward ? x : y, forward ? y : x);
+                    }
+                    continue;
+                }
+
+                if (ng < b.g(y))
+                {
+                    b.visit(y, ng, x);
+                    mine.set(y, ng, sh.stamp);
+                    b.open.push(y, ng + h(y, target), -ng);
+
+                    final double og = other.get(y, sh.stamp);
+                    if (ng + og < mu)
+                    {
+                        offer(ng + og, y, y);
+                    }
+                }
+            }
+
+            b.close(x);
+        }
+    }
+
+    private synchronized void offer (double length, int forwardCell, int backwardCell)
+    {
+        if (length < mu)
+        {
+            mu = length;
+            meetForward = forwardCell;
+            meetBackward = backwardCell;
+        }
+    }
+
+    private Node[] buildPath ()
+    {
+        int forwardLength = 1;
+        for (int i = meetForward; i != s; i = sh.forward.parent[i])
+        {
+            forwardLength++;
+        }
+        int backwardLength = meetBackward == meetForward ? 0 : 1;
+        for (int i = meetBackward; i != t; i = sh.backward.parent[i])
+        {
+            backwardLength++;
+        }
+
+        // Cells from start to goal
+        int[] cells = new int[forwardLength + backwardLength];
+        cells[forwardLength - 1] = meetForward;
+        for (int k = forwardLength - 1; k > 0; k--)
+        {
+            cells[k - 1] = sh.forward.parent[cells[k]];
+        }
+        for (int k = forwardLength; k < cells.length; k++)
+        {
+            cells[k] = k == forwardLength && meetBackward != meetForward
+                    ? meetBackward : sh.backward.parent[cells[k - 1]];
+        }
+
+        Node[] path = new Node[cells.length];
+        double g = 0;
+        for (int k = 0; k < cells.length; k++)
+        {
+            int c = cells[k];
+            if (k > 0)
+            {
+                g += map.getCost(c % w + 1, c / w + 1);
+            }
+
+            Node n = new Node(c % w + 1, c / w + 1);
+            n.setG(g);
+            n.setF(g);
+            path[cells.length - 1 - k] = n;
+        }
+        for (int k = 0; k < path.length - 1; k++)
+        {
+            path[k].setParent(path[k + 1]);
+        }
+
+        return path;
+    }
+
+    private double h (int a, int b)
+    {
+        return Math.abs(a % w - b % w) + Math.abs(a / w - b / w);
+    }
+
+    /**
+     * State of a search shared between its two threads, pooled like the
+     * SearchBuffers of GridAstar: per calling thread up to
+     * SearchBuffers.MAX_POOLED_BYTES, one shared by larger searches beyond.
+     * Instead of clearing the shared arrays every search gets a new stamp,
+     * stored next to every value.
+     */
+    private static final class Shared
+    {
+        /**
+         * Bytes a cell takes: the buffers of both sides, both sides' g
+         * scores with their stamps and the claimed stamp.
+         */
+        static final int BYTES_PER_CELL = 2 * SearchBuffers.BYTES_PER_CELL + 2 * 12 + 4;
+
+        SearchBuffers forward = new SearchBuffers();
+        SearchBuffers backward = new SearchBuffers();
+
+        /**
+         * g score of every cell reached by each side.
+         */
+        Scores forwardG = new Scores(0);
+        Scores backwardG = new Scores(0);
+
+        /**
+         * Cells already expanded, by either side, hold the stamp.
+         */
+        AtomicIntegerArray claimed = new AtomicIntegerArray(0);
+        int stamp = 0;
+        boolean large = false;
+
+        /**
+         * Get state ready for a search over the specified number of cells.
+         */
+        static Shared acquire (int cells)
+        {
+            Shared sh;
+            if ((long) cells * BYTES_PER_CELL <= SearchBuffers.MAX_POOLED_BYTES)
+            {
+                sh = POOL.get();
+            }
+            else
+            {
+                sh = LARGE.getAndSet(null);
+                if (sh == null)
+                {
+                    sh = new Shared();
+                    sh.large = true;
+                }
+            }
+
+            sh.prepare(cells);
+            return sh;
+        }
+
+        /**
+         * Hand state got from acquire back once both sides are done with it.
+         */
+        void release ()
+        {
+            if (large && (long) claimed.length() * BYTES_PER_CELL <= SearchBuffers.MAX_LARGE_BYTES)
+            {
+                LARGE.set(this);
+            }
+        }
+
+        void prepare (int cells)
+        {
+            forward.prepare(cells);
+            backward.prepare(cells);
+
+            if (claimed.length() < cells || stamp == Integer.MAX_VALUE)
+            {
+                forwardG = new Scores(cells);
+                backwardG = new Scores(cells);
+                claimed = new AtomicIntegerArray(cells);
+                stamp = 0;
+            }
+
+            stamp++;
+        }
+
+        boolean claim (int i)
+        {
+            while (true)
+            {
+                int v = claimed.get(i);
+                if (v == stamp)
+                {
+                    return false;
+                }
+                if (claimed.compareAndSet(i, v, stamp))
+                {
+                    return true;
+                }
+            }
+        }
+
+        boolean isClaimed (int i)
+        {
+            return claimed.get(i) == stamp;
+        }
+    }
+
+    /**
+     * g scores one side publishes to the other, kept as doubles so both
+     * sides add up the same costs GridAstar does. A score is written before
+     * the stamp that marks it as one of the current search, so a reader
+     * that sees the stamp also sees a score of that search.
+     */
+    private static final class Scores
+    {
+        private final AtomicLongArray g;
+        private final AtomicIntegerArray reached;
+
+        Scores (int cells)
+        {
+            g = new AtomicLongArray(cells);
+            reached = new AtomicIntegerArray(cells);
+        }
+
+        void set (int i, double score, int stamp)
+        {
+            g.set(i, Double.doubleToRawLongBits(score));
+            if (reached.get(i) != stamp)
+            {
+                reached.set(i, stamp);
+            }
+        }
+
+        /**
+         *
+         * @param i cell index
+         * @param stamp stamp of the current search
+         * @return the cell's g score, infinity if it was not reached in the
+         *         current search
+         */
+        double get (int i, int stamp)
+        {
+            return reached.get(i) == stamp ? Double.longBitsToDouble(g.get(i)) : Double.POSITIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Finds the points of the map a simplified map was simplified from that
+ * stand for its points, for planners that search the full map on behalf of
+ * the simplified one.
+ *
+ * @author Robert Hutter
+ */
+final class Blocks
+{
+    private Blocks () {}
+
+    /**
+     * Get the point of the full map in the middle of a block.
+     *
+     * @param map the full map
+     * @param coefficient length of a block of the full map that became one
+     *        point of the simplified map
+     * @param n a point of the simplified map
+     * @return
+     */
+    static Node centre (CharMap map, int coefficient, Node n)
+    {
+        return new Node(Math.min((n.getX() - 1) * coefficient + coefficient / 2 + 1, map.getWidth() - 1),
+                        Math.min((n.getY() - 1) * coefficient + coefficient / 2 + 1, map.getLength()));
+    }
+}
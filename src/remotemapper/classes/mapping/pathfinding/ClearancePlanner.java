@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.DistanceField;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Searches the map at full resolution instead of its simplified version,
+ * treating the points the rover's body would touch an obstacle on as
+ * blocked. The rover is taken as a disc, so its centre may go wherever the
+ * distance to the nearest obstacle is at least its radius. This finds the
+ * gaps narrower than a block of the simplified map but wide enough for the
+ * rover, which simplification closes.
+ *
+ * @author Robert Hutter
+ */
+public final class ClearancePlanner
+{
+    private ClearancePlanner () {}
+
+    /**
+     * Find a path between two points of a distance field's map.
+     *
+     * @param field distance field of the map to search on
+     * @param radius the rover's radius in points, at most the field's
+     *        maximum distance
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (DistanceField field, double radius, Node start, Node goal)
+    {
+        final CharMap map = field.getMap();
+        if (!field.isClear(start.getX(), start.getY(), radius) || !field.isClear(goal.getX(), goal.getY(), radius))
+        {
+            return null;
+        }
+
+        return GridAstar.search(map, start, goal, false, field.clearOf(radius));
+    }
+
+    /**
+     * Find a path between two points of a simplified map on the map it was
+     * simplified from. The search starts and ends at the centres of the
+     * blocks, and the path is given back at full resolution, so it keeps to
+     * the gaps narrower than a block it was found through.
+     *
+     * @param field distance field of the full map
+     * @param radius the rover's radius in points of the full map
+     * @param coefficient length of a block of the full map that became one
+     *        point of the simplified map
+     * @param start the start point on the simplified map
+     * @param goal the goal point on the simplified map
+     * @return the path from goal to start on the full map, null if there is
+     *         none
+     */
+    public static Node[] search (DistanceField field, double radius, int coefficient, Node start, Node goal)
+    {
+        final CharMap map = field.getMap();
+        return search(field, radius, Blocks.centre(map, coefficient, start), Blocks.centre(map, coefficient, goal));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapPyramid;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Plans a path on a coarse level of a MapPyramid first and then searches
+ * the map itself only inside a corridor around the coarse path.
+ *
+ * On the coarse level only cells made of nothing but obstacles are
+ * blocked, so wherever the map has a path the coarse level has one too.
+ * Partly blocked cells cost more the more obstacles they hold, which keeps
+ * the coarse path in the open. The corridor is the coarse path widened by
+ * CORRIDOR_RADIUS cells on every side. Should the map have no path inside
+ * it, as can happen where the open parts of neighbouring cells do not
+ * connect, the whole map is searched instead, so a path is found whenever
+ * there is one. Paths are close to, but not always exactly, the cheapest.
+ *
+ * A filter can keep the search off more points than the obstacles, such as
+ * those a DistanceField reports too close to one for the rover. The coarse
+ * level still has a path wherever the filtered map does.
+ *
+ * @author Robert Hutter
+ */
+public final class CoarseToFinePlanner
+{
+    /**
+     * The coarse level is the first with no more than this many cells
+     * along either side.
+     */
+    public static final int COARSE_CELLS = 128;
+
+    /**
+     * Cells the corridor reaches beyond the coarse path.
+     */
+    public static final int CORRIDOR_RADIUS = 1;
+
+    /**
+     * Extra cost of a coarse cell full of obstacles but one.
+     */
+    private static final double OCCUPANCY_PENALTY = 4;
+
+    private CoarseToFinePlanner () {}
+
+    /**
+     * Find a path between two points of a pyramid's map, on the coarse
+     * level chosen by COARSE_CELLS.
+     *
+     * @param pyramid pyramid of the map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (MapPyramid pyramid, Node start, Node goal)
+    {
+        return search(pyramid, start, goal, coarseLevel(pyramid), null);
+    }
+
+    /**
+     * Find a path between two points of a simplified map on the pyramid of
+     * the map it was simplified from, on the coarse level chosen by
+     * COARSE_CELLS. The search starts and ends at the centres of the
+     * blocks, and the path is given back at full resolution.
+     *
+     * @param pyramid pyramid of the full map
+     * @param allowed tests the packed index (y - 1) * width + (x - 1) of a
+     *        point of the full map, points it rejects are never entered.
+     *        Null to accept all.
+     * @param coefficient length of a block of the full map that became one
+     *        point of the simplified map
+     * @param start the start point on the simplified map
+     * @param goal the goal point on the simplified map
+     * @return the path from goal to start on the full map, null if there is
+     *         none
+     */
+    public static Node[] search (MapPyramid pyramid, IntPredicate allowed, int coefficient, Node start, Node goal)
+    {
+        final CharMap map = pyramid.getMap();
+        return search(pyramid, Blocks.centre(map, coefficient, start), Blocks.centre(map, coefficient, goal),
+                coarseLevel(pyramid), allowed);
+    }
+
+    /**
+     * Find a path between two points of a pyramid's map.
+     *
+     * @param pyramid pyramid of the map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @param level level to plan the corridor on, 0 to search the whole map
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (MapPyramid pyramid, Node start, Node goal, int level)
+    {
+        return search(pyramid, start, goal, level, null);
+    }
+
+    /**
+     * Find a path between two points of a pyramid's map that only runs
+     * through the points a filter accepts.
+     *
+     * @param pyramid pyramid of the map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @param level level to plan the corridor on, 0 to search the whole map
+     * @param allowed tests the packed index (y - 1) * width + (x - 1) of a
+     *        point, points it rejects are never entered. Null to accept
+     *        all.
+     * @return the path from goal to start, null if there is none or the
+     *         filter rejects either of them
+     */
+    public static Node[] search (MapPyramid pyramid, Node start, Node goal, int level, IntPredicate allowed)
+    {
+        final CharMap map = pyramid.getMap();
+        final int w = map.getWidth();
+
+        if (allowed != null && (rejects(map, allowed, start) || rejects(map, allowed, goal)))
+        {
+            return null;
+        }
+        if (level <= 0 || !map.isPassable(start.getX(), start.getY()) || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return GridAstar.search(map, start, goal, false, allowed);
+        }
+
+        final CharMap coarse = pyramid.toCharMap(level, MapPyramid.ALL);
+        final int cw = coarse.getWidth();
+
+        for (int y = 1; y <= coarse.getLength(); y++)
+        {
+            for (int x = 1; x < cw; x++)
+            {
+                final double occupancy = pyramid.getOccupancy(level, x, y);
+                if (occupancy > 0 && occupancy < 1)
+                {
+                    coarse.setPenalty(x, y, occupancy * OCCUPANCY_PENALTY);
+                }
+            }
+        }
+
+        final Node[] path = GridAstar.search(coarse,
+            new Node(((start.getX() - 1) >> level) + 1, ((start.getY() - 1) >> level) + 1),
+            new Node(((goal.getX() - 1) >> level) + 1, ((goal.getY() - 1) >> level) + 1));
+
+        if (path == null)
+        {
+            return null; // No coarse path, so none on the map either
+        }
+
+        // Coarse cells of the corridor, packed like the coarse map's points
+        final BitSet corridor = new BitSet();
+        for (Node n : path)
+        {
+            for (int dy = -CORRIDOR_RADIUS; dy <= CORRIDOR_RADIUS; dy++)
+            {
+                for (int dx = -CORRIDOR_RADIUS; dx <= CORRIDOR_RADIUS; dx++)
+                {
+                    final int x = n.getX() + dx;
+                    final int y = n.getY() + dy;
+                    if (x >= 1 && y >= 1 && x < cw && y <= coarse.getLength())
+                    {
+                        corridor.set((y - 1) * cw + x - 1);
+                    }
+                }
+            }
+        }
+
+        final IntPredicate inCorridor = i -> corridor.get(((i / w) >> level) * cw + ((i % w) >> level));
+        final Node[] fine = GridAstar.search(map, start, goal, false,
+            allowed == null ? inCorridor : inCorridor.and(allowed));
+
+        return fine != null ? fine : GridAstar.search(map, start, goal, false, allowed);
+    }
+
+    /**
+     * Check to see if a filter rejects a passable point. The search would
+     * never end on such a point and look through the whole map first.
+     */
+    private static boolean rejects (CharMap map, IntPredicate allowed, Node n)
+    {
+        return map.isPassable(n.getX(), n.getY())
+            && !allowed.test((n.getY() - 1) * map.getWidth() + n.getX() - 1);
+    }
+
+    /**
+     * @return the first level with no more than COARSE_CELLS cells along
+     *         either side
+     */
+    private static int coarseLevel (MapPyramid pyramid)
+    {
+        int level = 0;
+        while (level < pyramid.getLevels() - 1
+            && Math.max(pyramid.getWidth(level), pyramid.getLength(level)) > COARSE_CELLS)
+        {
+            level++;
+        }
+        return level;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapChangeListener;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * D* Lite planner for 4-connected, uniform-cost maps.
+ *
+ * The search runs backwards from the goal and its state is kept between
+ * calls. As long as the goal stays the same, moving the start and changing
+ * cells of the map only repairs the part of the previous solution that is
+ * affected, instead of searching the whole map again.
+ *
+ * Changed cells are collected through a MapChangeListener and applied by the
+ * next search. The planner can also be moved to another map of the same
+ * size (for example a freshly simplified copy), in which case only the
+ * cells that differ from the previous map count as changed.
+ *
+ * Traversal costs of the map are ignored, every step costs 1.
+ *
+ * @author Robert Hutter
+ */
+public final class DStarLite implements MapChangeListener
+{
+    private static final int[] DX = {0, 1, -1, 0};
+    private static final int[] DY = {1, 0, 0, -1};
+
+    /**
+     * Larger than any g score, see key2.
+     */
+    private static final double UNDERCONSISTENT = 1L << 40;
+
+    private CharMap map;
+    private int w, h;
+
+    private double[] g;
+    private double[] rhs;
+    private IndexedHeap open;
+
+    /**
+     * Passability of every cell as the planner last saw it.
+     */
+    private BitSet free;
+
+    private final BitSet changed = new BitSet();
+    private boolean replaced = false;
+
+    private int goal = -1;
+    private int last = -1;
+    private double km;
+
+    /**
+     * Create a new planner. The first search is a full search.
+     *
+     * @param map map to search on
+     */
+    public DStarLite (CharMap map)
+    {
+        this.map = map;
+        map.addMapChangeListener(this);
+        allocate();
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public synchronized void dispose ()
+    {
+        map.removeMapChangeListener(this);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public synchronized CharMap getMap ()
+    {
+        return map;
+    }
+
+    /**
+     * Move the planner to another map. If it has the same dimensions the
+     * search state is kept and the cells that differ are replanned by the
+     * next search, otherwise the next search starts from scratch.
+     *
+     * @param map new map to search on
+     */
+    public synchronized void setMap (CharMap map)
+    {
+        if (map == this.map)
+        {
+            return;
+        }
+
+        this.map.removeMapChangeListener(this);
+        this.map = map;
+        map.addMapChangeListener(this);
+
+        if (map.getWidth() == w && map.getLength() == h)
+        {
+            mapReplaced(map);
+        }
+        else
+        {
+            allocate();
+        }
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        synchronized (changed)
+        {
+            changed.set((y - 1) * w + x - 1);
+        }
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (changed)
+        {
+            replaced = true;
+        }
+    }
+
+    /**
+     * Find the shortest path between two points of the map, reusing as much
+     * of the previous search as possible.
+     *
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public synchronized Node[] search (Node start, Node goal)
+    {
+        if (map.getWidth() != w || map.getLength() != h)
+        {
+            allocate();
+        }
+
+        if (start.getX() < 1 || start.getY() < 1 || start.getX() > w || start.getY() > h
+            || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return null;
+        }
+
+        final int s = (start.getY() - 1) * w + start.getX() - 1;
+        final int t = (goal.getY() - 1) * w + goal.getX() - 1;
+
+        if (t != this.goal)
+        {
+            reset(s, t);
+        }
+        else
+        {
+            km += h(last, s);
+            last = s;
+            applyChanges();
+        }
+
+        computeShortestPath(s);
+
+        if (g[s] == Double.POSITIVE_INFINITY)
+        {
+            return null;
+        }
+
+        return buildPath(s);
+    }
+
+    private void allocate ()
+    {
+        w = map.getWidth();
+        h = map.getLength();
+        g = new double[w * h];
+        rhs = new double[w * h];
+        open = new IndexedHeap(w * h);
+        free = new BitSet(w * h);
+        goal = -1;
+    }
+
+    /**
+     * Forget the previous search and start a new one towards a new goal.
+     */
+    private void reset (int s, int t)
+    {
+        synchronized (changed)
+        {
+            changed.clear();
+            replaced = false;
+        }
+
+        snapshot();
+        Arrays.fill(g, Double.POSITIVE_INFINITY);
+        Arrays.fill(rhs, Double.POSITIVE_INFINITY);
+        open.clear();
+        km = 0;
+        last = s;
+        goal = t;
+
+        rhs[t] = 0;
+        open.push(t, h(s, t), 0);
+    }
+
+    private void snapshot ()
+    {
+        free.clear();
+        for (int y = 0; y < h; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                if (map.isPassable(x + 1, y + 1))
+                {
+                    free.set(y * w + x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare the cells reported as changed with the snapshot and update the
+     * neighbours of those whose passability really changed.
+     */
+    private void applyChanges ()
+    {
+        BitSet todo;
+        boolean all;
+
+        synchronized (changed)
+        {
+            todo = (BitSet) changed.clone();
+            all = replaced;
+            changed.clear();
+            replaced = false;
+        }
+
+        if (all)
+        {
+            todo.set(0, w * h);
+        }
+
+        for (int i = todo.nextSetBit(0); i >= 0; i = todo.nextSetBit(i + 1))
+        {
+            boolean passable = map.isPassable(i % w + 1, i / w + 1);
+
+            if (passable == free.get(i))
+            {
+                continue;
+            }
+
+            free.set(i, passable);
+
+            // Only the edges leading into the cell changed cost
+            final int x = i % w;
+            final int y = i / w;
+            for (int d = 0; d < DX.length; d++)
+            {
+                if (inside(x + DX[d], y + DY[d]))
+                {
+                    updateVertex(i + DY[d] * w + DX[d]);
+                }
+            }
+        }
+    }
+
+    private void computeShortestPath (int s)
+    {
+        while (!open.isEmpty()
+               && (less(open.peekKey(), open.peekTie(), key1(s, s), key2(s)) || rhs[s] != g[s]))
+        {
+            final double k1 = open.peekKey();
+            final double k2 = open.peekTie();
+            final int u = open.pop();
+
+            if (less(k1, k2, key1(u, s), key2(u)))
+            {
+                open.push(u, key1(u, s), key2(u));
+            }
+            else if (g[u] > rhs[u])
+            {
+                g[u] = rhs[u];
+                updatePredecessors(u);
+            }
+            else
+            {
+                g[u] = Double.POSITIVE_INFINITY;
+                updateVertex(u);
+                updatePredecessors(u);
+            }
+        }
+    }
+
+    private void updatePredecessors (int u)
+    {
+        final int x = u % w;
+        final int y = u / w;
+
+        for (int d = 0; d < DX.length; d++)
+        {
+            if (inside(x + DX[d], y + DY[d]))
+            {
+                updateVertex(u + DY[d] * w + DX[d]);
+            }
+        }
+    }
+
+    private void updateVertex (int u)
+    {
+        if (u != goal)
+        {
+            final int v = bestSuccessor(u);
+            rhs[u] = v == -1 ? Double.POSITIVE_INFINITY : g[v] + 1;
+        }
+
+        if (g[u] != rhs[u])
+        {
+            open.push(u, key1(u, last), key2(u));
+        }
+        else if (open.contains(u))
+        {
+            open.remove(u);
+        }
+    }
+
+    /**
+     * Moving into a cell costs 1 if it is free, so the rover may leave a
+     * blocked cell but never enter one.
+     *
+     * @return the successor of u with the smallest g score, -1 if none
+     */
+    private int bestSuccessor (int u)
+    {
+        final int x = u % w;
+        final int y = u / w;
+        int best = -1;
+
+        for (int d = 0; d < DX.length; d++)
+        {
+            final int v = u + DY[d] * w + DX[d];
+
+            if (inside(x + DX[d], y + DY[d]) && free.get(v)
+                && g[v] != Double.POSITIVE_INFINITY && (best == -1 || g[v] < g[best]))
+            {
+                best = v;
+            }
+        }
+
+        return best;
+    }
+
+    private double key1 (int u, int s)
+    {
+        return Math.min(g[u], rhs[u]) + h(s, u) + km;
+    }
+
+    /**
+     * Cells with equal first keys are ordered like in plain D* Lite when
+     * one of them is underconsistent (g below rhs). Among overconsistent
+     * ones the cell closest to the start goes first, so on open maps the
+     * search runs straight through the plateaus of equal keys instead of
+     * expanding all of them.
+     */
+    private double key2 (int u)
+    {
+        return g[u] < rhs[u] ? g[u] - UNDERCONSISTENT : -rhs[u];
+    }
+
+    /**
+     * Follow the g scores downhill from the start to the goal.
+     */
+    private Node[] buildPath (int s)
+    {
+        int[] cells = new int[(int) g[s] + 1];
+        int length = 0;
+
+        for (int u = s; ; u = bestSuccessor(u))
+        {
+            if (u == -1 || length == w * h)
+            {
+                return null;
+            }
+
+            if (length == cells.length)
+            {
+                cells = Arrays.copyOf(cells, length * 2);
+            }
+            cells[length++] = u;
+
+            if (u == goal)
+            {
+                break;
+            }
+        }
+
+        Node[] path = new Node[length];
+        for (int k = 0; k < length; k++)
+        {
+            int u = cells[length - 1 - k];
+            path[k] = new Node(u % w + 1, u / w + 1);
+            path[k].setG(length - 1 - k);
+            path[k].setF(length - 1 - k);
+
+            if (k > 0)
+            {
+                path[k - 1].setParent(path[k]);
+            }
+        }
+
+        return path;
+    }
+
+    private double h (int from, int to)
+    {
+        return Math.abs(from % w - to % w) + Math.abs(from / w - to / w);
+    }
+
+    private boolean inside (int x, int y)
+    {
+        return x >= 0 && y >= 0 && x < w && y < h;
+    }
+
+    private static boolean less (double k1, double t1, double k2, double t2)
+    {
+        return k1 < k2 || (k1 == k2 && t1 < t2);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.function.IntPredicate;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * A* search over a CharMap. Cells are addressed by their packed index
+ * (y - 1) * width + (x - 1), the open list is an indexed binary heap and the
+ * g score, parent and closed state of every cell live in arrays sized to the
+ * map, so no step of the search scans a list.
+ *
+ * The arrays are SearchBuffers, so once they are warm a search allocates
+ * nothing but the Node[] it returns.
+ *
+ * Stepping onto a cell costs CharMap.getCost, at least 1, so the Manhattan
+ * distance is an admissible heuristic and the path found is the cheapest.
+ * In 8-connected mode diagonal steps cost sqrt(2) times as much and the
+ * octile distance is used instead. A diagonal step may not cut a corner:
+ * both cells beside it must be passable too.
+ *
+ * @author Robert Hutter
+ */
+public final class GridAstar
+{
+    /**
+     * Moves: the first four are the straight ones, the rest diagonal.
+     */
+    static final int[] DX = {0, 1, -1, 0, 1, -1, 1, -1};
+    static final int[] DY = {1, 0, 0, -1, 1, 1, -1, -1};
+
+    static final double SQRT2 = Math.sqrt(2);
+
+    private GridAstar () {}
+
+    /**
+     * Find the cheapest 4-connected path between two points of a map.
+     *
+     * @param map map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (CharMap map, Node start, Node goal)
+    {
+        return search(map, start, goal, false);
+    }
+
+    /**
+     * Find the cheapest path between two points of a map.
+     *
+     * @param map map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @param diagonal true to allow diagonal steps
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (CharMap map, Node start, Node goal, boolean diagonal)
+    {
+        return search(map, start, goal, diagonal, null);
+    }
+
+    /**
+     * Find the cheapest path between two points of a map that only runs
+     * through the cells a filter accepts, for example a corridor around a
+     * path found on a coarser map.
+     *
+     * @param map map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @param diagonal true to allow diagonal steps
+     * @param allowed tests the packed index (y - 1) * width + (x - 1) of a
+     *        cell, cells it rejects are never entered. Null to accept all.
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (CharMap map, Node start, Node goal, boolean diagonal, IntPredicate allowed)
+    {
+        final int w = map.getWidth();
+        final int h = map.getLength();
+
+        if (!inside(w, h, start.getX(), start.getY())
+            || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return null;
+        }
+
+        final int s = (start.getY() - 1) * w + start.getX() - 1;
+        final int t = (goal.getY() - 1) * w + goal.getX() - 1;
+        final SearchBuffers b = SearchBuffers.acquire(w * h);
+        try
+        {
+            if (!run(map, b, s, t, 0, 0, w - 1, h - 1, diagonal, allowed))
+            {
+                return null;
+            }
+
+            return buildPath(b.parent, b.g, t, w);
+        }
+        finally
+        {
+            b.release();
+        }
+    }
+
+    /**
+     * Find the cheapest path between two cells without leaving a rectangle
+     * of the map. Bounds are 0 based and inclusive, both cells must lie
+     * inside them.
+     *
+     * @param map map to search on
+     * @param s index of the start cell
+     * @param t index of the goal cell
+     * @param minX left edge of the rectangle
+     * @param minY top edge of the rectangle
+     * @param maxX right edge of the rectangle
+     * @param maxY bottom edge of the rectangle
+     * @return cell indices from start to goal, null if there is no path
+     */
+    static int[] searchIndices (CharMap map, int s, int t, int minX, int minY, int maxX, int maxY)
+    {
+        final int w = map.getWidth();
+        final int rw = maxX - minX + 1;
+        final SearchBuffers b = SearchBuffers.acquire(rw * (maxY - minY + 1));
+        try
+        {
+            if (!run(map, b, s, t, minX, minY, maxX, maxY, false, null))
+            {
+                return null;
+            }
+
+            // The buffers are indexed within the rectangle
+            final int lt = (t / w - minY) * rw + t % w - minX;
+
+            int length = 1;
+            for (int i = lt; b.parent[i] != -1; i = b.parent[i])
+            {
+                length++;
+            }
+
+            int[] path = new int[length];
+            for (int i = lt, k = length - 1; k >= 0; i = b.parent[i], k--)
+            {
+                path[k] = (i / rw + minY) * w + i % rw + minX;
+            }
+
+            return path;
+        }
+        finally
+        {
+            b.release();
+        }
+    }
+
+    /**
+     * The search itself. The buffers are indexed by the cells' packed
+     * indexes within the rectangle, (y - minY) * rectangle width + (x -
+     * minX), which are those of the map when the rectangle covers it all.
+     * Leaves the parent chain of the goal in the buffers.
+     *
+     * @return true if the goal was reached
+     */
+    private static boolean run (CharMap map, SearchBuffers b, int s, int t,
+                                int minX, int minY, int maxX, int maxY, boolean diagonal,
+                                IntPredicate allowed)
+    {
+        final int w = map.getWidth();
+        final int rw = maxX - minX + 1;
+        final int tx = t % w;
+        final int ty = t / w;
+        final int lt = (ty - minY) * rw + tx - minX;
+        final IndexedHeap open = b.open;
+
+        final int ls = (s / w - minY) * rw + s % w - minX;
+        b.visit(ls, 0, -1);
+        open.push(ls, heuristic(s % w, s / w, tx, ty, diagonal), 0);
+
+        while (!open.isEmpty())
+        {
+            final int cur = open.pop();
+
+            if (cur == lt)
+            {
+                return true;
+            }
+
+            b.close(cur);
+
+            final int cx = cur % rw + minX;
+            final int cy = cur / rw + minY;
+            final double g = b.g[cur];
+
+            for (int d = 0; d < (diagonal ? 8 : 4); d++)
+            {
+                final int nx = cx + DX[d];
+                final int ny = cy + DY[d];
+
+                if (nx < minX || ny < minY || nx > maxX || ny > maxY)
+                {
+                    continue;
+                }
+
+                final int ni = cur + DY[d] * rw + DX[d];
+
+                if (b.isClosed(ni) || (allowed != null && !allowed.test(ny * w + nx)))
+                {
+                    continue;
+                }
+
+                double ng;
+                if (d < 4)
+                {
+                    ng = g + map.getCost(nx + 1, ny + 1);
+                }
+                else if (map.isPassable(nx + 1, cy + 1) && map.isPassable(cx + 1, ny + 1))
+                {
+                    ng = g + SQRT2 * map.getCost(nx + 1, ny + 1);
+                }
+                else
+                {
+                    continue;
+                }
+
+                if (ng < b.g(ni))
+                {
+                    b.visit(ni, ng, cur);
+                    open.push(ni, ng + heuristic(nx, ny, tx, ty, diagonal), -ng);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Turn a parent index chain into the Node[] format used by Route.
+     *
+     * @param parent parent index of every visited cell, -1 for the start
+     * @param g g score of every visited cell
+     * @param goal index of the goal cell
+     * @param width width of the map
+     * @return nodes from goal to start, each linked to its parent
+     */
+    static Node[] buildPath (int[] parent, double[] g, int goal, int width)
+    {
+        int length = 1;
+        for (int i = goal; parent[i] != -1; i = parent[i])
+        {
+            length++;
+        }
+
+        Node[] path = new Node[length];
+        int i = goal;
+        for (int k = 0; k < length; k++)
+        {
+            path[k] = new Node(i % width + 1, i / width + 1);
+            path[k].setG(g[i]);
+            path[k].setF(g[i]);
+
+            if (k > 0)
+            {
+                path[k - 1].setParent(path[k]);
+            }
+
+            i = parent[i];
+        }
+
+        return path;
+    }
+
+    private static boolean inside (int w, int h, int x, int y)
+    {
+        return x > 0 && y > 0 && x <= w && y <= h;
+    }
+
+    /**
+     * Manhattan distance, or octile distance if diagonal steps are allowed.
+     */
+    private static double heuristic (int x, int y, int tx, int ty, boolean diagonal)
+    {
+        final int dx = Math.abs(x - tx);
+        final int dy = Math.abs(y - ty);
+
+        return diagonal ? dx + dy + (SQRT2 - 2) * Math.min(dx, dy) : dx + dy;
+    }
+}
@@ -0,0 +1,854 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapChangeListener;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Hierarchical pathfinding (HPA*) over a CharMap.
+ *
+ * The map is split into square clusters. Where two neighbouring clusters
+ * share passable border cells, entrance nodes are placed on both sides, and
+ * for every cluster the distances between its entrance nodes are
+ * precomputed. A query searches this small abstract graph and then only
+ * refines the clusters the abstract path runs through.
+ *
+ * The abstraction follows the map through a MapChangeListener: an edit only
+ * marks its cluster dirty, and before the next query the dirty clusters and
+ * their direct neighbours are rebuilt.
+ *
+ * Paths are not always the shortest. The refined path is smoothed by
+ * searching again in windows along it, which leaves random maps with paths
+ * at most about 6% longer than A* finds, see HierarchicalPathfinderCheck.
+ *
+ * The abstraction counts steps and ignores traversal costs, only the
+ * refinement inside the clusters takes them into account.
+ *
+ * @author Robert Hutter
+ */
+public final class HierarchicalPathfinder implements MapChangeListener
+{
+    /**
+     * Default length of a cluster's side, in cells.
+     */
+    public static final int DEFAULT_CLUSTER_SIZE = 32;
+
+    /**
+     * Border runs up to this wide get a single entrance in their middle,
+     * wider ones get one at each end and one every ENTRANCE_SPACING cells
+     * in between. With entrances at the ends only, a path crossing an open
+     * border has to detour to one of the cluster's corners.
+     */
+    private static final int MAX_ENTRANCE_WIDTH = 6;
+    private static final int ENTRANCE_SPACING = 8;
+
+    /**
+     * The abstract search slightly overestimates the remaining distance.
+     * Open maps have large plateaus of equally good entrance nodes, this
+     * makes the search run straight through them at the price of paths up
+     * to 0.1% longer.
+     */
+    private static final double TIE_BREAK = 1.001;
+
+    /**
+     * smooth() searches again along the path in windows of SMOOTH_WINDOW
+     * steps or two clusters, whichever is longer, and lets the path move up
+     * to SMOOTH_MARGIN cells or half a cluster away from where it ran.
+     */
+    private static final int SMOOTH_WINDOW = 64;
+    private static final int SMOOTH_MARGIN = 8;
+
+    private static final int[] NONE = new int[0];
+    private static final float[] NO_DIST = new float[0];
+
+    private final CharMap map;
+    private final int size;
+
+    private int w, h, cw, ch;
+
+    /**
+     * Per cluster: entrance pairs (cell in the cluster, cell in the cluster
+     * to its east / south), flattened.
+     */
+    private int[][] east, south;
+
+    /**
+     * Per cluster: the cells of its entrance nodes and the distances between
+     * them (row major, infinity if unreachable inside the cluster).
+     */
+    private int[][] nodes;
+    private float[][] dist;
+
+    /**
+     * The abstract search numbers the entrance nodes one cluster after the
+     * other, so its buffers are sized to the abstract graph rather than the
+     * map. Per cluster: the number of its first node, one more entry holds
+     * the number of nodes. Per node: its cluster.
+     */
+    private int[] base, owner;
+
+    private final BitSet dirty = new BitSet();
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private boolean replaced = true;
+
+    /**
+     * Create a new pathfinder with the default cluster size. The
+     * abstraction is built by the first search.
+     *
+     * @param map map to search on
+     */
+    public HierarchicalPathfinder (CharMap map)
+    {
+        this(map, DEFAULT_CLUSTER_SIZE);
+    }
+
+    /**
+     * Create a new pathfinder. The abstraction is built by the first search.
+     *
+     * @param map map to search on
+     * @param clusterSize length of a cluster's side, in cells
+     */
+    public HierarchicalPathfinder (CharMap map, int clusterSize)
+    {
+        this.map = map;
+        this.size = clusterSize;
+        map.addMapChangeListener(this);
+    }
+
+    /**
+     * Stop following changes of the map.
+     */
+    public void dispose ()
+    {
+        map.removeMapChangeListener(this);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public CharMap getMap ()
+    {
+        return map;
+    }
+
+    @Override
+    public void pointChanged (CharMap map, int x, int y, char oldVal, char newVal)
+    {
+        if ((map.getMarkCost(oldVal) == Double.POSITIVE_INFINITY) != (map.getMarkCost(newVal) == Double.POSITIVE_INFINITY))
+        {
+            synchronized (dirty)
+            {
+                if (!replaced)
+                {
+                    dirty.set(((y - 1) / size) * cw + (x - 1) / size);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void mapReplaced (CharMap map)
+    {
+        synchronized (dirty)
+        {
+            replaced = true;
+        }
+    }
+
+    /**
+     * Bring the abstraction up to date with the map. Called by search, but
+     * can be called ahead of time to take the cost of building it.
+     */
+    public synchronized void refresh ()
+    {
+        BitSet todo;
+
+        synchronized (dirty)
+        {
+            if (replaced)
+            {
+                w = map.getWidth();
+                h = map.getLength();
+                cw = (w + size - 1) / size;
+                ch = (h + size - 1) / size;
+                east = new int[cw * ch][];
+                south = new int[cw * ch][];
+                nodes = new int[cw * ch][];
+                dist = new float[cw * ch][];
+
+                dirty.clear();
+                dirty.set(0, cw * ch);
+                replaced = false;
+            }
+
+            todo = (BitSet) dirty.clone();
+            dirty.clear();
+        }
+
+        if (!todo.isEmpty())
+        {
+            rebuild(todo);
+            number();
+        }
+    }
+
+    /**
+     * Find a path between two points of the map.
+     *
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public synchronized Node[] search (Node start, Node goal)
+    {
+        refresh();
+
+        if (start.getX() < 1 || start.getY() < 1 || start.getX() > w || start.getY() > h
+            || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return null;
+        }
+
+        if (!map.isPassable(start.getX(), start.getY()))
+        {
+            return searchFromBlocked(start, goal);
+        }
+
+        final int s = (start.getY() - 1) * w + start.getX() - 1;
+        final int t = (goal.getY() - 1) * w + goal.getX() - 1;
+
+        int[] abstractPath = searchAbstract(s, t);
+        if (abstractPath == null)
+        {
+            return null;
+        }
+
+        IntList cells = new IntList();
+        cells.add(s);
+
+        for (int i = 1; i < abstractPath.length; i++)
+        {
+            int u = abstractPath[i - 1];
+            int v = abstractPath[i];
+
+            if (cluster(u) != cluster(v))
+            {
+                cells.add(v); // Entrance pair, always adjacent
+                continue;
+            }
+
+            int k = cluster(u);
+            int x0 = (k % cw) * size;
+            int y0 = (k / cw) * size;
+            int[] segment = GridAstar.searchIndices(map, u, v, x0, y0,
+                    Math.min(w, x0 + size) - 1, Math.min(h, y0 + size) - 1);
+
+            if (segment == null)
+            {
+                return null; // Map changed under us
+            }
+
+            for (int j = 1; j < segment.length; j++)
+            {
+                cells.add(segment[j]);
+            }
+        }
+
+        // Windows of every other pass start half way into the first one
+        final int window = Math.max(SMOOTH_WINDOW, 2 * size);
+        for (int pass = 0, before = 0; pass < 2 || cells.size < before; pass++)
+        {
+            before = cells.size;
+            cells = smooth(cells, window, pass % 2 == 0 ? 0 : window / 2);
+        }
+
+        Node[] path = new Node[cells.size];
+        for (int k = 0; k < path.length; k++)
+        {
+            int c = cells.data[cells.size - 1 - k];
+            path[k] = new Node(c % w + 1, c / w + 1);
+            path[k].setG(cells.size - 1 - k);
+            path[k].setF(cells.size - 1 - k);
+
+            if (k > 0)
+            {
+                path[k - 1].setParent(path[k]);
+            }
+        }
+
+        return path;
+    }
+
+    /**
+     * The refined path runs through the entrance nodes, so it makes detours
+     * the shortest path does not. Search again along the path, one window
+     * of steps at a time, each within the box around its part of the path
+     * grown by a margin. The path is a way through the box, so no window
+     * makes it worse.
+     *
+     * @param cells the path's cells from start to goal
+     * @param window steps per window
+     * @param first steps before the first window
+     * @return the smoothed path
+     */
+    private IntList smooth (IntList cells, int window, int first)
+    {
+        final IntList out = new IntList();
+        final int margin = Math.max(SMOOTH_MARGIN, size / 2);
+        int i = Math.min(first, cells.size - 1);
+
+        for (int k = 0; k <= i; k++)
+        {
+            out.add(cells.data[k]);
+        }
+
+        while (i < cells.size - 1)
+        {
+            final int j = Math.min(cells.size - 1, i + window);
+            int minX = w, minY = h, maxX = 0, maxY = 0;
+            for (int k = i; k <= j; k++)
+            {
+                int c = cells.data[k];
+                minX = Math.min(minX, c % w);
+                maxX = Math.max(maxX, c % w);
+                minY = Math.min(minY, c / w);
+                maxY = Math.max(maxY, c / w);
+            }
+
+            int[] segment = GridAstar.searchIndices(map, cells.data[i], cells.data[j],
+                    Math.max(0, minX - margin), Math.max(0, minY - margin),
+                    Math.min(w - 1, maxX + margin), Math.min(h - 1, maxY + margin));
+
+            if (segment == null)
+            {
+                for (int k = i + 1; k <= j; k++)
+                {
+                    out.add(cells.data[k]);
+                }
+            }
+            else
+            {
+                for (int k = 1; k < segment.length; k++)
+                {
+                    out.add(segment[k]);
+                }
+            }
+            i = j;
+        }
+
+        return out;
+    }
+
+    /**
+     * The rover may start on a blocked cell, from where it can still move to
+     * any free neighbour, even one in another cluster. Search from each of
+     * them and keep the shortest path.
+     */
+    private Node[] searchFromBlocked (Node start, Node goal)
+    {
+        Node[] best = null;
+
+        for (int i = 0; i < 4; i++)
+        {
+            int x = start.getX() + (i == 0 ? 1 : i == 1 ? -1 : 0);
+            int y = start.getY() + (i == 2 ? 1 : i == 3 ? -1 : 0);
+
+            if (map.isPassable(x, y))
+            {
+                Node[] p = search(new Node(x, y), goal);
+                if (p != null && (best == null || p.length < best.length))
+                {
+                    best = p;
+                }
+            }
+        }
+
+        if (best == null)
+        {
+            return null;
+        }
+
+        Node[] path = Arrays.copyOf(best, best.length + 1);
+        path[best.length] = new Node(start.getX(), start.getY());
+        path[best.length - 1].setParent(path[best.length]);
+
+        for (int k = 0; k < path.length; k++)
+        {
+            path[k].setG(path.length - 1 - k);
+            path[k].setF(path.length - 1 - k);
+        }
+
+        return path;
+    }
+
+    /**
+     * A* over the abstract graph, with start and goal temporarily linked to
+     * the entrance nodes of their clusters. They get the two numbers after
+     * those of the entrance nodes.
+     *
+     * @return cells of the abstract path from start to goal, null if none
+     */
+    private int[] searchAbstract (int s, int t)
+    {
+        final int ks = cluster(s);
+        final int kt = cluster(t);
+        final Scratch sc = scratch.get();
+
+        sc.load(ks);
+        float[] fromStart = sc.distances(s, nodes[ks]);
+        float direct = ks == kt ? sc.distance(t) : Float.POSITIVE_INFINITY;
+        sc.load(kt);
+        float[] toGoal = sc.distances(t, nodes[kt]);
+
+        final int start = base[cw * ch];
+        final int goal = start + 1;
+
+        final SearchBuffers b = SearchBuffers.acquire(goal + 1);
+        try
+        {
+            b.visit(start, 0, -1);
+            b.open.push(start, manhattan(s, t) * TIE_BREAK, 0);
+
+            while (!b.open.isEmpty())
+            {
+                final int cur = b.open.pop();
+
+                if (cur == goal)
+                {
+                    IntList p = new IntList();
+                    for (int i = goal; i != -1; i = b.parent[i])
+                    {
+                        p.add(i == start ? s : i == goal ? t : cell(i));
+                    }
+
+                    int[] path = new int[p.size];
+                    for (int i = 0; i < p.size; i++)
+                    {
+                        path[i] = p.data[p.size - 1 - i];
+                    }
+                    return path;
+                }
+
+                b.close(cur);
+
+                if (cur == start)
+                {
+                    for (int i = 0; i < nodes[ks].length; i++)
+                    {
+                        relax(b, cur, base[ks] + i, nodes[ks][i], fromStart[i], t);
+                    }
+                    relax(b, cur, goal, t, direct, t);
+                    continue;
+                }
+
+                final int k = owner[cur];
+                final int li = cur - base[k];
+                final int c = nodes[k][li];
+
+                final int n = nodes[k].length;
+                for (int j = 0; j < n; j++)
+                {
+                    relax(b, cur, base[k] + j, nodes[k][j], dist[k][li * n + j], t);
+                }
+
+                if (k == kt)
+                {
+                    relax(b, cur, goal, t, toGoal[li], t);
+                }
+
+                // Entrance partners in the neighbouring clusters
+                relaxPartners(b, cur, c, east[k], 0, k + 1, t);
+                relaxPartners(b, cur, c, south[k], 0, k + cw, t);
+                if (k % cw > 0)
+                {
+                    relaxPartners(b, cur, c, east[k - 1], 1, k - 1, t);
+                }
+                if (k >= cw)
+                {
+                    relaxPartners(b, cur, c, south[k - cw], 1, k - cw, t);
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            b.release();
+        }
+    }
+
+    private void relaxPartners (SearchBuffers b, int cur, int c, int[] pairs, int side, int other, int t)
+    {
+        for (int i = side; i < pairs.length; i += 2)
+        {
+            if (pairs[i] == c)
+            {
+                final int partner = pairs[i + 1 - 2 * side];
+                relax(b, cur, base[other] + Arrays.binarySearch(nodes[other], partner), partner, 1, t);
+            }
+        }
+    }
+
+    private void relax (SearchBuffers b, int cur, int v, int vCell, float cost, int t)
+    {
+        if (cost == Float.POSITIVE_INFINITY || b.isClosed(v))
+        {
+            return;
+        }
+
+        double ng = b.g[cur] + cost;
+        if (ng < b.g(v))
+        {
+            b.visit(v, ng, cur);
+            b.open.push(v, ng + manhattan(vCell, t) * TIE_BREAK, -ng);
+        }
+    }
+
+    /**
+     *
+     * @return the cell of an entrance node
+     */
+    private int cell (int node)
+    {
+        return nodes[owner[node]][node - base[owner[node]]];
+    }
+
+    /**
+     * Number the entrance nodes for the abstract search.
+     */
+    private void number ()
+    {
+        base = new int[cw * ch + 1];
+        for (int k = 0; k < cw * ch; k++)
+        {
+            base[k + 1] = base[k] + nodes[k].length;
+        }
+
+        owner = new int[base[cw * ch]];
+        for (int k = 0; k < cw * ch; k++)
+        {
+            Arrays.fill(owner, base[k], base[k + 1], k);
+        }
+    }
+
+    /**
+     * Rebuild the entrances and distances around the specified clusters.
+     * Clusters are independent of each other once their borders are known,
+     * so both steps run in parallel.
+     */
+    private void rebuild (BitSet clusters)
+    {
+        BitSet eastTodo = new BitSet(cw * ch);
+        BitSet southTodo = new BitSet(cw * ch);
+        BitSet touched = new BitSet(cw * ch);
+
+        for (int k = clusters.nextSetBit(0); k >= 0; k = clusters.nextSetBit(k + 1))
+        {
+            int kx = k % cw;
+            int ky = k / cw;
+
+            eastTodo.set(k);
+            southTodo.set(k);
+            touched.set(k);
+
+            if (kx > 0)
+            {
+                eastTodo.set(k - 1);
+                touched.set(k - 1);
+            }
+            if (ky > 0)
+            {
+                southTodo.set(k - cw);
+                touched.set(k - cw);
+            }
+            if (kx < cw - 1)
+            {
+                touched.set(k + 1);
+            }
+            if (ky < ch - 1)
+            {
+                touched.set(k + cw);
+            }
+        }
+
+        eastTodo.stream().parallel().forEach(k -> east[k] = border(k % cw, k / cw, true));
+        southTodo.stream().parallel().forEach(k -> south[k] = border(k % cw, k / cw, false));
+        touched.stream().parallel().forEach(this::buildCluster);
+    }
+
+    /**
+     * Collect the entrance nodes of a cluster and the distances between them.
+     */
+    private void buildCluster (int k)
+    {
+        IntList c = new IntList();
+        for (int i = 0; i < east[k].length; i += 2)
+        {
+            c.add(east[k][i]);
+        }
+        for (int i = 0; i < south[k].length; i += 2)
+        {
+            c.add(south[k][i]);
+        }
+        if (k % cw > 0)
+        {
+            for (int i = 1; i < east[k - 1].length; i += 2)
+            {
+                c.add(east[k - 1][i]);
+            }
+        }
+        if (k >= cw)
+        {
+            for (int i = 1; i < south[k - cw].length; i += 2)
+            {
+                c.add(south[k - cw][i]);
+            }
+        }
+
+        int[] n = c.toSortedSet();
+
+        if (n.length == 0)
+        {
+            nodes[k] = n;
+            dist[k] = NO_DIST;
+            return;
+        }
+
+        Scratch sc = scratch.get();
+        sc.load(k);
+
+        float[] d = new float[n.length * n.length];
+        for (int i = 0; i < n.length; i++)
+        {
+            float[] row = sc.distances(n[i], n);
+            System.arraycopy(row, 0, d, i * n.length, n.length);
+        }
+
+        nodes[k] = n;
+        dist[k] = d;
+    }
+
+    /**
+     * Find the entrances on the east or south border of a cluster.
+     *
+     * @return entrance pairs, flattened
+     */
+    private int[] border (int kx, int ky, boolean toEast)
+    {
+        if ((toEast && kx == cw - 1) || (!toEast && ky == ch - 1))
+        {
+            return NONE;
+        }
+
+        IntList pairs = new IntList();
+        int length = toEast ? Math.min(h, (ky + 1) * size) - ky * size
+                            : Math.min(w, (kx + 1) * size) - kx * size;
+        int run = -1;
+
+        for (int i = 0; i <= length; i++)
+        {
+            boolean open = false;
+            if (i < length)
+            {
+                int a = borderCell(kx, ky, toEast, i);
+                int b = toEast ? a + 1 : a + w;
+                open = passable(a) && passable(b);
+            }
+
+            if (open && run == -1)
+            {
+                run = i;
+            }
+            else if (!open && run != -1)
+            {
+                if (i - run < MAX_ENTRANCE_WIDTH)
+                {
+                    addPair(pairs, borderCell(kx, ky, toEast, (run + i - 1) / 2), toEast);
+                }
+                else
+                {
+                    for (int j = run; j < i - 1; j += ENTRANCE_SPACING)
+                    {
+                        addPair(pairs, borderCell(kx, ky, toEast, j), toEast);
+                    }
+                    addPair(pairs, borderCell(kx, ky, toEast, i - 1), toEast);
+                }
+                run = -1;
+            }
+        }
+
+        return pairs.size == 0 ? NONE : Arrays.copyOf(pairs.data, pairs.size);
+    }
+
+    private int borderCell (int kx, int ky, boolean toEast, int i)
+    {
+        return toEast ? (ky * size + i) * w + (kx + 1) * size - 1
+                      : ((ky + 1) * size - 1) * w + kx * size + i;
+    }
+
+    private void addPair (IntList pairs, int a, boolean toEast)
+    {
+        pairs.add(a);
+        pairs.add(toEast ? a + 1 : a + w);
+    }
+
+    private boolean passable (int cell)
+    {
+        return map.isPassable(cell % w + 1, cell / w + 1);
+    }
+
+    private int cluster (int cell)
+    {
+        return (cell / w / size) * cw + (cell % w) / size;
+    }
+
+    private int manhattan (int a, int b)
+    {
+        return Math.abs(a % w - b % w) + Math.abs(a / w - b / w);
+    }
+
+    /**
+     * Per thread working memory for searching inside one cluster.
+     */
+    private final class Scratch
+    {
+        final boolean[] open = new boolean[size * size];
+        final int[] bfs = new int[size * size];
+        final int[] queue = new int[size * size];
+        int x0, y0, x1, y1;
+
+        /**
+         * Take a snapshot of the passable cells of a cluster.
+         */
+        void load (int k)
+        {
+            x0 = (k % cw) * size;
+            y0 = (k / cw) * size;
+            x1 = Math.min(w, x0 + size);
+            y1 = Math.min(h, y0 + size);
+
+            for (int y = y0; y < y1; y++)
+            {
+                for (int x = x0; x < x1; x++)
+                {
+                    open[(y - y0) * size + x - x0] = map.isPassable(x + 1, y + 1);
+                }
+            }
+        }
+
+        /**
+         * Breadth first search from a cell of the loaded cluster without
+         * leaving it.
+         *
+         * @return distance from the cell to each of the targets
+         */
+        float[] distances (int from, int[] targets)
+        {
+            Arrays.fill(bfs, -1);
+            int head = 0, tail = 0;
+            int start = (from / w - y0) * size + from % w - x0;
+            bfs[start] = 0;
+            queue[tail++] = start;
+
+            while (head < tail)
+            {
+                int c = queue[head++];
+                int cx = c % size;
+                int cy = c / size;
+                int d = bfs[c] + 1;
+
+                if (cx + 1 < x1 - x0 && bfs[c + 1] == -1 && open[c + 1])
+                {
+                    bfs[c + 1] = d;
+                    queue[tail++] = c + 1;
+                }
+                if (cx > 0 && bfs[c - 1] == -1 && open[c - 1])
+                {
+                    bfs[c - 1] = d;
+                    queue[tail++] = c - 1;
+                }
+                if (cy + 1 < y1 - y0 && bfs[c + size] == -1 && open[c + size])
+                {
+                    bfs[c + size] = d;
+                    queue[tail++] = c + size;
+                }
+                if (cy > 0 && bfs[c - size] == -1 && open[c - size])
+                {
+                    bfs[c - size] = d;
+                    queue[tail++] = c - size;
+                }
+            }
+
+            float[] r = new float[targets.length];
+            for (int i = 0; i < targets.length; i++)
+            {
+                r[i] = distance(targets[i]);
+            }
+            return r;
+        }
+
+        /**
+         *
+         * @return distance to a cell found by the last search, infinity if
+         * it was not reached
+         */
+        float distance (int cell)
+        {
+            int d = bfs[(cell / w - y0) * size + cell % w - x0];
+            return d == -1 ? Float.POSITIVE_INFINITY : d;
+        }
+    }
+
+    /**
+     * A growable int array.
+     */
+    private static final class IntList
+    {
+        int[] data = new int[16];
+        int size;
+
+        void add (int v)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = v;
+        }
+
+        int[] toSortedSet ()
+        {
+            int[] a = Arrays.copyOf(data, size);
+            Arrays.sort(a);
+
+            int n = 0;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (n == 0 || a[n - 1] != a[i])
+                {
+                    a[n++] = a[i];
+                }
+            }
+            return Arrays.copyOf(a, n);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int ids supporting decrease-key. Entries are ordered
+ * by their key, ties are broken by a second key.
+ *
+ * Only the id to heap position index is sized to the id range, the heap
+ * itself grows with the number of queued entries.
+ *
+ * @author Robert Hutter
+ */
+public final class IndexedHeap
+{
+    private static final int INITIAL_SIZE = 256;
+
+    /**
+     * Heap position of every id, -1 if the id is not queued.
+     */
+    private int[] pos;
+    private int[] heap;
+    private double[] keys;
+    private double[] ties;
+    private int size;
+
+    /**
+     * Create a new heap for the ids 0 to capacity - 1.
+     *
+     * @param capacity number of possible ids
+     */
+    public IndexedHeap (int capacity)
+    {
+        this.pos = new int[capacity];
+        Arrays.fill(pos, -1);
+
+        this.heap = new int[Math.min(INITIAL_SIZE, Math.max(capacity, 1))];
+        this.keys = new double[heap.length];
+        this.ties = new double[heap.length];
+        this.size = 0;
+    }
+
+    /**
+     * Insert an id, or move it to its new position if it is already queued.
+     *
+     * @param id id to queue
+     * @param key primary key, smallest is popped first
+     * @param tie secondary key, used when the primary keys are equal
+     */
+    public void push (int id, double key, double tie)
+    {
+        int i = pos[id];
+
+        if (i == -1)
+        {
+            if (size == heap.length)
+            {
+                grow();
+            }
+
+            i = size++;
+            heap[i] = id;
+            keys[i] = key;
+            ties[i] = tie;
+            pos[id] = i;
+            siftUp(i);
+        }
+        else if (less(key, tie, keys[i], ties[i]))
+        {
+            keys[i] = key;
+            ties[i] = tie;
+            siftUp(i);
+        }
+        else
+        {
+            keys[i] = key;
+            ties[i] = tie;
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Remove and return the id with the smallest key.
+     *
+     * @return
+     */
+    public int pop ()
+    {
+        int top = heap[0];
+        pos[top] = -1;
+
+        if (--size > 0)
+        {
+            move(size, 0);
+            siftDown(0);
+        }
+
+        return top;
+    }
+
+    /**
+     * Remove an id from the heap, if it is queued.
+     *
+     * @param id
+     */
+    public void remove (int id)
+    {
+        int i = pos[id];
+
+        if (i == -1)
+        {
+            return;
+        }
+
+        pos[id] = -1;
+
+        if (i != --size)
+        {
+            double key = keys[size];
+            double tie = ties[size];
+            boolean up = less(key, tie, keys[i], ties[i]);
+
+            move(size, i);
+
+            if (up)
+            {
+                siftUp(i);
+            }
+            else
+            {
+                siftDown(i);
+            }
+        }
+    }
+
+    /**
+     * Remove every entry. Runs in time proportional to the number of queued
+     * entries, not to the capacity.
+     */
+    public void clear ()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            pos[heap[i]] = -1;
+        }
+
+        size = 0;
+    }
+
+    /**
+     *
+     * @param id
+     * @return true if the id is queued
+     */
+    public boolean contains (int id)
+    {
+        return pos[id] != -1;
+    }
+
+    /**
+     *
+     * @return the smallest primary key, the heap must not be empty
+     */
+    public double peekKey ()
+    {
+        return keys[0];
+    }
+
+    /**
+     *
+     * @return the secondary key of the smallest entry
+     */
+    public double peekTie ()
+    {
+        return ties[0];
+    }
+
+    /**
+     *
+     * @return
+     */
+    public boolean isEmpty ()
+    {
+        return size == 0;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int size ()
+    {
+        return size;
+    }
+
+    /**
+     *
+     * @return number of possible ids
+     */
+    public int capacity ()
+    {
+        return pos.length;
+    }
+
+    private static boolean less (double k1, double t1, double k2, double t2)
+    {
+        return k1 < k2 || (k1 == k2 && t1 < t2);
+    }
+
+    private void siftUp (int i)
+    {
+        int id = heap[i];
+        double key = keys[i];
+        double tie = ties[i];
+
+        while (i > 0)
+        {
+            int p = (i - 1) >>> 1;
+
+            if (!less(key, tie, keys[p], ties[p]))
+            {
+                break;
+            }
+
+            move(p, i);
+            i = p;
+        }
+
+        heap[i] = id;
+        keys[i] = key;
+        ties[i] = tie;
+        pos[id] = i;
+    }
+
+    private void siftDown (int i)
+    {
+        int id = heap[i];
+        double key = keys[i];
+        double tie = ties[i];
+        int half = size >>> 1;
+
+        while (i < half)
+        {
+            int c = 2 * i + 1;
+            int r = c + 1;
+
+            if (r < size && less(keys[r], ties[r], keys[c], ties[c]))
+            {
+                c = r;
+            }
+
+            if (!less(keys[c], ties[c], key, tie))
+            {
+                break;
+            }
+
+            move(c, i);
+            i = c;
+        }
+
+        heap[i] = id;
+        keys[i] = key;
+        ties[i] = tie;
+        pos[id] = i;
+    }
+
+    private void move (int from, int to)
+    {
+        heap[to] = heap[from];
+        keys[to] = keys[from];
+        ties[to] = ties[from];
+        pos[heap[to]] = to;
+    }
+
+    private void grow ()
+    {
+        int n = Math.max(heap.length * 2, 1);
+        heap = Arrays.copyOf(heap, n);
+        keys = Arrays.copyOf(keys, n);
+        ties = Arrays.copyOf(ties, n);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Jump Point Search for 4-connected, uniform-cost maps.
+ *
+ * Instead of queueing every neighbour, the search scans in straight lines and
+ * only queues the cells where an optimal path may have to turn (jump points).
+ * Vertical scans also probe horizontally from every cell they pass, so every
+ * optimal path can be built out of horizontal runs. The result is the same
+ * length as the one found by GridAstar, with the cells between the jump
+ * points filled back in.
+ *
+ * Maps with traversal costs are searched with GridAstar instead.
+ *
+ * @author Robert Hutter
+ */
+public final class JumpPointSearch
+{
+    private JumpPointSearch () {}
+
+    /**
+     * Find the shortest 4-connected path between two points of a map.
+     *
+     * @param map map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @return the path from goal to start, null if there is none
+     */
+    public static Node[] search (CharMap map, Node start, Node goal)
+    {
+        if (!map.hasUniformCost())
+        {
+            return GridAstar.search(map, start, goal);
+        }
+
+        final int w = map.getWidth();
+        final int h = map.getLength();
+
+        if (start.getX() < 1 || start.getY() < 1 || start.getX() > w || start.getY() > h
+            || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return null;
+        }
+
+        final Jumper j = new Jumper(map, goal.getX() - 1, goal.getY() - 1);
+        final int s = (start.getY() - 1) * w + start.getX() - 1;
+        final int t = j.goal;
+
+        final SearchBuffers b = SearchBuffers.acquire(w * h);
+        try
+        {
+            final IndexedHeap open = b.open;
+
+            b.visit(s, 0, -1);
+            open.push(s, j.h(s), 0);
+
+            while (!open.isEmpty())
+            {
+                final int cur = open.pop();
+
+                if (cur == t)
+                {
+                    return buildPath(b, t, w);
+                }
+
+                b.close(cur);
+
+                final int cx = cur % w;
+                final int cy = cur / w;
+                final int p = b.parent[cur];
+
+                if (p == -1)
+                {
+                    expand(j, b, cur, 1, 0);
+                    expand(j, b, cur, -1, 0);
+                    expand(j, b, cur, 0, 1);
+                    expand(j, b, cur, 0, -1);
+                }
+                else if (p / w == cy)
+                {
+                    // Arrived horizontally
+                    expand(j, b, cur, Integer.signum(cx - p % w), 0);
+                    expand(j, b, cur, 0, 1);
+                    expand(j, b, cur, 0, -1);
+                }
+                else
+                {
+                    // Arrived vertically
+                    expand(j, b, cur, 0, Integer.signum(cy - p / w));
+                    expand(j, b, cur, 1, 0);
+                    expand(j, b, cur, -1, 0);
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            b.release();
+        }
+    }
+
+    private static void expand (Jumper j, SearchBuffers b, int cur, int dx, int dy)
+    {
+        final int x = cur % j.w;
+        final int y = cur / j.w;
+
+        if (!j.passable(x + dx, y + dy))
+        {
+            return;
+        }
+
+        final int jp = dx != 0 ? j.jumpHorizontal(x, y, dx) : j.jumpVertical(x, y, dy);
+
+        if (jp == -1 || b.isClosed(jp))
+        {
+            return;
+        }
+
+        final double ng = b.g[cur] + Math.abs(jp % j.w - x) + Math.abs(jp / j.w - y);
+
+        if (ng < b.g(jp))
+        {
+            b.visit(jp, ng, cur);
+            b.open.push(jp, ng + j.h(jp), -ng);
+        }
+    }
+
+    /**
+     * Build the Node[] path, filling in the straight runs between the jump
+     * points.
+     */
+    private static Node[] buildPath (SearchBuffers b, int goal, int width)
+    {
+        int length = 1;
+        for (int i = goal; b.parent[i] != -1; i = b.parent[i])
+        {
+            int p = b.parent[i];
+            length += Math.abs(i % width - p % width) + Math.abs(i / width - p / width);
+        }
+
+        Node[] path = new Node[length];
+        int k = 0;
+        int i = goal;
+        int x = goal % width;
+        int y = goal / width;
+        double g = b.g[goal];
+
+        while (true)
+        {
+            path[k] = new Node(x + 1, y + 1);
+            path[k].setG(g);
+            path[k].setF(g);
+            if (k > 0)
+            {
+                path[k - 1].setParent(path[k]);
+            }
+            k++;
+
+            if (x + y * width == i)
+            {
+                if (b.parent[i] == -1)
+                {
+                    break;
+                }
+                i = b.parent[i];
+            }
+
+            x += Integer.signum(i % width - x);
+            y += Integer.signum(i / width - y);
+            g--;
+        }
+
+        return path;
+    }
+
+    /**
+     * The straight line scans of the search.
+     */
+    private static final class Jumper
+    {
+        final CharMap map;
+        final int w;
+        final int h;
+        final int gx;
+        final int gy;
+        final int goal;
+
+        Jumper (CharMap map, int gx, int gy)
+        {
+            this.map = map;
+            this.w = map.getWidth();
+            this.h = map.getLength();
+            this.gx = gx;
+            this.gy = gy;
+            this.goal = gy * w + gx;
+        }
+
+        boolean passable (int x, int y)
+        {
+            return x >= 0 && y >= 0 && x < w && y < h && map.isPassable(x + 1, y + 1);
+        }
+
+        double h (int i)
+        {
+            return Math.abs(i % w - gx) + Math.abs(i / w - gy);
+        }
+
+        /**
+         * Scan horizontally from (x, y), not including it.
+         *
+         * @return index of the jump point, -1 if the scan hit a wall
+         */
+        int jumpHorizontal (int x, int y, int dx)
+        {
+            while (true)
+            {
+                x += dx;
+
+                if (!passable(x, y))
+                {
+                    return -1;
+                }
+
+                if ((x == gx && y == gy)
+                    || (passable(x, y - 1) && !passable(x - dx, y - 1))
+                    || (passable(x, y + 1) && !passable(x - dx, y + 1)))
+                {
+                    return y * w + x;
+                }
+            }
+        }
+
+        /**
+         * Scan vertically from (x, y), not including it. Every cell passed is
+         * a jump point if a horizontal scan from it finds one.
+         *
+         * @return index of the jump point, -1 if the scan hit a wall
+         */
+        int jumpVertical (int x, int y, int dy)
+        {
+            while (true)
+            {
+                y += dy;
+
+                if (!passable(x, y))
+                {
+                    return -1;
+                }
+
+                if ((x == gx && y == gy)
+                    || (passable(x - 1, y) && !passable(x - 1, y - dy))
+                    || (passable(x + 1, y) && !passable(x + 1, y - dy))
+                    || jumpHorizontal(x, y, 1) != -1
+                    || jumpHorizontal(x, y, -1) != -1)
+                {
+                    return y * w + x;
+                }
+            }
+        }
+    }
+}
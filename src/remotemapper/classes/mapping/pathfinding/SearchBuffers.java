@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Scratch state of a grid search, pooled per thread.
+ *
+ * The buffers only grow, so once a thread has searched a map of a given
+ * size its following searches allocate nothing. A thread keeps at most
+ * MAX_POOLED_BYTES of them, so threads of a pool do not each hold on to a
+ * copy sized to a large map. Larger searches share one set of buffers
+ * instead, lent to one search at a time and kept while it takes up no more
+ * than MAX_LARGE_BYTES, so repeated searches of a large map allocate
+ * nothing either. Every acquire must be followed by a release once the
+ * search is done with the buffers.
+ *
+ * Instead of clearing the arrays between searches every search gets a new
+ * stamp: a cell counts as seen when its mark equals the stamp and as closed
+ * when it equals stamp + 1.
+ *
+ * @author Robert Hutter
+ */
+final class SearchBuffers
+{
+    /**
+     * Bytes of buffers a cell takes: its g score, parent, mark and position
+     * in the open list.
+     */
+    static final int BYTES_PER_CELL = 20;
+
+    /**
+     * Most bytes of buffers a thread keeps, enough for a 1024 by 1024 map.
+     */
+    static final long MAX_POOLED_BYTES = 32L << 20;
+
+    /**
+     * Most bytes the buffers shared by larger searches are kept up to.
+     */
+    static final long MAX_LARGE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    private static final ThreadLocal<SearchBuffers> POOL =
+            ThreadLocal.withInitial(SearchBuffers::new);
+
+    /**
+     * The buffers shared by larger searches, null while lent out.
+     */
+    private static final AtomicReference<SearchBuffers> LARGE = new AtomicReference<>();
+
+    double[] g = new double[0];
+    int[] parent = new int[0];
+    IndexedHeap open = new IndexedHeap(0);
+    private int[] mark = new int[0];
+    private int stamp = 0;
+    private boolean large = false;
+
+    /**
+     * Create buffers outside of the pool, for searches that hand their
+     * state between threads.
+     */
+    SearchBuffers () {}
+
+    /**
+     * Get buffers ready for a search over the specified number of cells:
+     * the calling thread's ones, or if they would take up more than
+     * MAX_POOLED_BYTES the shared ones, new ones if those are lent out.
+     *
+     * @param cells number of cells of the map to search
+     * @return
+     */
+    static SearchBuffers acquire (int cells)
+    {
+        SearchBuffers b;
+        if ((long) cells * BYTES_PER_CELL <= MAX_POOLED_BYTES)
+        {
+            b = POOL.get();
+        }
+        else
+        {
+            b = LARGE.getAndSet(null);
+            if (b == null)
+            {
+                b = new SearchBuffers();
+                b.large = true;
+            }
+        }
+
+        b.prepare(cells);
+        return b;
+    }
+
+    /**
+     * Hand buffers got from acquire back once the search is done with them.
+     */
+    void release ()
+    {
+        if (large && (long) mark.length * BYTES_PER_CELL <= MAX_LARGE_BYTES)
+        {
+            LARGE.set(this);
+        }
+    }
+
+    /**
+     * Get ready for a new search over the specified number of cells.
+     *
+     * @param cells number of cells of the map to search
+     */
+    void prepare (int cells)
+    {
+        if (mark.length < cells)
+        {
+            g = new double[cells];
+            parent = new int[cells];
+            mark = new int[cells];
+            open = new IndexedHeap(cells);
+            stamp = 0;
+        }
+        else
+        {
+            open.clear();
+        }
+
+        if (stamp >= Integer.MAX_VALUE - 2)
+        {
+            Arrays.fill(mark, 0);
+            stamp = 0;
+        }
+
+        stamp += 2;
+    }
+
+    /**
+     * Visit a cell with the specified g score and parent.
+     *
+     * @param i cell index
+     * @param score g score
+     * @param from parent cell index, -1 for none
+     */
+    void visit (int i, double score, int from)
+    {
+        g[i] = score;
+        parent[i] = from;
+        if (mark[i] != stamp + 1)
+        {
+            mark[i] = stamp;
+        }
+    }
+
+    /**
+     *
+     * @param i cell index
+     * @return the cell's g score, infinity if it was not visited yet
+     */
+    double g (int i)
+    {
+        return isSeen(i) ? g[i] : Double.POSITIVE_INFINITY;
+    }
+
+    void close (int i)
+    {
+        mark[i] = stamp + 1;
+    }
+
+    boolean isClosed (int i)
+    {
+        return mark[i] == stamp + 1;
+    }
+
+    boolean isSeen (int i)
+    {
+        return mark[i] == stamp || mark[i] == stamp + 1;
+    }
+}
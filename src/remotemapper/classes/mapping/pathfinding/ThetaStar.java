@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.pathfinding;
+
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Theta*, an any-angle variant of 8-connected A*.
+ *
+ * When a cell is reached, the search also tries to link it straight to the
+ * parent of the cell it came from. This works if the line between them
+ * only crosses passable cells. The path then runs in straight segments
+ * between the cells where it really has to turn. Only those cells are
+ * returned, so every pair of neighbouring nodes is one straight drive.
+ *
+ * A segment costs its length times the highest cost among the cells it
+ * crosses. On maps with traversal costs the path is therefore not always
+ * the cheapest, but it never runs through a cell that is more expensive
+ * than it claims.
+ *
+ * @author Robert Hutter
+ */
+public final class ThetaStar
+{
+    private ThetaStar () {}
+
+    /**
+     * Find a short any-angle path between two points of a map.
+     *
+     * @param map map to search on
+     * @param start the start point
+     * @param goal the goal point
+     * @return the turning points of the path from goal to start, null if
+     *         there is none
+     */
+    public static Node[] search (CharMap map, Node start, Node goal)
+    {
+        final int w = map.getWidth();
+        final int h = map.getLength();
+
+        if (start.getX() < 1 || start.getY() < 1 || start.getX() > w || start.getY() > h
+            || !map.isPassable(goal.getX(), goal.getY()))
+        {
+            return null;
+        }
+
+        final int s = (start.getY() - 1) * w + start.getX() - 1;
+        final int t = (goal.getY() - 1) * w + goal.getX() - 1;
+        final int tx = t % w;
+        final int ty = t / w;
+
+        final SearchBuffers b = SearchBuffers.acquire(w * h);
+        try
+        {
+            final IndexedHeap open = b.open;
+
+            b.visit(s, 0, -1);
+            open.push(s, Math.hypot(s % w - tx, s / w - ty), 0);
+
+            while (!open.isEmpty())
+            {
+                final int cur = open.pop();
+
+                if (cur == t)
+                {
+                    return GridAstar.buildPath(b.parent, b.g, t, w);
+                }
+
+                b.close(cur);
+
+                final int cx = cur % w;
+                final int cy = cur / w;
+                final int p = b.parent[cur];
+
+                for (int d = 0; d < 8; d++)
+                {
+                    final int nx = cx + GridAstar.DX[d];
+                    final int ny = cy + GridAstar.DY[d];
+                    final int ni = cur + GridAstar.DY[d] * w + GridAstar.DX[d];
+
+                    if (nx < 0 || ny < 0 || nx >= w || ny >= h || b.isClosed(ni)
+                        || !map.isPassable(nx + 1, ny + 1))
+                    {
+                        continue;
+                    }
+
+                    if (d >= 4 && !(map.isPassable(nx + 1, cy + 1) && map.isPassable(cx + 1, ny + 1)))
+                    {
+                        continue; // Corner
+                    }
+
+                    int from = cur;
+                    double ng = b.g[cur] + (d < 4 ? 1 : GridAstar.SQRT2) * map.getCost(nx + 1, ny + 1);
+
+                    if (p != -1)
+                    {
+                        double direct = b.g[p] + segmentCost(map, p % w, p / w, nx, ny);
+
+                        if (direct <= ng)
+                        {
+                            from = p;
+                            ng = direct;
+                        }
+                    }
+
+                    if (ng < b.g(ni))
+                    {
+                        b.visit(ni, ng, from);
+                        open.push(ni, ng + Math.hypot(nx - tx, ny - ty), -ng);
+                    }
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            b.release();
+        }
+    }
+
+    /**
+     * Check the line of sight between the centres of two cells. Every cell
+     * the line touches must be passable, and where it passes exactly through
+     * a corner both cells beside the corner must be passable.
+     *
+     * @param map map to check on
+     * @param x0 first cell's 0 based x coordinate
+     * @param y0 first cell's 0 based y coordinate
+     * @param x1 second cell's 0 based x coordinate
+     * @param y1 second cell's 0 based y coordinate
+     * @return length of the line times the highest cost of the cells it
+     *         enters, infinity if it is blocked
+     */
+    static double segmentCost (CharMap map, int x0, int y0, int x1, int y1)
+    {
+        final int nx = Math.abs(x1 - x0);
+        final int ny = Math.abs(y1 - y0);
+        final int sx = Integer.signum(x1 - x0);
+        final int sy = Integer.signum(y1 - y0);
+
+        int x = x0;
+        int y = y0;
+        double max = 1;
+
+        for (int ix = 0, iy = 0; ix < nx || iy < ny; )
+        {
+            // Which cell border does the line cross next?
+            final long next = (1 + 2L * ix) * ny - (1 + 2L * iy) * nx;
+
+            if (next == 0)
+            {
+                if (!map.isPassable(x + sx + 1, y + 1) || !map.isPassable(x + 1, y + sy + 1))
+                {
+                    return Double.POSITIVE_INFINITY;
+                }
+                x += sx;
+                y += sy;
+                ix++;
+                iy++;
+            }
+            else if (next < 0)
+            {
+                x += sx;
+                ix++;
+            }
+            else
+            {
+                y += sy;
+                iy++;
+            }
+
+            final double c = map.getCost(x + 1, y + 1);
+            if (c == Double.POSITIVE_INFINITY)
+            {
+                return c;
+            }
+            max = Math.max(max, c);
+        }
+
+        return Math.hypot(nx, ny) * max;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.storage;
+
+/**
+ * Stores a map of two characters with one bit per point.
+ *
+ * Every row starts on a new long, so a run of 64 points of a row can be
+ * read or tested with a single word operation.
+ *
+ * @author Robert Hutter
+ */
+public final class BitStorage implements MapStorage
+{
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+    private final char zero;
+    private final char one;
+
+    /**
+     * Create a new storage with every point set to zero.
+     *
+     * @param width number of points in a row
+     * @param height number of rows
+     * @param zero character of the cleared bits
+     * @param one character of the set bits
+     */
+    public BitStorage (int width, int height, char zero, char one)
+    {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+        this.zero = zero;
+        this.one = one;
+    }
+
+    private BitStorage (BitStorage o)
+    {
+        this.width = o.width;
+        this.height = o.height;
+        this.wordsPerRow = o.wordsPerRow;
+        this.words = o.words.clone();
+        this.zero = o.zero;
+        this.one = o.one;
+    }
+
+    @Override
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    @Override
+    public char get (int x, int y)
+    {
+        return isSet(x, y) ? one : zero;
+    }
+
+    /**
+     *
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return true if the point holds the one character
+     */
+    public boolean isSet (int x, int y)
+    {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    @Override
+    public boolean set (int x, int y, char c)
+    {
+        final int i = y * wordsPerRow + (x >>> 6);
+
+        if (c == one)
+        {
+            words[i] |= 1L << x;
+        }
+        else if (c == zero)
+        {
+            words[i] &= ~(1L << x);
+        }
+        else
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public long getMemoryUsage ()
+    {
+        return 16 + 8L * words.length;
+    }
+
+    @Override
+    public MapStorage copy ()
+    {
+        return new BitStorage(this);
+    }
+
+    @Override
+    public boolean regionContains (int x, int y, int width, int height, char c)
+    {
+        if (c != zero && c != one)
+        {
+            return false;
+        }
+        if (width <= 0 || height <= 0)
+        {
+            return false;
+        }
+
+        final int first = x >>> 6;
+        final int last = (x + width - 1) >>> 6;
+        final long firstMask = -1L << x;
+        final long lastMask = -1L >>> (63 - ((x + width - 1) & 63));
+        final long flip = c == one ? 0 : -1L;
+
+        for (int y2 = y; y2 < y + height; y2++)
+        {
+            final int row = y2 * wordsPerRow;
+
+            for (int i = first; i <= last; i++)
+            {
+                long mask = -1L;
+                if (i == first)
+                {
+                    mask &= firstMask;
+                }
+                if (i == last)
+                {
+                    mask &= lastMask;
+                }
+
+                if (((words[row + i] ^ flip) & mask) != 0)
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get 64 points of a row as the bits of a long, the lowest bit being
+     * the leftmost point. Bits past the end of the row are 0.
+     *
+     * @param y the row
+     * @param i index of the word in the row
+     * @return
+     */
+    public long getWord (int y, int i)
+    {
+        return words[y * wordsPerRow + i];
+    }
+
+    @Override
+    public long getMatchWord (int y, int i, char c)
+    {
+        if (c == one)
+        {
+            return words[y * wordsPerRow + i];
+        }
+        if (c != zero)
+        {
+            return 0;
+        }
+
+        final long word = ~words[y * wordsPerRow + i];
+        return i < wordsPerRow - 1 || (width & 63) == 0 ? word : word & ((1L << width) - 1);
+    }
+
+    @Override
+    public void orMatchRow (int y, char c, long[] dest)
+    {
+        if (c != one)
+        {
+            MapStorage.super.orMatchRow(y, c, dest);
+            return;
+        }
+
+        final int start = y * wordsPerRow;
+        for (int i = 0; i < wordsPerRow; i++)
+        {
+            dest[i] |= words[start + i];
+        }
+    }
+
+    /**
+     *
+     * @return number of longs a row takes
+     */
+    @Override
+    public int getWordsPerRow ()
+    {
+        return wordsPerRow;
+    }
+
+    /**
+     *
+     * @return character of the cleared bits
+     */
+    public char getZero ()
+    {
+        return zero;
+    }
+
+    /**
+     *
+     * @return character of the set bits
+     */
+    public char getOne ()
+    {
+        return one;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.storage;
+
+import java.util.Arrays;
+
+/**
+ * Stores a map of up to 256 different characters with one byte per point.
+ * Every point holds the index of its character in a dictionary, characters
+ * are added to the dictionary as they are first used.
+ *
+ * @author Robert Hutter
+ */
+public final class ByteStorage implements MapStorage
+{
+    /**
+     * Largest number of characters the dictionary can hold.
+     */
+    public static final int MAX_SYMBOLS = 256;
+
+    private final int width;
+    private final int height;
+    private final byte[] codes;
+    private char[] dictionary;
+    private int symbols;
+
+    /**
+     * Create a new storage with every point set to a character.
+     *
+     * @param width number of points in a row
+     * @param height number of rows
+     * @param fill the initial character of every point
+     */
+    public ByteStorage (int width, int height, char fill)
+    {
+        this.width = width;
+        this.height = height;
+        this.codes = new byte[width * height];
+        this.dictionary = new char[4];
+        this.dictionary[0] = fill;
+        this.symbols = 1;
+    }
+
+    private ByteStorage (ByteStorage o)
+    {
+        this.width = o.width;
+        this.height = o.height;
+        this.codes = o.codes.clone();
+        this.dictionary = o.dictionary.clone();
+        this.symbols = o.symbols;
+    }
+
+    @Override
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    @Override
+    public char get (int x, int y)
+    {
+        return dictionary[codes[y * width + x] & 0xFF];
+    }
+
+    @Override
+    public boolean set (int x, int y, char c)
+    {
+        int code = code(c);
+
+        if (code == -1)
+        {
+            if (symbols == MAX_SYMBOLS)
+            {
+                return false;
+            }
+            if (symbols == dictionary.length)
+            {
+                dictionary = Arrays.copyOf(dictionary, Math.min(MAX_SYMBOLS, symbols * 2));
+            }
+            code = symbols;
+            dictionary[symbols++] = c;
+        }
+
+        codes[y * width + x] = (byte) code;
+        return true;
+    }
+
+    @Override
+    public long getMemoryUsage ()
+    {
+        return 32 + codes.length + 2L * dictionary.length;
+    }
+
+    @Override
+    public MapStorage copy ()
+    {
+        return new ByteStorage(this);
+    }
+
+    @Override
+    public boolean regionContains (int x, int y, int width, int height, char c)
+    {
+        final int code = code(c);
+
+        if (code == -1)
+        {
+            return false;
+        }
+
+        for (int y2 = y; y2 < y + height; y2++)
+        {
+            for (int i = y2 * this.width + x, end = i + width; i < end; i++)
+            {
+                if (codes[i] == (byte) code)
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private int code (char c)
+    {
+        for (int i = 0; i < symbols; i++)
+        {
+            if (dictionary[i] == c)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
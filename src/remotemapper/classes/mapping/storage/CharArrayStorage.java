@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.storage;
+
+/**
+ * Stores a map with one char per point, for maps using more characters
+ * than the other storages can hold.
+ *
+ * @author Robert Hutter
+ */
+public final class CharArrayStorage implements MapStorage
+{
+    private final int width;
+    private final int height;
+    private final char[] points;
+
+    /**
+     * Create a new storage with every point set to the character 0.
+     *
+     * @param width number of points in a row
+     * @param height number of rows
+     */
+    public CharArrayStorage (int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.points = new char[width * height];
+    }
+
+    private CharArrayStorage (CharArrayStorage o)
+    {
+        this.width = o.width;
+        this.height = o.height;
+        this.points = o.points.clone();
+    }
+
+    @Override
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    @Override
+    public char get (int x, int y)
+    {
+        return points[y * width + x];
+    }
+
+    @Override
+    public boolean set (int x, int y, char c)
+    {
+        points[y * width + x] = c;
+        return true;
+    }
+
+    @Override
+    public long getMemoryUsage ()
+    {
+        return 32 + 2L * points.length;
+    }
+
+    @Override
+    public MapStorage copy ()
+    {
+        return new CharArrayStorage(this);
+    }
+
+    @Override
+    public void getRow (int y, char[] dest)
+    {
+        System.arraycopy(points, y * width, dest, 0, width);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.storage;
+
+/**
+ * Stores the points of a CharMap. Coordinates are 0 based and the storage
+ * only holds the map's points, not the line separators.
+ *
+ * A storage may only be able to hold some characters. Setting a point to
+ * any other character fails, and the map then moves its content to a more
+ * general storage with widen().
+ *
+ * @author Robert Hutter
+ */
+public interface MapStorage
+{
+    /**
+     *
+     * @return number of points in a row
+     */
+    int getWidth ();
+
+    /**
+     *
+     * @return number of rows
+     */
+    int getHeight ();
+
+    /**
+     * Get the character of a point.
+     *
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @return
+     */
+    char get (int x, int y);
+
+    /**
+     * Set the character of a point.
+     *
+     * @param x the point's x coordinate
+     * @param y the point's y coordinate
+     * @param c the character
+     * @return false if this storage can not hold the character, the point
+     *         is left unchanged then
+     */
+    boolean set (int x, int y, char c);
+
+    /**
+     *
+     * @return approximate number of bytes of heap the storage takes
+     */
+    long getMemoryUsage ();
+
+    /**
+     *
+     * @return a storage with the same content, sharing nothing with this one
+     */
+    MapStorage copy ();
+
+    /**
+     * Check to see if any point of a rectangle holds a specific character.
+     *
+     * @param x x coordinate of the rectangle's top left corner
+     * @param y y coordinate of the rectangle's top left corner
+     * @param width the rectangle's width
+     * @param height the rectangle's height
+     * @param c the character to look for
+     * @return
+     */
+    default boolean regionContains (int x, int y, int width, int height, char c)
+    {
+        for (int y2 = y; y2 < y + height; y2++)
+        {
+            for (int x2 = x; x2 < x + width; x2++)
+            {
+                if (get(x2, y2) == c)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find which of 64 neighbouring points of a row hold a character.
+     *
+     * @param y the row
+     * @param i index of the run of 64 points in the row, starting at point
+     *        64 * i
+     * @param c the character to look for
+     * @return a bit set for every point holding c, the lowest bit being the
+     *         leftmost point. Bits past the end of the row are 0.
+     */
+    default long getMatchWord (int y, int i, char c)
+    {
+        final int end = Math.min(getWidth(), (i + 1) << 6);
+        long word = 0;
+
+        for (int x = i << 6; x < end; x++)
+        {
+            if (get(x, y) == c)
+            {
+                word |= 1L << x;
+            }
+        }
+        return word;
+    }
+
+    /**
+     * Find the points of a whole row that hold a character, ORing them into
+     * an array of words laid out as by getMatchWord().
+     *
+     * @param y the row
+     * @param c the character to look for
+     * @param dest at least getWordsPerRow() words to OR the row's points into
+     */
+    default void orMatchRow (int y, char c, long[] dest)
+    {
+        for (int i = 0; i < getWordsPerRow(); i++)
+        {
+            dest[i] |= getMatchWord(y, i, c);
+        }
+    }
+
+    /**
+     *
+     * @return number of words getMatchWord() splits a row into
+     */
+    default int getWordsPerRow ()
+    {
+        return (getWidth() + 63) >>> 6;
+    }
+
+    /**
+     * Copy a row into an array.
+     *
+     * @param y the row
+     * @param dest array of at least getWidth() characters
+     */
+    default void getRow (int y, char[] dest)
+    {
+        for (int x = 0; x < getWidth(); x++)
+        {
+            dest[x] = get(x, y);
+        }
+    }
+
+    /**
+     * Create the most compact storage for a raw map: one bit per point if
+     * it has at most two characters, one byte per point if it has at most
+     * 256, otherwise a plain char array.
+     *
+     * @param raw rows of the map
+     * @param width number of points to take from each row
+     * @param zero character to prefer as the cleared bit of a bit storage
+     * @param one character to prefer as the set bit of a bit storage
+     * @return
+     */
+    static MapStorage of (char[][] raw, int width, char zero, char one)
+    {
+        final boolean[] seen = new boolean[Character.MAX_VALUE + 1];
+        char[] symbols = new char[ByteStorage.MAX_SYMBOLS + 1];
+        int count = 0;
+
+        for (int y = 0; y < raw.length && count <= ByteStorage.MAX_SYMBOLS; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                char c = raw[y][x];
+                if (!seen[c])
+                {
+                    seen[c] = true;
+                    if (count <= ByteStorage.MAX_SYMBOLS)
+                    {
+                        symbols[count] = c;
+                    }
+                    if (++count > ByteStorage.MAX_SYMBOLS)
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+
+        MapStorage s;
+        if (count <= 2 && (count == 0 || symbols[0] == zero || symbols[0] == one)
+            && (count < 2 || symbols[1] == zero || symbols[1] == one))
+        {
+            s = new BitStorage(width, raw.length, zero, one);
+        }
+        else if (count <= 2)
+        {
+            s = new BitStorage(width, raw.length, symbols[0], count == 2 ? symbols[1] : zero);
+        }
+        else if (count <= ByteStorage.MAX_SYMBOLS)
+        {
+            s = new ByteStorage(width, raw.length, zero);
+        }
+        else
+        {
+            s = new CharArrayStorage(width, raw.length);
+        }
+
+        for (int y = 0; y < raw.length; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                s.set(x, y, raw[y][x]);
+            }
+        }
+
+        return s;
+    }
+
+    /**
+     * Move the content of a storage into the next more general kind of
+     * storage.
+     *
+     * @param s the storage
+     * @return a storage with the same content that can hold more characters
+     */
+    static MapStorage widen (MapStorage s)
+    {
+        MapStorage w = s instanceof BitStorage
+                ? new ByteStorage(s.getWidth(), s.getHeight(), ((BitStorage) s).getZero())
+                : new CharArrayStorage(s.getWidth(), s.getHeight());
+
+        char[] row = new char[s.getWidth()];
+        for (int y = 0; y < s.getHeight(); y++)
+        {
+            s.getRow(y, row);
+            for (int x = 0; x < row.length; x++)
+            {
+                w.set(x, y, row[x]);
+            }
+        }
+
+        return w;
+    }
+}
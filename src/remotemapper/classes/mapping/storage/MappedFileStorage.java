@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes the points of a map straight from a memory mapped map
+ * file, one byte per point. Opening a map this way takes the same time and
+ * heap whatever the size of the file, and the operating system writes the
+ * changed points back to the file.
+ *
+ * Only files whose rows all have the same length and which only hold
+ * single byte characters can be mapped. Characters that do not fit in a
+ * byte can not be set, and neither can any character if the file is read
+ * only.
+ *
+ * @author Robert Hutter
+ */
+public final class MappedFileStorage implements MapStorage
+{
+    /**
+     * Rows are split over several mappings of at most this many bytes.
+     */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Files mapped by this process. A mapping is only released when it is
+     * garbage collected, so files stay in here for good.
+     */
+    private static final Set<File> MAPPED = ConcurrentHashMap.newKeySet();
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+    private final boolean writable;
+    private final char fill;
+
+    private MappedFileStorage (File file, int width, int height, MappedByteBuffer[] segments,
+            int rowsPerSegment, boolean writable, char fill)
+    {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        this.rowsPerSegment = rowsPerSegment;
+        this.segments = segments;
+        this.writable = writable;
+        this.fill = fill;
+    }
+
+    /**
+     * Map the rows of a map file. The file is opened for writing if
+     * possible, read only otherwise.
+     *
+     * @param file the map file
+     * @param offset number of bytes in front of the first row
+     * @param fill character used for the points of copies that were never
+     *        written, see copy()
+     * @return the storage, null if the rows of the file do not all have the
+     *         same length
+     * @throws IOException
+     */
+    public static MappedFileStorage open (File file, long offset, char fill) throws IOException
+    {
+        final boolean writable = file.canWrite();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r"))
+        {
+            final long length = raf.length() - offset;
+
+            // The first line separator gives the row length
+            raf.seek(offset);
+            int width = 0;
+            int c;
+            while ((c = raf.read()) != '\n')
+            {
+                if (c == -1 || ++width >= SEGMENT_SIZE)
+                {
+                    return null;
+                }
+            }
+
+            final long stride = width + 1;
+            if (length % stride != 0 || length / stride > Integer.MAX_VALUE)
+            {
+                return null;
+            }
+
+            final int height = (int) (length / stride);
+            if (height == 0)
+            {
+                return null;
+            }
+
+            final int rowsPerSegment = (int) Math.max(1, SEGMENT_SIZE / stride);
+            final MappedByteBuffer[] segments = new MappedByteBuffer[(height + rowsPerSegment - 1) / rowsPerSegment];
+            final FileChannel ch = raf.getChannel();
+            MAPPED.add(file.getCanonicalFile());
+
+            for (int i = 0; i < segments.length; i++)
+            {
+                long rows = Math.min(rowsPerSegment, height - (long) i * rowsPerSegment);
+                segments[i] = ch.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        offset + (long) i * rowsPerSegment * stride, rows * stride);
+            }
+
+            MappedFileStorage s = new MappedFileStorage(file, width, height, segments, rowsPerSegment, writable, fill);
+
+            // Checking every row would read the whole file, the last one
+            // catches most files that are not a rectangle
+            return s.segment(height - 1).get(s.index(width, height - 1)) == '\n' ? s : null;
+        }
+    }
+
+    @Override
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    @Override
+    public char get (int x, int y)
+    {
+        return (char) (segment(y).get(index(x, y)) & 0xFF);
+    }
+
+    @Override
+    public boolean set (int x, int y, char c)
+    {
+        if (!writable || c > 0x7F || c == '\n')
+        {
+            return false;
+        }
+
+        segment(y).put(index(x, y), (byte) c);
+        return true;
+    }
+
+    @Override
+    public long getMemoryUsage ()
+    {
+        return 64 + 64L * segments.length;
+    }
+
+    /**
+     * Copy the points into memory. The copy is tiled, so points holding the
+     * fill character take no memory.
+     *
+     * @return
+     */
+    @Override
+    public MapStorage copy ()
+    {
+        return new TiledStorage(this, fill);
+    }
+
+    @Override
+    public void getRow (int y, char[] dest)
+    {
+        final MappedByteBuffer b = segment(y);
+        final int start = index(0, y);
+
+        for (int x = 0; x < width; x++)
+        {
+            dest[x] = (char) (b.get(start + x) & 0xFF);
+        }
+    }
+
+    /**
+     * Write the changed points to the file now instead of when the
+     * operating system decides to.
+     */
+    public void force ()
+    {
+        if (writable)
+        {
+            for (MappedByteBuffer b : segments)
+            {
+                b.force();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param f a file
+     * @return true if the points are stored in that file
+     * @throws IOException
+     */
+    public boolean isBackedBy (File f) throws IOException
+    {
+        return f.getCanonicalFile().equals(file.getCanonicalFile());
+    }
+
+    /**
+     * Files that are mapped can not be deleted or replaced on every system,
+     * even after their map moved to other storage.
+     *
+     * @param f a file
+     * @return true if this process may still have the file mapped
+     * @throws IOException
+     */
+    public static boolean isMapped (File f) throws IOException
+    {
+        return MAPPED.contains(f.getCanonicalFile());
+    }
+
+    /**
+     *
+     * @return true if points can be set
+     */
+    public boolean isWritable ()
+    {
+        return writable;
+    }
+
+    private MappedByteBuffer segment (int y)
+    {
+        return segments.length == 1 ? segments[0] : segments[y / rowsPerSegment];
+    }
+
+    private int index (int x, int y)
+    {
+        return (segments.length == 1 ? y : y % rowsPerSegment) * stride + x;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.classes.mapping.storage;
+
+/**
+ * Stores a map in square tiles of TILE_SIZE points that are only allocated
+ * once something other than the fill character is written into them.
+ *
+ * Until then a tile takes a single reference, so memory grows with the
+ * part of the map that was actually mapped rather than with its size. A
+ * written tile is itself a MapStorage and starts out with one bit per
+ * point, widening on its own when it has to.
+ *
+ * The storage can grow to the right and to the bottom without copying any
+ * of its tiles: the larger storage shares them.
+ *
+ * @author Robert Hutter
+ */
+public final class TiledStorage implements MapStorage
+{
+    public static final int TILE_SHIFT = 6;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+
+    /**
+     * Row major, null for tiles holding nothing but the fill character.
+     */
+    private final MapStorage[] tiles;
+    private final char fill;
+
+    /**
+     * Create a new storage with every point set to the fill character.
+     *
+     * @param width number of points in a row
+     * @param height number of rows
+     * @param fill character of the points never written
+     */
+    public TiledStorage (int width, int height, char fill)
+    {
+        this.width = width;
+        this.height = height;
+        this.tilesX = tiles(width);
+        this.tilesY = tiles(height);
+        this.tiles = new MapStorage[tilesX * tilesY];
+        this.fill = fill;
+    }
+
+    /**
+     * Create a tiled storage with the content of another storage. Tiles
+     * that only hold the fill character are not allocated.
+     *
+     * @param s storage to copy
+     * @param fill character of the points never written
+     */
+    public TiledStorage (MapStorage s, char fill)
+    {
+        this(s.getWidth(), s.getHeight(), fill);
+
+        char[] row = new char[width];
+        for (int y = 0; y < height; y++)
+        {
+            s.getRow(y, row);
+            for (int x = 0; x < width; x++)
+            {
+                set(x, y, row[x]);
+            }
+        }
+    }
+
+    private TiledStorage (TiledStorage o)
+    {
+        this.width = o.width;
+        this.height = o.height;
+        this.tilesX = o.tilesX;
+        this.tilesY = o.tilesY;
+        this.tiles = new MapStorage[o.tiles.length];
+        this.fill = o.fill;
+
+        for (int i = 0; i < tiles.length; i++)
+        {
+            if (o.tiles[i] != null)
+            {
+                tiles[i] = o.tiles[i].copy();
+            }
+        }
+    }
+
+    @Override
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    @Override
+    public char get (int x, int y)
+    {
+        MapStorage t = tiles[(y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT)];
+        return t == null ? fill : t.get(x & TILE_MASK, y & TILE_MASK);
+    }
+
+    @Override
+    public boolean set (int x, int y, char c)
+    {
+        final int i = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        MapStorage t = tiles[i];
+
+        if (t == null)
+        {
+            if (c == fill)
+            {
+                return true;
+            }
+            t = new BitStorage(TILE_SIZE, TILE_SIZE, fill, c);
+            tiles[i] = t;
+        }
+
+        if (!t.set(x & TILE_MASK, y & TILE_MASK, c))
+        {
+            t = MapStorage.widen(t);
+            tiles[i] = t;
+            t.set(x & TILE_MASK, y & TILE_MASK, c);
+        }
+
+        return true;
+    }
+
+    @Override
+    public long getMemoryUsage ()
+    {
+        long bytes = 16 + 8L * tiles.length;
+        for (MapStorage t : tiles)
+        {
+            if (t != null)
+            {
+                bytes += t.getMemoryUsage();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public MapStorage copy ()
+    {
+        return new TiledStorage(this);
+    }
+
+    @Override
+    public boolean regionContains (int x, int y, int width, int height, char c)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            return false;
+        }
+
+        final int x2 = x + width - 1;
+        final int y2 = y + height - 1;
+
+        for (int ty = y >> TILE_SHIFT; ty <= y2 >> TILE_SHIFT; ty++)
+        {
+            for (int tx = x >> TILE_SHIFT; tx <= x2 >> TILE_SHIFT; tx++)
+            {
+                MapStorage t = tiles[ty * tilesX + tx];
+
+                if (t == null)
+                {
+                    if (c == fill)
+                    {
+                        return true;
+                    }
+                    continue;
+                }
+
+                // Part of the region inside this tile, in tile coordinates
+                int left = Math.max(x, tx << TILE_SHIFT) & TILE_MASK;
+                int top = Math.max(y, ty << TILE_SHIFT) & TILE_MASK;
+                int right = Math.min(x2, (tx << TILE_SHIFT) + TILE_MASK) & TILE_MASK;
+                int bottom = Math.min(y2, (ty << TILE_SHIFT) + TILE_MASK) & TILE_MASK;
+
+                if (t.regionContains(left, top, right - left + 1, bottom - top + 1, c))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void getRow (int y, char[] dest)
+    {
+        final int ty = y >> TILE_SHIFT;
+
+        for (int tx = 0; tx < tilesX; tx++)
+        {
+            MapStorage t = tiles[ty * tilesX + tx];
+            int end = Math.min(width, (tx + 1) << TILE_SHIFT);
+
+            for (int x = tx << TILE_SHIFT; x < end; x++)
+            {
+                dest[x] = t == null ? fill : t.get(x & TILE_MASK, y & TILE_MASK);
+            }
+        }
+    }
+
+    @Override
+    public long getMatchWord (int y, int i, char c)
+    {
+        // A tile row is exactly one word
+        MapStorage t = tiles[(y >> TILE_SHIFT) * tilesX + i];
+        long word = t == null ? (c == fill ? -1L : 0) : t.getMatchWord(y & TILE_MASK, 0, c);
+
+        if (i == tilesX - 1 && (width & TILE_MASK) != 0)
+        {
+            word &= (1L << width) - 1;
+        }
+        return word;
+    }
+
+    @Override
+    public void orMatchRow (int y, char c, long[] dest)
+    {
+        final int base = (y >> TILE_SHIFT) * tilesX;
+
+        for (int tx = 0; tx < tilesX; tx++)
+        {
+            MapStorage t = tiles[base + tx];
+            if (t != null)
+            {
+                dest[tx] |= t instanceof BitStorage
+                    ? ((BitStorage) t).getMatchWord(y & TILE_MASK, 0, c)
+                    : t.getMatchWord(y & TILE_MASK, 0, c);
+            }
+            else if (c == fill)
+            {
+                dest[tx] = -1L;
+            }
+        }
+
+        if (c == fill && (width & TILE_MASK) != 0)
+        {
+            dest[tilesX - 1] &= (1L << width) - 1;
+        }
+    }
+
+    /**
+     * Make a larger storage with the same content. The new points hold the
+     * fill character. The tiles are not copied but shared with this
+     * storage, which should no longer be written to. Shrinking is not
+     * supported, smaller dimensions are ignored.
+     *
+     * @param width new number of points in a row
+     * @param height new number of rows
+     * @return the larger storage
+     */
+    public TiledStorage grow (int width, int height)
+    {
+        final TiledStorage grown = new TiledStorage(Math.max(width, this.width), Math.max(height, this.height), fill);
+
+        for (int ty = 0; ty < tilesY; ty++)
+        {
+            System.arraycopy(tiles, ty * tilesX, grown.tiles, ty * grown.tilesX, tilesX);
+        }
+
+        return grown;
+    }
+
+    /**
+     *
+     * @return number of tiles holding more than the fill character
+     */
+    public int getAllocatedTiles ()
+    {
+        int n = 0;
+        for (MapStorage t : tiles)
+        {
+            if (t != null)
+            {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     *
+     * @return character of the points never written
+     */
+    public char getFill ()
+    {
+        return fill;
+    }
+
+    private static int tiles (int points)
+    {
+        return (points + TILE_MASK) >> TILE_SHIFT;
+    }
+}
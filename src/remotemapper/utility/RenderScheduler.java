@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 Robert Hutter
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package remotemapper.utility;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collapses requests to render into frames, at most one per frame interval.
+ *
+ * A frame has two steps: preparing it on the scheduler's own thread, then
+ * drawing it on the executor of the user interface. Requests made while a
+ * frame is waiting for its turn are coalesced into it. Requests made while
+ * a frame is being prepared or drawn start one more frame once it is done,
+ * so there is never more than one frame queued on the user interface and
+ * no frame is drawn that a newer one already replaced, yet the last request
+ * is always followed by a frame.
+ *
+ * @author Robert Hutter
+ */
+public class RenderScheduler
+{
+    private final long interval;
+    private final Runnable prepare;
+    private final Runnable draw;
+    private final Executor drawExecutor;
+    private final ScheduledExecutorService timer;
+
+    private boolean pending = false;
+    private boolean scheduled = false;
+    private boolean rendering = false;
+    private long lastFrame;
+
+    private long requested = 0;
+    private long coalesced = 0;
+    private long performed = 0;
+
+    /**
+     * Create a scheduler.
+     *
+     * @param framesPerSecond the most frames to render in a second
+     * @param prepare the first step of a frame, run on the scheduler's
+     *        thread
+     * @param draw the second step of a frame, run by drawExecutor
+     * @param drawExecutor runs the second steps, such as Platform::runLater
+     */
+    public RenderScheduler (int framesPerSecond, Runnable prepare, Runnable draw, Executor drawExecutor)
+    {
+        this.interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, framesPerSecond);
+        this.prepare = prepare;
+        this.draw = draw;
+        this.drawExecutor = drawExecutor;
+        this.lastFrame = System.nanoTime() - interval;
+
+        ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, r ->
+        {
+            Thread thread = new Thread(r, "Render scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        t.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.timer = t;
+    }
+
+    /**
+     * Ask for a frame to be rendered. Returns immediately.
+     */
+    public synchronized void requestRender ()
+    {
+        requested++;
+        if (pending)
+        {
+            coalesced++;
+            return;
+        }
+
+        pending = true;
+        if (!rendering)
+        {
+            schedule();
+        }
+    }
+
+    /**
+     * Stop rendering. Frames already being drawn are finished.
+     */
+    public void dispose ()
+    {
+        timer.shutdownNow();
+    }
+
+    /**
+     *
+     * @return number of calls to requestRender()
+     */
+    public synchronized long getRequested ()
+    {
+        return requested;
+    }
+
+    /**
+     *
+     * @return number of requests that were merged into a frame already
+     *         asked for
+     */
+    public synchronized long getCoalesced ()
+    {
+        return coalesced;
+    }
+
+    /**
+     *
+     * @return number of frames drawn
+     */
+    public synchronized long getPerformed ()
+    {
+        return performed;
+    }
+
+    /**
+     * Start a frame as soon as the interval since the last one allows.
+     */
+    private void schedule ()
+    {
+        if (scheduled || timer.isShutdown())
+        {
+            return;
+        }
+        scheduled = true;
+
+        final long delay = Math.max(0, lastFrame + interval - System.nanoTime());
+        timer.schedule(this::frame, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void frame ()
+    {
+        synchronized (this)
+        {
+            // Requests from now on are for the next frame
+            pending = false;
+            scheduled = false;
+            rendering = true;
+            lastFrame = System.nanoTime();
+        }
+
+        try
+        {
+            prepare.run();
+            drawExecutor.execute(() ->
+            {
+                try
+                {
+                    draw.run();
+                }
+                finally
+                {
+                    finish(true);
+                }
+            });
+        }
+        catch (RuntimeException ex)
+        {
+            Logger.getLogger(RenderScheduler.class.getName()).log(Level.SEVERE, null, ex);
+            finish(false);
+        }
+    }
+
+    private synchronized void finish (boolean drawn)
+    {
+        rendering = false;
+        if (drawn)
+        {
+            performed++;
+        }
+        if (pending)
+        {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+import remotemapper.classes.mapping.pathfinding.BidirectionalAstar;
+
+/**
+ * Cross-checks the bidirectional search against CharMap.Astar on random
+ * maps.
+ *
+ * Run with: java BidirectionalAstarCheck [maps]
+ * (defaults to 5000). A third of the maps carry marks with traversal costs
+ * and fractional penalties, and a few large weighted ones follow, with
+ * paths that cost thousands. Every path must cost
+ * what the A* path costs, be connected, free of obstacles and run from the
+ * goal back to the start. The harness exits with 1 if any is not.
+ *
+ * @author Robert Hutter
+ */
+public class BidirectionalAstarCheck {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+    private static final char GRASS = 'g';
+    private static final int LARGE_SIZE = 600;
+    private static final int LARGE_MAPS = 4;
+
+    private static int failures = 0;
+
+    /**
+     * @param args the number of small maps to check
+     */
+    public static void main(String[] args) {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Random r = new Random(9);
+
+        for (int i = 0; i < maps; i++)
+        {
+            int w = 1 + r.nextInt(60);
+            int h = 1 + r.nextInt(60);
+            CharMap map = randomMap(w, h, r.nextDouble() * 0.4, r.nextInt(3) == 0, r);
+            check(map, 1 + r.nextInt(w), 1 + r.nextInt(h), 1 + r.nextInt(w), 1 + r.nextInt(h));
+        }
+
+        for (int i = 0; i < LARGE_MAPS; i++)
+        {
+            CharMap map = randomMap(LARGE_SIZE, LARGE_SIZE, 0.2, true, r);
+            map.setPoint(1, 1, ES);
+            map.setPoint(LARGE_SIZE, LARGE_SIZE, ES);
+            check(map, 1, 1, LARGE_SIZE, LARGE_SIZE);
+        }
+
+        System.out.println((maps + LARGE_MAPS) + " maps, " + failures + " failures");
+        if (failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    static void check(CharMap map, int sx, int sy, int gx, int gy)
+    {
+        Node[] expected = map.Astar(new Node(sx, sy), new Node(gx, gy));
+        Node[] path = BidirectionalAstar.search(map, new Node(sx, sy), new Node(gx, gy));
+
+        if ((expected == null) != (path == null))
+        {
+            fail("reachability differs from A*", sx, sy, gx, gy);
+            return;
+        }
+        if (path == null)
+        {
+            return;
+        }
+        if (Math.abs(path[0].getG() - expected[0].getG()) > 1e-6)
+        {
+            fail("path costs " + path[0].getG() + ", A* found " + expected[0].getG(), sx, sy, gx, gy);
+        }
+        if (path[0].getX() != gx || path[0].getY() != gy
+            || path[path.length - 1].getX() != sx || path[path.length - 1].getY() != sy)
+        {
+            fail("path does not run from the goal to the start", sx, sy, gx, gy);
+        }
+
+        for (int i = 0; i < path.length; i++)
+        {
+            Node n = path[i];
+            if (i < path.length - 1 && !map.isPassable(n.getX(), n.getY()))
+            {
+                fail("path crosses an obstacle", sx, sy, gx, gy);
+                return;
+            }
+            if (i > 0 && (Math.abs(n.getX() - path[i - 1].getX()) + Math.abs(n.getY() - path[i - 1].getY()) != 1
+                          || path[i - 1].getParent() != n))
+            {
+                fail("path is not connected", sx, sy, gx, gy);
+                return;
+            }
+        }
+    }
+
+    static void fail(String what, int sx, int sy, int gx, int gy)
+    {
+        failures++;
+        System.out.println("(" + sx + ", " + sy + ") to (" + gx + ", " + gy + "): " + what);
+    }
+
+    /**
+     * Generate a map with randomly placed obstacles and, if weighted, grass
+     * that costs more to cross and points with penalties.
+     */
+    static CharMap randomMap(int w, int h, double density, boolean weighted, Random r)
+    {
+        CharMap map = new CharMap(w, h, OB, ES);
+        if (weighted)
+        {
+            map.setMarkCost(GRASS, 1 + r.nextInt(4));
+        }
+
+        for (int y = 1; y <= h; y++)
+        {
+            for (int x = 1; x <= w; x++)
+            {
+                double q = r.nextDouble();
+                if (q < density)
+                {
+                    map.setPoint(x, y, OB);
+                }
+                else if (weighted && q < density + 0.2)
+                {
+                    map.setPoint(x, y, GRASS);
+                }
+                else if (weighted && q < density + 0.3)
+                {
+                    map.setPenalty(x, y, r.nextDouble() * 5);
+                }
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+import remotemapper.classes.mapping.pathfinding.DStarLite;
+
+/**
+ * Cross-checks D* Lite against CharMap.Astar on random maps.
+ *
+ * Run with: java DStarLiteCheck [maps]
+ * (defaults to 2000). Every map is searched 15 times while the start
+ * moves along, points change between the searches and the goal sometimes
+ * moves. Now and then the planner is moved to an edited copy of the map, as
+ * getDStarLite() does after the simplification coefficient changed. Every
+ * path must be as long as the one A* finds, connected, free of obstacles
+ * and run from the goal back to the start. The harness exits with 1 if any
+ * is not.
+ *
+ * @author Robert Hutter
+ */
+public class DStarLiteCheck {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+
+    private static int failures = 0;
+
+    /**
+     * @param args the number of maps to check
+     */
+    public static void main(String[] args) {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random r = new Random(1);
+
+        for (int i = 0; i < maps; i++)
+        {
+            int w = 2 + r.nextInt(80);
+            int h = 2 + r.nextInt(80);
+            CharMap map = randomMap(w, h, r.nextDouble() * 0.4, r);
+            DStarLite dstar = new DStarLite(map);
+
+            int gx = 1 + r.nextInt(w), gy = 1 + r.nextInt(h);
+            int sx = 1 + r.nextInt(w), sy = 1 + r.nextInt(h);
+            for (int q = 0; q < 15; q++)
+            {
+                if (r.nextInt(8) == 0)
+                {
+                    gx = 1 + r.nextInt(w);
+                    gy = 1 + r.nextInt(h);
+                }
+                check(map, dstar, sx, sy, gx, gy);
+
+                sx = Math.max(1, Math.min(w, sx + r.nextInt(5) - 2));
+                sy = Math.max(1, Math.min(h, sy + r.nextInt(5) - 2));
+                edit(map, r.nextInt(20), r);
+
+                if (r.nextInt(10) == 0)
+                {
+                    map = new CharMap(map);
+                    edit(map, 10, r);
+                    dstar.setMap(map);
+                }
+            }
+        }
+
+        System.out.println(maps + " maps, " + failures + " failures");
+        if (failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    static void check(CharMap map, DStarLite dstar, int sx, int sy, int gx, int gy)
+    {
+        Node[] expected = map.Astar(new Node(sx, sy), new Node(gx, gy));
+        Node[] path = dstar.search(new Node(sx, sy), new Node(gx, gy));
+
+        if ((expected == null) != (path == null))
+        {
+            fail("reachability differs from A*", sx, sy, gx, gy);
+            return;
+        }
+        if (path == null)
+        {
+            return;
+        }
+        if (path.length != expected.length)
+        {
+            fail("path of " + path.length + " points, A* found " + expected.length, sx, sy, gx, gy);
+        }
+        if (path[0].getX() != gx || path[0].getY() != gy
+            || path[path.length - 1].getX() != sx || path[path.length - 1].getY() != sy)
+        {
+            fail("path does not run from the goal to the start", sx, sy, gx, gy);
+        }
+
+        for (int i = 0; i < path.length; i++)
+        {
+            Node n = path[i];
+            if (i < path.length - 1 && !map.isPassable(n.getX(), n.getY()))
+            {
+                fail("path crosses an obstacle", sx, sy, gx, gy);
+                return;
+            }
+            if (i > 0 && (Math.abs(n.getX() - path[i - 1].getX()) + Math.abs(n.getY() - path[i - 1].getY()) != 1
+                          || path[i - 1].getParent() != n))
+            {
+                fail("path is not connected", sx, sy, gx, gy);
+                return;
+            }
+        }
+    }
+
+    static void fail(String what, int sx, int sy, int gx, int gy)
+    {
+        failures++;
+        System.out.println("(" + sx + ", " + sy + ") to (" + gx + ", " + gy + "): " + what);
+    }
+
+    static void edit(CharMap map, int points, Random r)
+    {
+        for (int i = 0; i < points; i++)
+        {
+            map.setPoint(1 + r.nextInt(map.getWidth() - 1), 1 + r.nextInt(map.getLength()), r.nextBoolean() ? OB : ES);
+        }
+    }
+
+    static CharMap randomMap(int w, int h, double density, Random r)
+    {
+        CharMap map = new CharMap(w, h, OB, ES);
+        for (int y = 1; y <= h; y++)
+        {
+            for (int x = 1; x <= w; x++)
+            {
+                if (r.nextDouble() < density)
+                {
+                    map.setPoint(x, y, OB);
+                }
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+import remotemapper.classes.mapping.pathfinding.HierarchicalPathfinder;
+
+/**
+ * Cross-checks HierarchicalPathfinder against CharMap.Astar on random maps.
+ *
+ * Run with: java HierarchicalPathfinderCheck [maps]
+ * (defaults to 400). Every map is searched with a random cluster size and
+ * edited between searches, so the abstraction is also rebuilt. A path must
+ * exist exactly when A* finds one, be connected, free of obstacles, run
+ * from the goal back to the start and be at most MAX_RATIO times as long
+ * as the one A* finds. The harness exits with 1 if any is not.
+ *
+ * @author Robert Hutter
+ */
+public class HierarchicalPathfinderCheck {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+
+    /**
+     * Longest path allowed, relative to the shortest.
+     */
+    private static final double MAX_RATIO = 1.10;
+
+    private static final int SEARCHES_PER_MAP = 8;
+
+    private static int failures = 0;
+    private static double worst = 1;
+
+    /**
+     * @param args the number of maps to check
+     */
+    public static void main(String[] args) {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        Random r = new Random(1);
+
+        for (int i = 0; i < maps; i++)
+        {
+            int w = 8 + r.nextInt(i % 2 == 0 ? 120 : 300);
+            int h = 8 + r.nextInt(i % 2 == 0 ? 120 : 300);
+            double density = r.nextDouble() * 0.4;
+
+            CharMap map = new CharMap(w, h, OB, ES);
+            for (int y = 1; y <= h; y++)
+            {
+                for (int x = 1; x <= w; x++)
+                {
+                    if (r.nextDouble() < density)
+                    {
+                        map.setPoint(x, y, OB);
+                    }
+                }
+            }
+
+            int clusterSize = i % 2 == 0 ? 4 + r.nextInt(20) : HierarchicalPathfinder.DEFAULT_CLUSTER_SIZE;
+            HierarchicalPathfinder hpa = new HierarchicalPathfinder(map, clusterSize);
+
+            for (int s = 0; s < SEARCHES_PER_MAP; s++)
+            {
+                int edits = r.nextInt(30);
+                for (int e = 0; e < edits; e++)
+                {
+                    map.setPoint(1 + r.nextInt(w), 1 + r.nextInt(h), r.nextBoolean() ? OB : ES);
+                }
+                if (r.nextInt(4) == 0)
+                {
+                    map.setPointRectangle(1 + r.nextInt(w / 2), 1 + r.nextInt(h / 2),
+                            1 + r.nextInt(w / 2), 1 + r.nextInt(h / 2), r.nextBoolean() ? OB : ES);
+                }
+
+                int sx = 1 + r.nextInt(w);
+                int sy = 1 + r.nextInt(h);
+                int gx = 1 + r.nextInt(w);
+                int gy = 1 + r.nextInt(h);
+                map.setPoint(sx, sy, ES);
+                map.setPoint(gx, gy, ES);
+
+                check(map, hpa, sx, sy, gx, gy);
+            }
+
+            hpa.dispose();
+        }
+
+        System.out.println(maps + " maps, " + failures + " failures, longest path "
+                + String.format("%.3f", worst) + " times the shortest");
+        if (failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    static void check(CharMap map, HierarchicalPathfinder hpa, int sx, int sy, int gx, int gy)
+    {
+        Node[] expected = map.Astar(new Node(sx, sy), new Node(gx, gy));
+        Node[] path = hpa.search(new Node(sx, sy), new Node(gx, gy));
+
+        if ((expected == null) != (path == null))
+        {
+            fail("reachability differs from A*", sx, sy, gx, gy);
+            return;
+        }
+        if (path == null)
+        {
+            return;
+        }
+
+        double ratio = (double) path.length / expected.length;
+        worst = Math.max(worst, ratio);
+        if (ratio > MAX_RATIO)
+        {
+            fail("path of " + path.length + " points, A* found " + expected.length, sx, sy, gx, gy);
+        }
+        if (path[0].getX() != gx || path[0].getY() != gy
+            || path[path.length - 1].getX() != sx || path[path.length - 1].getY() != sy)
+        {
+            fail("path does not run from the goal to the start", sx, sy, gx, gy);
+        }
+
+        for (int i = 0; i < path.length; i++)
+        {
+            Node n = path[i];
+            if (i < path.length - 1 && !map.isPassable(n.getX(), n.getY()))
+            {
+                fail("path crosses an obstacle", sx, sy, gx, gy);
+                return;
+            }
+            if (i > 0 && Math.abs(n.getX() - path[i - 1].getX()) + Math.abs(n.getY() - path[i - 1].getY()) != 1)
+            {
+                fail("path is not connected", sx, sy, gx, gy);
+                return;
+            }
+        }
+    }
+
+    static void fail(String what, int sx, int sy, int gx, int gy)
+    {
+        failures++;
+        System.out.println("(" + sx + ", " + sy + ") to (" + gx + ", " + gy + "): " + what);
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.Node;
+
+/**
+ * Cross-checks Jump Point Search against CharMap.Astar on random maps.
+ *
+ * Run with: java JumpPointSearchCheck [maps]
+ * (defaults to 3000). Every path JPS finds must be as long as the one A*
+ * finds, connected, free of obstacles and run from the goal back to the
+ * start. The harness exits with 1 if any is not.
+ *
+ * @author Robert Hutter
+ */
+public class JumpPointSearchCheck {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+
+    private static int failures = 0;
+
+    /**
+     * @param args the number of maps to check
+     */
+    public static void main(String[] args) {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        Random r = new Random(1);
+
+        for (int i = 0; i < maps; i++)
+        {
+            int w = 2 + r.nextInt(40);
+            int h = 2 + r.nextInt(40);
+            double density = r.nextDouble() * 0.45;
+
+            CharMap map = new CharMap(w, h, OB, ES);
+            for (int y = 1; y <= h; y++)
+            {
+                for (int x = 1; x <= w; x++)
+                {
+                    if (r.nextDouble() < density)
+                    {
+                        map.setPoint(x, y, OB);
+                    }
+                }
+            }
+
+            check(map, 1 + r.nextInt(w), 1 + r.nextInt(h), 1 + r.nextInt(w), 1 + r.nextInt(h));
+        }
+
+        System.out.println(maps + " maps, " + failures + " failures");
+        if (failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    static void check(CharMap map, int sx, int sy, int gx, int gy)
+    {
+        Node[] expected = map.Astar(new Node(sx, sy), new Node(gx, gy));
+        Node[] path = map.JPS(new Node(sx, sy), new Node(gx, gy));
+
+        if ((expected == null) != (path == null))
+        {
+            fail("reachability differs from A*", sx, sy, gx, gy);
+            return;
+        }
+        if (path == null)
+        {
+            return;
+        }
+        if (path.length != expected.length)
+        {
+            fail("path of " + path.length + " points, A* found " + expected.length, sx, sy, gx, gy);
+        }
+        if (path[0].getX() != gx || path[0].getY() != gy
+            || path[path.length - 1].getX() != sx || path[path.length - 1].getY() != sy)
+        {
+            fail("path does not run from the goal to the start", sx, sy, gx, gy);
+        }
+
+        for (int i = 0; i < path.length; i++)
+        {
+            Node n = path[i];
+            if (i < path.length - 1 && !map.isPassable(n.getX(), n.getY()))
+            {
+                fail("path crosses an obstacle", sx, sy, gx, gy);
+                return;
+            }
+            if (i > 0 && Math.abs(n.getX() - path[i - 1].getX()) + Math.abs(n.getY() - path[i - 1].getY()) != 1)
+            {
+                fail("path is not connected", sx, sy, gx, gy);
+                return;
+            }
+        }
+    }
+
+    static void fail(String what, int sx, int sy, int gx, int gy)
+    {
+        failures++;
+        System.out.println("(" + sx + ", " + sy + ") to (" + gx + ", " + gy + "): " + what);
+    }
+}
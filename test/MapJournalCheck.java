@@ -0,0 +1,161 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapFiles;
+import remotemapper.classes.mapping.MapJournal;
+
+/**
+ * Checks that replaying a MapJournal restores the map as it was flushed.
+ *
+ * Run with: java MapJournalCheck [maps]
+ * (defaults to 40). Random points of every map change between ten
+ * flushes, and the map sometimes grows. After every flush a copy of the
+ * map is loaded from its file and the journal replayed on it, which must
+ * give the flushed map, also with the last record cut short. Compacting
+ * must leave the whole map in its file and no journal. Finally the map file
+ * is replaced behind the journal's back: replaying must then change
+ * nothing, and the next flush must save the map in full. The harness exits
+ * with 1 if any check fails.
+ *
+ * @author Robert Hutter
+ */
+public class MapJournalCheck {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+
+    private static int failures = 0;
+
+    /**
+     * @param args the number of maps to check
+     */
+    public static void main(String[] args) throws IOException {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        Random r = new Random(11);
+
+        for (int i = 0; i < maps; i++)
+        {
+            int w = 1 + r.nextInt(300);
+            int h = 1 + r.nextInt(300);
+            CharMap map = new CharMap(w, h, OB, ES);
+            File mapFile = File.createTempFile("journal", ".map");
+            File journalFile = MapJournal.getJournalFile(mapFile);
+            MapFiles.write(map, mapFile, null);
+            MapJournal journal = new MapJournal(map, mapFile);
+
+            for (int round = 0; round < 10; round++)
+            {
+                edit(map, r.nextInt(100), r);
+                if (round == 7 && r.nextBoolean())
+                {
+                    map.growToInclude(w + 10, h + 5);
+                }
+                journal.flush();
+
+                CharMap replayed = MapFiles.load(mapFile);
+                MapJournal.replay(replayed, mapFile);
+                check(Arrays.deepEquals(replayed.getMap(), map.getMap()), "replay differs from the map");
+
+                if (journalFile.length() > 10)
+                {
+                    checkTornRecord(mapFile, journalFile);
+                }
+            }
+
+            journal.compact(null);
+            check(!journalFile.exists(), "journal left after compacting");
+            check(Arrays.deepEquals(MapFiles.load(mapFile).getMap(), map.getMap()), "compacted file differs from the map");
+
+            checkStaleJournal(map, mapFile, journal, r);
+
+            journal.dispose();
+            Files.deleteIfExists(journalFile.toPath());
+            Files.delete(mapFile.toPath());
+        }
+
+        System.out.println(maps + " maps, " + failures + " failures");
+        if (failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replay a journal whose last record was cut short on a copy of its map
+     * file. It must not throw.
+     */
+    static void checkTornRecord(File mapFile, File journalFile) throws IOException
+    {
+        File copy = File.createTempFile("torn", ".map");
+        File copyJournal = MapJournal.getJournalFile(copy);
+        byte[] records = Files.readAllBytes(journalFile.toPath());
+
+        Files.write(copy.toPath(), Files.readAllBytes(mapFile.toPath()));
+        Files.write(copyJournal.toPath(), Arrays.copyOf(records, records.length - 3));
+        try
+        {
+            MapJournal.replay(MapFiles.load(copy), copy);
+        }
+        finally
+        {
+            Files.delete(copyJournal.toPath());
+            Files.delete(copy.toPath());
+        }
+    }
+
+    /**
+     * Journal a change, then save another map over the map file.
+     */
+    static void checkStaleJournal(CharMap map, File mapFile, MapJournal journal, Random r) throws IOException
+    {
+        edit(map, r.nextInt(20), r);
+        flip(map, r);
+        journal.flush();
+
+        CharMap other = new CharMap(map.getWidth() - 1, map.getLength(), OB, ES);
+        other.setPoint(1, 1, OB);
+        MapFiles.write(other, mapFile, null);
+
+        CharMap loaded = MapFiles.load(mapFile);
+        check(MapJournal.replay(loaded, mapFile) == 0, "stale journal was replayed");
+        check(Arrays.deepEquals(loaded.getMap(), other.getMap()), "stale journal changed the map");
+
+        MapJournal restarted = new MapJournal(map, mapFile);
+        flip(map, r);
+        restarted.flush();
+        check(!MapJournal.getJournalFile(mapFile).exists(), "flush appended to a stale journal");
+        check(Arrays.deepEquals(MapFiles.load(mapFile).getMap(), map.getMap()), "flush did not save the map in full");
+        restarted.dispose();
+    }
+
+    static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println(what);
+        }
+    }
+
+    /**
+     * Change one random point, unlike edit(), which may set points to what
+     * they already are.
+     */
+    static void flip(CharMap map, Random r)
+    {
+        int x = 1 + r.nextInt(map.getWidth() - 1);
+        int y = 1 + r.nextInt(map.getLength());
+        map.setPoint(x, y, map.getPoint(x, y) == OB ? '.' : OB);
+    }
+
+    static void edit(CharMap map, int points, Random r)
+    {
+        for (int i = 0; i < points; i++)
+        {
+            map.setPoint(1 + r.nextInt(map.getWidth() - 1), 1 + r.nextInt(map.getLength()), r.nextBoolean() ? OB : '.');
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapFiles;
+import remotemapper.classes.mapping.MapLoader;
+
+/**
+ * Times MapLoader on generated maps with 1 up to N threads.
+ *
+ * Run with: java MapLoadBenchmark [size] [threads]
+ * (defaults to 4096 and the number of available cores). The map is
+ * written once as a text file and once in the binary format, then each
+ * file is loaded with every pool size from 1 to threads. The files are
+ * read from the page cache after the first run, so the times show the
+ * decoding, not the disk.
+ *
+ * @author Robert Hutter
+ */
+public class MapLoadBenchmark {
+
+    private static final int RUNS = 5;
+
+    /**
+     * @param args map size and highest number of threads
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        CharMap map = new CharMap(size, size, '#', ' ');
+        Random r = new Random(42);
+        for (int i = 0; i < size * size / 10; i++)
+        {
+            map.setPoint(1 + r.nextInt(size), 1 + r.nextInt(size), '#');
+        }
+
+        File text = File.createTempFile("maptext", ".d");
+        File binary = File.createTempFile("mapbinary", ".d");
+        text.deleteOnExit();
+        binary.deleteOnExit();
+
+        CharMap.exportToFile(map, text);
+        MapFiles.write(map, binary, null);
+
+        System.out.println("Map " + size + "x" + size + ", 10% obstacles");
+        compare("  text   (" + text.length() / 1024 + " KB)", text, threads);
+        compare("  binary (" + binary.length() / 1024 + " KB)", binary, threads);
+    }
+
+    static void compare(String name, File file, int threads) throws IOException
+    {
+        System.out.println(name);
+
+        double single = 0;
+        for (int t = 1; t <= threads; t++)
+        {
+            ForkJoinPool pool = new ForkJoinPool(t);
+            double ms = time(file, pool);
+            pool.shutdown();
+
+            if (t == 1)
+            {
+                single = ms;
+            }
+            System.out.printf("    %2d thr. %9.2f ms  speedup %.2fx%n", t, ms, single / ms);
+        }
+    }
+
+    /**
+     * @return best time of RUNS loads in milliseconds
+     */
+    static double time(File file, ForkJoinPool pool) throws IOException
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS + 1; i++)
+        {
+            long start = System.nanoTime();
+            MapLoader.load(file, null, pool);
+            long elapsed = System.nanoTime() - start;
+
+            // The first run warms up the JIT
+            if (i > 0)
+            {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best / 1e6;
+    }
+}
@@ -0,0 +1,246 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+import remotemapper.classes.mapping.MapPyramid;
+import remotemapper.classes.mapping.Node;
+import remotemapper.classes.mapping.pathfinding.BidirectionalAstar;
+import remotemapper.classes.mapping.pathfinding.CoarseToFinePlanner;
+
+/**
+ * Compares the pathfinding engines on generated maps.
+ *
+ * Run with: java PathfindBenchmark [sizes...]
+ * (defaults to 256 1024 4096). The list based A* the engine replaced is
+ * only timed up to 256x256, above that a single search takes hours.
+ *
+ * Next to the best time of each engine the harness prints the bytes the
+ * benchmark thread allocated per search, read from the JVM's thread
+ * allocation counter (the same figure JMH's -prof gc reports).
+ *
+ * Coarse-to-fine planning runs on a MapPyramid built once per map, as it
+ * would be between edits.
+ *
+ * The bidirectional search is also timed on an open map and on a maze,
+ * with its wall-clock speedup over single threaded A*. It needs two free
+ * cores to show any.
+ *
+ * @author Robert Hutter
+ */
+public class PathfindBenchmark {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+    private static final int LEGACY_MAX_SIZE = 256;
+    private static final int RUNS = 5;
+
+    /**
+     * @param args map sizes to benchmark
+     */
+    public static void main(String[] args) {
+        int[] sizes = {256, 1024, 4096};
+        if (args.length > 0)
+        {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+            {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int size : sizes)
+        {
+            CharMap map = randomMap(size, 0.2, 42);
+
+            System.out.println("Map " + size + "x" + size);
+            time("  A* (heap)  ", RUNS, () -> map.Astar(new Node(1, 1), new Node(size, size)));
+
+            MapPyramid pyramid = new MapPyramid(map);
+            time("  A* (coarse)", RUNS, () -> CoarseToFinePlanner.search(pyramid, new Node(1, 1), new Node(size, size)));
+
+            if (size <= LEGACY_MAX_SIZE)
+            {
+                time("  A* (lists) ", 1, () -> legacyAstar(map, new Node(1, 1), new Node(size, size)));
+            }
+        }
+
+        for (int size : sizes)
+        {
+            compareBidirectional("Open " + size + "x" + size, randomMap(size, 0, 42));
+            compareBidirectional("Maze " + size + "x" + size, maze(size, 42));
+        }
+    }
+
+    static void compareBidirectional(String name, CharMap map)
+    {
+        Node start = new Node(1, 1);
+        Node goal = new Node(map.getWidth() - 1, map.getLength());
+
+        System.out.println(name);
+        long single = time("  A*           ", RUNS, () -> map.Astar(start, goal));
+        long bidirectional = time("  A* (2 thr.)  ", RUNS, () -> BidirectionalAstar.search(map, start, goal));
+        System.out.printf("  speedup %.2fx (%d cores)%n", (double) single / bidirectional,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Generate a maze with a recursive backtracker. Corridors run on the odd
+     * coordinates, the corners are always connected to them.
+     */
+    static CharMap maze(int size, long seed)
+    {
+        CharMap map = new CharMap(size, size, OB, ES);
+        map.setPointRectangle(1, 1, size, size, OB);
+        Random r = new Random(seed);
+
+        int cells = (size + 1) / 2;
+        boolean[] visited = new boolean[cells * cells];
+        int[] stack = new int[cells * cells];
+        int top = 0;
+        stack[top++] = 0;
+        visited[0] = true;
+        map.setPoint(1, 1, ES);
+
+        int[] dirs = new int[4];
+        while (top > 0)
+        {
+            int c = stack[top - 1];
+            int cx = c % cells;
+            int cy = c / cells;
+            int n = 0;
+
+            if (cx > 0 && !visited[c - 1]) dirs[n++] = c - 1;
+            if (cx < cells - 1 && !visited[c + 1]) dirs[n++] = c + 1;
+            if (cy > 0 && !visited[c - cells]) dirs[n++] = c - cells;
+            if (cy < cells - 1 && !visited[c + cells]) dirs[n++] = c + cells;
+
+            if (n == 0)
+            {
+                top--;
+                continue;
+            }
+
+            int next = dirs[r.nextInt(n)];
+            int nx = next % cells;
+            int ny = next / cells;
+            visited[next] = true;
+            stack[top++] = next;
+
+            map.setPoint(cx + nx + 1, cy + ny + 1, ES);
+            map.setPoint(2 * nx + 1, 2 * ny + 1, ES);
+        }
+
+        map.setPoint(size, size, ES);
+        map.setPoint(size - 1, size, ES);
+        return map;
+    }
+
+    /**
+     * Generate a map with randomly placed obstacles. The corners are always
+     * left free.
+     */
+    static CharMap randomMap(int size, double density, long seed)
+    {
+        CharMap map = new CharMap(size, size, OB, ES);
+        Random r = new Random(seed);
+
+        for (int y = 1; y <= size; y++)
+        {
+            for (int x = 1; x <= size; x++)
+            {
+                if (r.nextDouble() < density)
+                {
+                    map.setPoint(x, y, OB);
+                }
+            }
+        }
+
+        map.setPoint(1, 1, ES);
+        map.setPoint(size, size, ES);
+        return map;
+    }
+
+    static long time(String name, int runs, Search search)
+    {
+        search.run(); // warm up
+
+        long best = Long.MAX_VALUE;
+        long allocated = allocatedBytes();
+        Node[] path = null;
+        for (int i = 0; i < runs; i++)
+        {
+            long t = System.nanoTime();
+            path = search.run();
+            best = Math.min(best, System.nanoTime() - t);
+        }
+        allocated = (allocatedBytes() - allocated) / runs;
+
+        System.out.printf("%s %10.2f ms %12d B/op  path: %s%n", name, best / 1e6,
+                allocated, path == null ? "none" : Integer.toString(path.length));
+        return best;
+    }
+
+    static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    interface Search
+    {
+        Node[] run();
+    }
+
+    /**
+     * The list based A* that CharMap.Astar used before the heap engine.
+     */
+    static Node[] legacyAstar(CharMap map, Node start, Node goal)
+    {
+        List<Node> openList = new ArrayList<>();
+        List<Node> closedList = new ArrayList<>();
+
+        start.setG(0);
+        start.setF(start.getG() + start.heuristic(goal));
+        openList.add(start);
+
+        while (!openList.isEmpty())
+        {
+            Node current = Node.getLowestF(openList.toArray(new Node[openList.size()]));
+
+            if (current.equals(goal))
+            {
+                goal.setParent(current);
+                return Node.constructPath(goal);
+            }
+
+            openList.remove(current);
+            closedList.add(current);
+
+            for (Node n : Node.neighbors(current, map, map.getEmptySpaceMark()))
+            {
+                if (!Node.containsNode(closedList.toArray(new Node[closedList.size()]), n))
+                {
+                    n.setF(n.getG() + n.heuristic(goal));
+
+                    if (!Node.containsNode(openList.toArray(new Node[openList.size()]), n))
+                    {
+                        openList.add(n);
+                    }
+                    else
+                    {
+                        Node openNeighbor = openList.get(Node.containsNodeIndex(
+                                openList.toArray(new Node[openList.size()]), n));
+                        if (n.getG() < openNeighbor.getG())
+                        {
+                            openNeighbor.setG(n.getG());
+                            openNeighbor.setParent(n.getParent());
+                        }
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+}
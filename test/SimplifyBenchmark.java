@@ -0,0 +1,104 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import remotemapper.classes.mapping.CharMap;
+
+/**
+ * Times CharMap.simplfyMap on generated maps with 1 up to N threads.
+ *
+ * Run with: java SimplifyBenchmark [size] [coefficient] [threads]
+ * (defaults to 4096, 30 and the number of available cores). Three maps are
+ * simplified: one with 10% of its points set at random, one with a few
+ * points in every tile and one with long walls.
+ *
+ * @author Robert Hutter
+ */
+public class SimplifyBenchmark {
+
+    private static final int RUNS = 20;
+
+    /**
+     * @param args map size, simplification coefficient and highest number
+     *        of threads
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int w = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Random r = new Random(42);
+
+        CharMap crowded = new CharMap(size, size, '#', ' ');
+        for (int i = 0; i < size * size / 10; i++)
+        {
+            crowded.setPoint(1 + r.nextInt(size), 1 + r.nextInt(size), '#');
+        }
+
+        CharMap scattered = new CharMap(size, size, '#', ' ');
+        for (int i = 0; i < size * size / 1000; i++)
+        {
+            scattered.setPoint(1 + r.nextInt(size), 1 + r.nextInt(size), '#');
+        }
+
+        CharMap walls = new CharMap(size, size, '#', ' ');
+        for (int i = 0; i < size / 10; i++)
+        {
+            int x = 1 + r.nextInt(size), y = 1 + r.nextInt(size);
+            for (int k = 0; k < size / 40; k++)
+            {
+                if (i % 2 == 0)
+                {
+                    walls.setPoint(Math.min(size, x + k), y, '#');
+                }
+                else
+                {
+                    walls.setPoint(x, Math.min(size, y + k), '#');
+                }
+            }
+        }
+
+        System.out.println("Map " + size + "x" + size + ", coefficient " + w);
+        compare("  10% obstacles", crowded, w, threads);
+        compare("  0.1% obstacles", scattered, w, threads);
+        compare("  walls", walls, w, threads);
+    }
+
+    static void compare(String name, CharMap map, int w, int threads)
+    {
+        System.out.println(name);
+
+        double single = 0;
+        for (int t = 1; t <= threads; t++)
+        {
+            ForkJoinPool pool = new ForkJoinPool(t);
+            double ms = time(map, w, pool);
+            pool.shutdown();
+
+            if (t == 1)
+            {
+                single = ms;
+            }
+            System.out.printf("    %2d thr. %9.3f ms  speedup %.2fx%n", t, ms, single / ms);
+        }
+    }
+
+    /**
+     * @return best time of RUNS simplifications in milliseconds
+     */
+    static double time(CharMap map, int w, ForkJoinPool pool)
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS + 1; i++)
+        {
+            long start = System.nanoTime();
+            pool.submit(() -> CharMap.simplfyMap(map, w)).join();
+            long elapsed = System.nanoTime() - start;
+
+            // The first run warms up the JIT
+            if (i > 0)
+            {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best / 1e6;
+    }
+}
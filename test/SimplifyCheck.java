@@ -0,0 +1,198 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import remotemapper.classes.mapping.CharMap;
+
+/**
+ * Cross-checks CharMap.simplfyMap against a point by point simplification
+ * on random maps.
+ *
+ * Run with: java SimplifyCheck [maps]
+ * (defaults to 400). The maps vary in size, obstacle density, marks with
+ * traversal costs and penalties, and are simplified with random
+ * coefficients. A map opened from a file and one built from a char array
+ * with marks of its own are simplified with a range of coefficients as
+ * well. Every simplified map must match the reference point for point,
+ * penalties included. The harness exits with 1 if any does not.
+ *
+ * @author Robert Hutter
+ */
+public class SimplifyCheck {
+
+    private static final char OB = '#';
+    private static final char ES = ' ';
+    private static final char GRASS = 'g';
+
+    private static int failures = 0;
+
+    /**
+     * @param args the number of maps to check
+     */
+    public static void main(String[] args) throws IOException {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        Random r = new Random(1);
+
+        for (int i = 0; i < maps; i++)
+        {
+            // Most maps are small, the rest span several words per row
+            int limit = i < maps * 3 / 4 ? 200 : 1500;
+            int w = 1 + r.nextInt(limit);
+            int h = 1 + r.nextInt(limit);
+
+            CharMap map = new CharMap(w, h, OB, ES);
+            double density = r.nextDouble() * 0.02;
+            for (int k = 0; k < w * h * density; k++)
+            {
+                map.setPoint(1 + r.nextInt(w), 1 + r.nextInt(h), r.nextInt(5) == 0 ? GRASS : OB);
+            }
+            if (r.nextBoolean())
+            {
+                for (int k = r.nextInt(3000); k > 0; k--)
+                {
+                    map.setPoint(1 + r.nextInt(w), 1 + r.nextInt(h), OB);
+                }
+            }
+            if (r.nextInt(3) == 0)
+            {
+                map.setMarkCost(GRASS, 3);
+            }
+            if (r.nextInt(4) == 0)
+            {
+                for (int k = 0; k < 50; k++)
+                {
+                    map.setPenalty(1 + r.nextInt(w), 1 + r.nextInt(h), r.nextDouble() * 4);
+                }
+            }
+
+            int coefficient = 1 + r.nextInt(Math.max(1, Math.min(w, h) / 2 + 2));
+            compare(map, coefficient, w + "x" + h);
+        }
+
+        CharMap map = new CharMap(300, 200, OB, ES);
+        for (int k = 0; k < 500; k++)
+        {
+            map.setPoint(1 + r.nextInt(300), 1 + r.nextInt(200), OB);
+        }
+        File file = File.createTempFile("simplify", ".map");
+        try
+        {
+            CharMap.exportToFile(map, file);
+            CharMap mapped = CharMap.openMapped(file);
+            for (int coefficient = 1; coefficient < 40; coefficient += 3)
+            {
+                compare(mapped, coefficient, "mapped 300x200");
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(file.toPath());
+        }
+
+        char[][] raw = new char[150][121];
+        for (int y = 0; y < raw.length; y++)
+        {
+            for (int x = 0; x < 120; x++)
+            {
+                raw[y][x] = r.nextInt(30) == 0 ? OB : r.nextInt(10) == 0 ? 'x' : ES;
+            }
+            raw[y][120] = '\n';
+        }
+        CharMap array = new CharMap(raw, OB, ES);
+        for (int coefficient = 1; coefficient < 40; coefficient += 3)
+        {
+            compare(array, coefficient, "array 120x150");
+        }
+
+        System.out.println((maps + 2) + " maps, " + failures + " failures");
+        if (failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    static void compare(CharMap map, int coefficient, String name)
+    {
+        CharMap expected = simplifyPointByPoint(map, coefficient);
+        CharMap simple = CharMap.simplfyMap(map, coefficient);
+        String where = name + " coefficient " + coefficient + ": ";
+
+        if (simple.getWidth() != expected.getWidth() || simple.getLength() != expected.getLength())
+        {
+            fail(where + "size differs");
+            return;
+        }
+        if (simple.hasUniformCost() != expected.hasUniformCost())
+        {
+            fail(where + "uniform cost differs");
+        }
+
+        for (int y = 1; y <= expected.getLength(); y++)
+        {
+            for (int x = 1; x < expected.getWidth(); x++)
+            {
+                if (simple.getPoint(x, y) != expected.getPoint(x, y)
+                    || simple.getPenalty(x, y) != expected.getPenalty(x, y))
+                {
+                    fail(where + "point (" + x + ", " + y + ") differs");
+                    return;
+                }
+            }
+        }
+    }
+
+    static void fail(String what)
+    {
+        failures++;
+        System.out.println(what);
+    }
+
+    /**
+     * The point by point simplification simplfyMap replaced. A square
+     * becomes an obstacle if any of its points is one, else it is penalized
+     * by the highest traversal cost among its points.
+     */
+    static CharMap simplifyPointByPoint(CharMap map, int w)
+    {
+        CharMap simple = new CharMap(map.getWidth() / w, map.getLength() / w,
+                map.getObsticalMark(), map.getEmptySpaceMark());
+        boolean weighted = !map.hasUniformCost();
+        int remainderY = map.getLength() % w;
+        int remainderX = map.getWidth() % w;
+
+        for (int y = 0; y < map.getLength() - remainderY; y += w)
+        {
+            for (int x = 0; x < map.getWidth() - remainderX; x += w)
+            {
+                boolean obstacle = false;
+                double max = 1;
+                for (int y2 = 0; y2 < w; y2++)
+                {
+                    for (int x2 = 0; x2 < w; x2++)
+                    {
+                        if (x + x2 < map.getWidth() - 1 && map.getPoint(x + x2 + 1, y + y2 + 1) == map.getObsticalMark())
+                        {
+                            obstacle = true;
+                        }
+
+                        double c = map.getCost(x + x2 + 1, y + y2 + 1);
+                        if (c != Double.POSITIVE_INFINITY && c > max)
+                        {
+                            max = c;
+                        }
+                    }
+                }
+
+                if (obstacle)
+                {
+                    simple.setPoint(x / w + 1, y / w + 1, map.getObsticalMark());
+                }
+                else if (weighted && max > 1)
+                {
+                    simple.setPenalty(x / w + 1, y / w + 1, max - 1);
+                }
+            }
+        }
+        return simple;
+    }
+}